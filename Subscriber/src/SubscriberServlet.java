@@ -14,12 +14,17 @@
   */
 
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.net.URLEncoder;
+import java.util.HashMap;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -75,6 +80,131 @@ public class SubscriberServlet extends HttpServlet	{
 	protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 		common(req, resp, true);
 	}
+	/**
+	 *	Process a batch of files delivered in one request.
+	 *	<ol>
+	 *	<li>Verify the Authorization header, as for a PUT or DELETE.
+	 *	<li>Verify that the request is multipart/mixed with a boundary
+	 *	or else BAD_REQUEST.
+	 *	<li>For each part, store or delete the file named by its
+	 *	X-ATT-DR-FILE-ID header, according to its X-ATT-DR-METHOD header,
+	 *	just as a PUT or DELETE would, reading exactly Content-Length
+	 *	bytes of data.
+	 *	<li>Respond with OK and a text/plain body holding a line with
+	 *	the X-ATT-DR-PUBLISH-ID and status of each file.  If the body
+	 *	can't be read to the end, files not yet stored get no line, and
+	 *	will be delivered again.
+	 *	</ol>
+	 */
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		String ah = req.getHeader("Authorization");
+		if (ah == null) {
+			logger.info("Rejecting request with no Authorization header from " + req.getRemoteAddr() + ": " + req.getPathInfo());
+			resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		if (!auth.equals(ah)) {
+			logger.info("Rejecting request with incorrect Authorization header from " + req.getRemoteAddr() + ": " + req.getPathInfo());
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		String ctype = req.getContentType();
+		int i = (ctype == null) ? -1 : ctype.indexOf("boundary=");
+		if (i == -1 || !ctype.toLowerCase().startsWith("multipart/mixed")) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expecting multipart/mixed batch of files");
+			return;
+		}
+		String boundary = "--" + ctype.substring(i + 9).replaceAll(";.*", "").replaceAll("\"", "").trim();
+		InputStream is = new BufferedInputStream(req.getInputStream(), 65536);
+		StringBuffer status = new StringBuffer();
+		byte[] buf = new byte[65536];
+		try {
+			String line = readLine(is);
+			while (line != null && line.length() == 0) {
+				line = readLine(is);
+			}
+			while (line != null && line.equals(boundary)) {
+				HashMap<String, String> hdrs = new HashMap<String, String>();
+				while ((line = readLine(is)) != null && line.length() != 0) {
+					int j = line.indexOf(':');
+					if (j > 0) {
+						hdrs.put(line.substring(0, j).trim().toLowerCase(), line.substring(j + 1).trim());
+					}
+				}
+				String publishid = hdrs.get("x-att-dr-publish-id");
+				String fileid = hdrs.get("x-att-dr-file-id");
+				long length = Long.parseLong(hdrs.get("content-length"));
+				if (publishid == null || fileid == null) {
+					throw new IOException("Missing X-ATT-DR-PUBLISH-ID or X-ATT-DR-FILE-ID");
+				}
+				String filename = URLEncoder.encode(fileid, "UTF-8").replaceAll("^\\.", "%2E").replaceAll("\\*", "%2A");
+				String finalname = OutputDirectory + "/" + filename;
+				String tmpname = OutputDirectory + "/." + filename;
+				if ("DELETE".equals(hdrs.get("x-att-dr-method"))) {
+					skip(is, length, buf);
+					(new File(finalname)).delete();
+					logger.info("Received delete for file id " + fileid + " from " + req.getRemoteAddr() + " publish id " + publishid + " as " + finalname);
+				} else {
+					OutputStream os = new FileOutputStream(tmpname);
+					try {
+						while (length > 0) {
+							int n = is.read(buf, 0, (int)Math.min(buf.length, length));
+							if (n <= 0) {
+								throw new EOFException();
+							}
+							os.write(buf, 0, n);
+							length -= n;
+						}
+						os.close();
+						os = null;
+					} finally {
+						if (os != null) {
+							os.close();
+							(new File(tmpname)).delete();
+						}
+					}
+					(new File(tmpname)).renameTo(new File(finalname));
+					logger.info("Received file id " + fileid + " from " + req.getRemoteAddr() + " publish id " + publishid + " as " + finalname);
+				}
+				status.append(publishid).append(" 204\n");
+				line = readLine(is);
+				if (line != null && line.length() == 0) {
+					line = readLine(is);
+				}
+			}
+		} catch (Exception e) {
+			logger.info("Failure reading batch from " + req.getRemoteAddr() + ": " + req.getPathInfo(), e);
+		}
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain");
+		PrintWriter pw = resp.getWriter();
+		pw.print(status);
+		pw.close();
+	}
+	private static String readLine(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int c;
+		while ((c = is.read()) != -1 && c != '\n') {
+			bos.write(c);
+		}
+		if (c == -1 && bos.size() == 0) {
+			return(null);
+		}
+		String ret = bos.toString("UTF-8");
+		if (ret.endsWith("\r")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		return(ret);
+	}
+	private static void skip(InputStream is, long length, byte[] buf) throws IOException {
+		while (length > 0) {
+			int n = is.read(buf, 0, (int)Math.min(buf.length, length));
+			if (n <= 0) {
+				throw new EOFException();
+			}
+			length -= n;
+		}
+	}
 	/**
 	 *	Process a PUT or DELETE request.
 	 *	<ol>
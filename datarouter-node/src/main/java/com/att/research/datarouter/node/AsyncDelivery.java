@@ -0,0 +1,978 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.*;
+import org.apache.log4j.Logger;
+
+/**
+ *	Non-blocking delivery engine.
+ *	<p>
+ *	Instead of tying up a delivery thread for the whole of each transfer,
+ *	the asynchronous delivery engine drives many transfers at once from a
+ *	small number of event loop threads, each with its own NIO selector.
+ *	A transfer connects, performs the TLS handshake (for https), sends the
+ *	request headers, streams the spooled data file and reads and drains the
+ *	response, all without blocking.  The data file is only read as fast as
+ *	the destination accepts it, so a slow subscriber holds at most one
+ *	buffer of data in memory.
+ *	<p>
+ *	The outcome of each transfer is reported through the same
+ *	DeliveryTaskHelper calls used by DeliveryTask.run(), so the status log
+ *	and the retry behavior of the delivery queues are the same for both
+ *	engines.  The event loops only do socket work: once a transfer is
+ *	over, reporting its outcome and running its completion callback are
+ *	handed to a small pool of completion threads, so a slow status log
+ *	write or delivery queue update never holds up the other transfers on
+ *	the same event loop.  One difference is that Expect: 100-continue is
+ *	only honored by waiting for the interim response; a destination that
+ *	never sends one will time out like any other read.
+ *	<p>
+ *	Connections are kept alive and pooled for reuse by later transfers to
+ *	the same destination (scheme, host and port), whichever subscriptions
+ *	or nodes those transfers are for.  Each event loop keeps its own idle
+ *	connections, since a connection is registered with its selector, but
+ *	the limit on idle connections per destination (maxidle) applies to
+ *	the engine as a whole; a connection that would go over it is closed
+ *	instead.  Idle connections are closed once they have been idle longer
+ *	than the idle timeout, or as soon as the destination closes them.
+ *	Pool hits and misses, and idle connections discarded, evicted or
+ *	closed by the destination, are counted in NodeStats, as are the http
+ *	and https connections opened and requests sent.
+ *	<p>
+ *	The engine limits the total number of transfers in progress.  Callers
+ *	obtain a transfer slot with acquire() before calling
+ *	DeliveryTask.runAsync(), and the slot is released when the transfer
+ *	completes, or by release() if the caller finds nothing to deliver.
+ */
+public class AsyncDelivery	{
+	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.AsyncDelivery");
+	private static final int	MAX_RESPONSE_HEADERS = 65536;
+	private static final int	S_CONNECT = 0;
+	private static final int	S_HANDSHAKE = 1;
+	private static final int	S_HEAD = 2;
+	private static final int	S_WAIT100 = 3;
+	private static final int	S_BODY = 4;
+	private static final int	S_RESPONSE = 5;
+	private static final ByteBuffer	EMPTY = ByteBuffer.allocate(0);
+	private EventLoop[]	loops;
+	private AtomicInteger	nextloop = new AtomicInteger();
+	private ExecutorService	completions;
+	private Semaphore	slots;
+	private volatile int	maxidle;
+	private volatile long	idletimeout;
+	private ConcurrentHashMap<String, AtomicInteger>	idlecounts = new ConcurrentHashMap<String, AtomicInteger>();
+	/**
+	 *	Start the event loop threads for a new asynchronous delivery engine
+	 *	@param threads	The number of event loop threads
+	 *	@param maxtransfers	The maximum number of transfers in progress at once
+	 *	@param maxidle	The maximum number of idle connections kept per destination
+	 *	@param idletimeout	How long (in milliseconds) a connection is kept idle before it is closed
+	 */
+	public AsyncDelivery(int threads, int maxtransfers, int maxidle, long idletimeout) throws IOException {
+		if (threads < 1) {
+			threads = 1;
+		}
+		if (maxtransfers < 1) {
+			maxtransfers = 1;
+		}
+		slots = new Semaphore(maxtransfers);
+		this.maxidle = maxidle;
+		this.idletimeout = idletimeout;
+		final AtomicInteger nextcompletion = new AtomicInteger();
+		completions = Executors.newFixedThreadPool(Math.max(2, threads), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Async Delivery Completion " + nextcompletion.getAndIncrement());
+				t.setDaemon(true);
+				return(t);
+			}
+		});
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop(i);
+		}
+		for (EventLoop el: loops) {
+			el.start();
+		}
+	}
+	/**
+	 *	Change the limits on idle connections.  Connections already idle
+	 *	are kept until they are next reused or time out.
+	 *	@param maxidle	The maximum number of idle connections kept per destination
+	 *	@param idletimeout	How long (in milliseconds) a connection is kept idle before it is closed
+	 */
+	public void setIdleLimits(int maxidle, long idletimeout) {
+		this.maxidle = maxidle;
+		this.idletimeout = idletimeout;
+	}
+	/**
+	 *	Count a connection to a destination going idle
+	 *	@return	False if the destination already has as many idle connections as allowed
+	 */
+	private boolean claimIdle(String poolkey) {
+		AtomicInteger n = idlecounts.get(poolkey);
+		if (n == null) {
+			n = new AtomicInteger();
+			AtomicInteger x = idlecounts.putIfAbsent(poolkey, n);
+			if (x != null) {
+				n = x;
+			}
+		}
+		if (n.incrementAndGet() > maxidle) {
+			n.decrementAndGet();
+			return(false);
+		}
+		return(true);
+	}
+	/**
+	 *	Count an idle connection to a destination being reused or closed
+	 */
+	private void releaseIdle(String poolkey) {
+		idlecounts.get(poolkey).decrementAndGet();
+	}
+	/**
+	 *	Wait for a transfer slot to become available
+	 */
+	public void acquire() throws InterruptedException {
+		slots.acquire();
+	}
+	/**
+	 *	Give back a transfer slot that was not used
+	 */
+	public void release() {
+		slots.release();
+	}
+	/**
+	 *	Start delivering a file.  The caller must already hold a transfer
+	 *	slot, which is released when the transfer completes.
+	 *	@param task	The file to deliver
+	 *	@param dth	Where to report the outcome
+	 *	@param url	The URL to deliver to
+	 *	@param done	What to do after the outcome has been reported
+	 */
+	public void deliver(DeliveryTask task, DeliveryTaskHelper dth, URL url, Runnable done) {
+		Transfer t = new Transfer(task, dth, url, done);
+		EventLoop el = loops[(nextloop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		el.pending.add(t);
+		el.selector.wakeup();
+	}
+	private class EventLoop extends Thread	{
+		private Selector	selector;
+		private ConcurrentLinkedQueue<Transfer>	pending = new ConcurrentLinkedQueue<Transfer>();
+		private HashSet<Transfer>	active = new HashSet<Transfer>();
+		private HashMap<String, LinkedList<Conn>>	idle = new HashMap<String, LinkedList<Conn>>();
+		private long	nextsweep;
+		public EventLoop(int i) throws IOException {
+			setName("Async Delivery " + i);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+		public void run() {
+			while (true) {
+				try {
+					selector.select(1000);
+					Transfer t;
+					while ((t = pending.poll()) != null) {
+						t.start(this);
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Conn c = (Conn)key.attachment();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (c.xfer == null) {
+							// anything arriving on an idle connection means it is closed or unusable
+							c.close();
+							removeIdle(c);
+							continue;
+						}
+						c.xfer.ready();
+					}
+					long now = System.currentTimeMillis();
+					if (now >= nextsweep) {
+						nextsweep = now + 250;
+						sweep(now);
+					}
+				} catch (Throwable e) {
+					logger.error("NODE0610 Unexpected problem in asynchronous delivery event loop", e);
+				}
+			}
+		}
+		private void sweep(long now) {
+			for (Transfer t: active.toArray(new Transfer[active.size()])) {
+				if (now > t.deadline) {
+					t.fail(new SocketTimeoutException(t.state == S_CONNECT ? "connect timed out" : "Read timed out"));
+				}
+			}
+			Iterator<LinkedList<Conn>> it = idle.values().iterator();
+			while (it.hasNext()) {
+				LinkedList<Conn> l = it.next();
+				while (!l.isEmpty() && now - l.getFirst().idlesince > idletimeout) {
+					Conn c = l.removeFirst();
+					c.close();
+					releaseIdle(c.poolkey);
+					NodeStats.inc("delivery.pool.evictions");
+				}
+				if (l.isEmpty()) {
+					it.remove();
+				}
+			}
+		}
+		private Conn getIdle(String poolkey) {
+			LinkedList<Conn> l = idle.get(poolkey);
+			if (l == null || l.isEmpty()) {
+				return(null);
+			}
+			releaseIdle(poolkey);
+			return(l.removeLast());
+		}
+		private void putIdle(Conn c) {
+			LinkedList<Conn> l = idle.get(c.poolkey);
+			if (l == null) {
+				l = new LinkedList<Conn>();
+				idle.put(c.poolkey, l);
+			}
+			if (!claimIdle(c.poolkey)) {
+				c.close();
+				NodeStats.inc("delivery.pool.discards");
+				return;
+			}
+			c.idlesince = System.currentTimeMillis();
+			c.interest(SelectionKey.OP_READ);
+			l.add(c);
+		}
+		private void removeIdle(Conn c) {
+			LinkedList<Conn> l = idle.get(c.poolkey);
+			if (l != null && l.remove(c)) {
+				releaseIdle(c.poolkey);
+				NodeStats.inc("delivery.pool.closed");
+			}
+		}
+	}
+	/**
+	 *	A connection to a destination, with TLS if the destination is https.
+	 */
+	private static class Conn	{
+		private SocketChannel	ch;
+		private SelectionKey	key;
+		private String	poolkey;
+		private SSLEngine	engine;
+		private ByteBuffer	netin;
+		private ByteBuffer	netout;
+		private ByteBuffer	appin;
+		private long	created = System.currentTimeMillis();
+		private long	idlesince;
+		private Transfer	xfer;
+		public Conn(String poolkey, String host, int port, boolean https) throws IOException {
+			this.poolkey = poolkey;
+			if (https) {
+				try {
+					engine = SSLContext.getDefault().createSSLEngine(host, port);
+				} catch (NoSuchAlgorithmException nsae) {
+					throw new IOException(nsae);
+				}
+				engine.setUseClientMode(true);
+				SSLParameters sp = engine.getSSLParameters();
+				sp.setEndpointIdentificationAlgorithm("HTTPS");
+				engine.setSSLParameters(sp);
+				engine.beginHandshake();
+				SSLSession ss = engine.getSession();
+				netin = ByteBuffer.allocate(ss.getPacketBufferSize());
+				netout = ByteBuffer.allocate(ss.getPacketBufferSize());
+				appin = ByteBuffer.allocate(ss.getApplicationBufferSize());
+			}
+			ch = SocketChannel.open();
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+		}
+		public void interest(int ops) {
+			if (netout != null && netout.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+		public void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				ch.close();
+			} catch (Exception e) {
+			}
+		}
+		private static ByteBuffer enlarge(ByteBuffer b, int size) {
+			ByteBuffer nb = ByteBuffer.allocate(Math.max(size, b.capacity() * 2));
+			b.flip();
+			nb.put(b);
+			return(nb);
+		}
+		private void runTasks() {
+			Runnable r;
+			while ((r = engine.getDelegatedTask()) != null) {
+				r.run();
+			}
+		}
+		/**
+		 *	Write any buffered TLS records
+		 *	@return	true if nothing remains to be written
+		 */
+		public boolean flush() throws IOException {
+			if (netout == null || netout.position() == 0) {
+				return(true);
+			}
+			netout.flip();
+			ch.write(netout);
+			netout.compact();
+			return(netout.position() == 0);
+		}
+		/**
+		 *	Write as much as possible
+		 *	@return	true if all of src has been written
+		 */
+		public boolean write(ByteBuffer src) throws IOException {
+			if (engine == null) {
+				ch.write(src);
+				return(!src.hasRemaining());
+			}
+			while (true) {
+				if (!flush()) {
+					return(false);
+				}
+				if (!src.hasRemaining()) {
+					return(true);
+				}
+				SSLEngineResult r = engine.wrap(src, netout);
+				if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException("Connection closed");
+				}
+				if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					netout = enlarge(netout, engine.getSession().getPacketBufferSize());
+				} else if (r.bytesConsumed() == 0 && r.bytesProduced() == 0) {
+					throw new SSLException("Unexpected TLS state " + r.getHandshakeStatus());
+				}
+			}
+		}
+		/**
+		 *	Read as much as is available
+		 *	@return	The number of bytes read, or -1 at end of stream
+		 */
+		public int read(ByteBuffer dst) throws IOException {
+			if (engine == null) {
+				return(ch.read(dst));
+			}
+			while (true) {
+				if (appin.position() > 0) {
+					appin.flip();
+					int n = Math.min(appin.remaining(), dst.remaining());
+					ByteBuffer x = appin.duplicate();
+					x.limit(x.position() + n);
+					dst.put(x);
+					appin.position(appin.position() + n);
+					appin.compact();
+					return(n);
+				}
+				if (netin.position() > 0) {
+					netin.flip();
+					SSLEngineResult r = engine.unwrap(netin, appin);
+					netin.compact();
+					runTasks();
+					if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+						return(-1);
+					}
+					if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						appin = enlarge(appin, engine.getSession().getApplicationBufferSize());
+						continue;
+					}
+					if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+						engine.wrap(EMPTY, netout);
+						flush();
+					}
+					if (r.bytesConsumed() > 0 || r.bytesProduced() > 0) {
+						continue;
+					}
+					if (!netin.hasRemaining()) {
+						netin = enlarge(netin, engine.getSession().getPacketBufferSize());
+					}
+				}
+				int n = ch.read(netin);
+				if (n <= 0) {
+					return(n);
+				}
+			}
+		}
+		/**
+		 *	Advance the TLS handshake as far as possible
+		 *	@return	true if the handshake is complete
+		 */
+		public boolean handshake() throws IOException {
+			while (true) {
+				if (!flush()) {
+					interest(SelectionKey.OP_WRITE);
+					return(false);
+				}
+				SSLEngineResult r;
+				switch (engine.getHandshakeStatus()) {
+				case NOT_HANDSHAKING:
+				case FINISHED:
+					NodeStats.inc("delivery.tls.handshakes");
+					if (engine.getSession().getCreationTime() < created) {
+						NodeStats.inc("delivery.tls.resumed");
+					}
+					return(true);
+				case NEED_TASK:
+					runTasks();
+					break;
+				case NEED_WRAP:
+					r = engine.wrap(EMPTY, netout);
+					if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						netout = enlarge(netout, engine.getSession().getPacketBufferSize());
+					} else if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new SSLException("Connection closed during handshake");
+					}
+					break;
+				default:
+					netin.flip();
+					r = engine.unwrap(netin, appin);
+					netin.compact();
+					if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+						throw new SSLException("Connection closed during handshake");
+					}
+					if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						appin = enlarge(appin, engine.getSession().getApplicationBufferSize());
+						break;
+					}
+					if (r.bytesConsumed() > 0 || r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+						break;
+					}
+					if (!netin.hasRemaining()) {
+						netin = enlarge(netin, engine.getSession().getPacketBufferSize());
+					}
+					int n = ch.read(netin);
+					if (n < 0) {
+						throw new SSLException("Connection closed during handshake");
+					}
+					if (n == 0) {
+						interest(SelectionKey.OP_READ);
+						return(false);
+					}
+					break;
+				}
+			}
+		}
+	}
+	/**
+	 *	The state of a single delivery attempt
+	 */
+	private class Transfer	{
+		private DeliveryTask	task;
+		private DeliveryTaskHelper	dth;
+		private URL	url;
+		private Runnable	done;
+		private EventLoop	el;
+		private String	host;
+		private int	port;
+		private boolean	https;
+		private String	poolkey;
+		private Conn	conn;
+		private boolean	reused;
+		private boolean	retried;
+		private int	state;
+		private long	deadline;
+		private ByteBuffer	head;
+		private boolean	expect100;
+		private long	length;
+		private long	offset;
+		private FileChannel	fc;
+		private ByteBuffer	chunk;
+		private long	fpos;
+		private long	sofar;
+		private boolean	extra;
+		private long	extrasent;
+		private ByteBuffer	rbuf;
+		private ByteArrayOutputStream	rhead = new ByteArrayOutputStream();
+		private boolean	gotbytes;
+		private int	status;
+		private String	reason;
+		private String	location;
+		private String	xpubid;
+		private boolean	keepalive;
+		private boolean	chunked;
+		private long	remaining;
+		private int	chunkstate;
+		private StringBuilder	line = new StringBuilder();
+		public Transfer(DeliveryTask task, DeliveryTaskHelper dth, URL url, Runnable done) {
+			this.task = task;
+			this.dth = dth;
+			this.url = url;
+			this.done = done;
+		}
+		private long timeout() {
+			int to = (state == S_CONNECT) ? dth.getConnectTimeout() : dth.getReadTimeout();
+			return(to > 0 ? to : 86400000L);
+		}
+		public void start(EventLoop el) {
+			this.el = el;
+			el.active.add(this);
+			try {
+				https = "https".equalsIgnoreCase(url.getProtocol());
+				if (!https && !"http".equalsIgnoreCase(url.getProtocol())) {
+					throw new MalformedURLException("Unsupported protocol: " + url.getProtocol());
+				}
+				host = url.getHost();
+				port = url.getPort();
+				if (port == -1) {
+					port = url.getDefaultPort();
+				}
+				poolkey = url.getProtocol().toLowerCase() + "://" + host.toLowerCase() + ":" + port;
+				DestInfo di = task.getDestInfo();
+				length = task.getLength();
+				offset = task.getDataOffset();
+				expect100 = di.isUsing100() && length > 0;
+				StringBuilder sb = new StringBuilder();
+				String file = url.getFile();
+				sb.append(task.getMethod()).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+				sb.append("Host: ").append(host);
+				if (url.getPort() != -1) {
+					sb.append(':').append(port);
+				}
+				sb.append("\r\nContent-Length: ").append(length);
+				sb.append("\r\nAuthorization: ").append(di.getAuth());
+				sb.append("\r\nX-ATT-DR-PUBLISH-ID: ").append(task.getPublishId());
+				for (String[] nv: task.getHeaders()) {
+					sb.append("\r\n").append(nv[0]).append(": ").append(nv[1]);
+				}
+				if (expect100) {
+					sb.append("\r\nExpect: 100-continue");
+				}
+				sb.append("\r\n\r\n");
+				head = ByteBuffer.wrap(sb.toString().getBytes("ISO-8859-1"));
+				if (length > 0) {
+					fc = (new FileInputStream(task.getDataFile())).getChannel();
+					if (https) {
+						chunk = ByteBuffer.allocate(16384);
+						chunk.flip();
+					}
+				}
+				rbuf = ByteBuffer.allocate(8192);
+				rbuf.flip();
+				NodeStats.inc(https ? "delivery.https.requests" : "delivery.http.requests");
+				open();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+		private void open() throws IOException {
+			conn = el.getIdle(poolkey);
+			reused = (conn != null);
+			if (reused) {
+				NodeStats.inc("delivery.pool.hits");
+				conn.xfer = this;
+				state = S_HEAD;
+				deadline = System.currentTimeMillis() + timeout();
+				ready();
+				return;
+			}
+			conn = new Conn(poolkey, host, port, https);
+			conn.xfer = this;
+			conn.key = conn.ch.register(el.selector, SelectionKey.OP_CONNECT, conn);
+			NodeStats.inc("delivery.pool.misses");
+			NodeStats.inc(https ? "delivery.https.connections" : "delivery.http.connections");
+			state = S_CONNECT;
+			deadline = System.currentTimeMillis() + timeout();
+			conn.ch.connect(new InetSocketAddress(host, port));
+		}
+		public void ready() {
+			try {
+				step();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+		private void step() throws IOException {
+			while (true) {
+				switch (state) {
+				case S_CONNECT:
+					if (!conn.ch.finishConnect()) {
+						return;
+					}
+					state = https ? S_HANDSHAKE : S_HEAD;
+					break;
+				case S_HANDSHAKE:
+					if (!conn.handshake()) {
+						return;
+					}
+					state = S_HEAD;
+					break;
+				case S_HEAD:
+					if (!conn.write(head)) {
+						conn.interest(SelectionKey.OP_WRITE);
+						return;
+					}
+					if (length == 0) {
+						state = S_RESPONSE;
+					} else if (expect100) {
+						state = S_WAIT100;
+					} else {
+						state = S_BODY;
+					}
+					break;
+				case S_BODY:
+					if (!sendBody()) {
+						conn.interest(SelectionKey.OP_WRITE);
+						return;
+					}
+					fc.close();
+					fc = null;
+					state = S_RESPONSE;
+					break;
+				default:
+					if (!readResponse()) {
+						conn.interest(SelectionKey.OP_READ);
+						return;
+					}
+					if (state == S_WAIT100) {
+						// an interim response: send the body
+						state = S_BODY;
+						break;
+					}
+					finish();
+					return;
+				}
+				deadline = System.currentTimeMillis() + timeout();
+			}
+		}
+		private boolean sendBody() throws IOException {
+			if (!https) {
+				while (sofar < length) {
+					long n = fc.transferTo(offset + sofar, length - sofar, conn.ch);
+					if (n <= 0) {
+						if (fc.size() < offset + length) {
+							throw new IOException("Unexpected problem reading data file " + task.getDataFile());
+						}
+						return(false);
+					}
+					sofar += n;
+					deadline = System.currentTimeMillis() + timeout();
+				}
+				return(true);
+			}
+			while (true) {
+				if (chunk.hasRemaining()) {
+					boolean all = conn.write(chunk);
+					sofar = fpos - chunk.remaining();
+					if (!all) {
+						return(false);
+					}
+					deadline = System.currentTimeMillis() + timeout();
+				}
+				if (fpos >= length) {
+					return(true);
+				}
+				chunk.clear();
+				if (chunk.remaining() > length - fpos) {
+					chunk.limit((int)(length - fpos));
+				}
+				int n = fc.read(chunk, offset + fpos);
+				if (n <= 0) {
+					throw new IOException("Unexpected problem reading data file " + task.getDataFile());
+				}
+				fpos += n;
+				chunk.flip();
+			}
+		}
+		/**
+		 *	Read and parse response data
+		 *	@return	true if an interim response (while waiting to send the body) or a complete final response has been read
+		 */
+		private boolean readResponse() throws IOException {
+			while (true) {
+				if (status != 0) {
+					if (skipBody()) {
+						return(true);
+					}
+				} else if (rbuf.hasRemaining()) {
+					if (parseHead() && status == 0 && state == S_WAIT100) {
+						return(true);
+					}
+					continue;
+				}
+				rbuf.clear();
+				int n = conn.read(rbuf);
+				rbuf.flip();
+				if (n < 0) {
+					if (status != 0 && !chunked && remaining < 0) {
+						// body delimited by end of connection
+						return(true);
+					}
+					throw new SocketException("Unexpected end of file from server");
+				}
+				if (n == 0) {
+					return(false);
+				}
+				gotbytes = true;
+				deadline = System.currentTimeMillis() + timeout();
+			}
+		}
+		/**
+		 *	Accumulate the response status line and headers
+		 *	@return	true if a complete response head has been parsed
+		 */
+		private boolean parseHead() throws IOException {
+			while (rbuf.hasRemaining()) {
+				byte b = rbuf.get();
+				rhead.write(b);
+				int n = rhead.size();
+				if (n > MAX_RESPONSE_HEADERS) {
+					throw new IOException("Response headers too large");
+				}
+				if (b != '\n') {
+					continue;
+				}
+				byte[] hb = rhead.toByteArray();
+				if (n >= 2 && hb[n - 2] == '\n' || n >= 4 && hb[n - 2] == '\r' && hb[n - 3] == '\n') {
+					rhead.reset();
+					String[] lines = new String(hb, "ISO-8859-1").split("\r?\n");
+					if (lines.length == 0 || lines[0].length() == 0) {
+						continue;
+					}
+					processHead(lines);
+					return(true);
+				}
+			}
+			return(false);
+		}
+		private void processHead(String[] lines) throws IOException {
+			String sl = lines[0];
+			int i = sl.indexOf(' ');
+			if (!sl.startsWith("HTTP/") || i == -1) {
+				throw new IOException("Invalid Http response");
+			}
+			int j = sl.indexOf(' ', i + 1);
+			int rc;
+			try {
+				rc = Integer.parseInt(j == -1 ? sl.substring(i + 1).trim() : sl.substring(i + 1, j));
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Invalid Http response");
+			}
+			if (rc < 200) {
+				return;
+			}
+			status = rc;
+			reason = (j == -1) ? null : sl.substring(j + 1);
+			keepalive = sl.startsWith("HTTP/1.1");
+			long clen = -1;
+			for (int k = 1; k < lines.length; k++) {
+				int c = lines[k].indexOf(':');
+				if (c <= 0) {
+					continue;
+				}
+				String h = lines[k].substring(0, c).trim();
+				String v = lines[k].substring(c + 1).trim();
+				if (h.equalsIgnoreCase("Content-Length")) {
+					try {
+						clen = Long.parseLong(v);
+					} catch (NumberFormatException nfe) {
+						throw new IOException("Invalid Content-Length in response");
+					}
+				} else if (h.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = v.toLowerCase().endsWith("chunked");
+				} else if (h.equalsIgnoreCase("Connection")) {
+					if (v.equalsIgnoreCase("close")) {
+						keepalive = false;
+					} else if (v.equalsIgnoreCase("keep-alive")) {
+						keepalive = true;
+					}
+				} else if (h.equalsIgnoreCase("Location")) {
+					location = v;
+				} else if (h.equalsIgnoreCase("X-ATT-DR-PUBLISH-ID")) {
+					xpubid = v;
+				}
+			}
+			if (state == S_WAIT100) {
+				// error instead of 100 Continue.  The request body
+				// was promised but will not be sent, so the
+				// connection cannot be reused.
+				extra = true;
+				extrasent = -1L;
+				keepalive = false;
+				state = S_RESPONSE;
+			}
+			if (rc == 204 || rc == 304 || "HEAD".equals(task.getMethod())) {
+				chunked = false;
+				remaining = 0;
+			} else if (chunked) {
+				remaining = 0;
+			} else {
+				remaining = clen;
+				if (clen < 0) {
+					keepalive = false;
+				}
+			}
+		}
+		/**
+		 *	Discard response body data
+		 *	@return	true if the end of the body has been reached
+		 */
+		private boolean skipBody() throws IOException {
+			if (!chunked) {
+				if (remaining < 0) {
+					rbuf.position(rbuf.limit());
+					return(false);
+				}
+				int n = (int)Math.min(remaining, rbuf.remaining());
+				rbuf.position(rbuf.position() + n);
+				remaining -= n;
+				return(remaining == 0);
+			}
+			while (rbuf.hasRemaining()) {
+				if (remaining > 0) {
+					int n = (int)Math.min(remaining, rbuf.remaining());
+					rbuf.position(rbuf.position() + n);
+					remaining -= n;
+					continue;
+				}
+				char c = (char)(rbuf.get() & 0xff);
+				if (c != '\n') {
+					if (c != '\r') {
+						line.append(c);
+					}
+					continue;
+				}
+				String s = line.toString().trim();
+				line.setLength(0);
+				switch (chunkstate) {
+				case 0:	// chunk size
+					int semi = s.indexOf(';');
+					if (semi != -1) {
+						s = s.substring(0, semi).trim();
+					}
+					try {
+						remaining = Long.parseLong(s, 16);
+					} catch (NumberFormatException nfe) {
+						throw new IOException("Invalid chunk size in response");
+					}
+					chunkstate = (remaining == 0) ? 2 : 1;
+					break;
+				case 1:	// end of chunk data
+					chunkstate = 0;
+					break;
+				default:	// trailers
+					if (s.length() == 0) {
+						return(true);
+					}
+					break;
+				}
+			}
+			return(false);
+		}
+		private void cleanup() {
+			el.active.remove(this);
+			if (fc != null) {
+				try {
+					fc.close();
+				} catch (Exception e) {
+				}
+				fc = null;
+			}
+		}
+		private void finish() {
+			cleanup();
+			conn.xfer = null;
+			if (keepalive && !rbuf.hasRemaining() && (conn.netin == null || conn.netin.position() == 0 && conn.appin.position() == 0)) {
+				el.putIdle(conn);
+			} else {
+				conn.close();
+			}
+			complete(status, (status >= 300 && status <= 399) ? location : reason, null);
+		}
+		public void fail(Exception e) {
+			if (conn != null) {
+				conn.xfer = null;
+				conn.close();
+			}
+			if (reused && !gotbytes && !retried && state != S_CONNECT && !(e instanceof SocketTimeoutException)) {
+				// the destination probably closed the idle
+				// connection just as we reused it.  Try again
+				// on a new one.
+				retried = true;
+				head.rewind();
+				sofar = 0;
+				fpos = 0;
+				if (chunk != null) {
+					chunk.clear();
+					chunk.flip();
+				}
+				try {
+					open();
+					return;
+				} catch (Exception e2) {
+					e = e2;
+				}
+			}
+			if (state == S_BODY) {
+				extra = true;
+				extrasent = sofar;
+			}
+			cleanup();
+			complete(-1, null, e);
+		}
+		/**
+		 *	Hand the outcome of the transfer to a completion thread
+		 */
+		private void complete(final int rc, final String rmsg, final Exception e) {
+			try {
+				completions.execute(new Runnable() {
+					public void run() {
+						report(rc, rmsg, e);
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				report(rc, rmsg, e);
+			}
+		}
+		private void report(int rc, String rmsg, Exception e) {
+			try {
+				if (extra) {
+					dth.reportDeliveryExtra(task, extrasent);
+				}
+				if (e != null) {
+					dth.reportException(task, e);
+				} else {
+					dth.reportStatus(task, rc, xpubid, rmsg);
+				}
+			} catch (Throwable t) {
+				logger.error("NODE0611 Unexpected problem reporting delivery status for " + task.getPublishId(), t);
+			}
+			slots.release();
+			try {
+				done.run();
+			} catch (Throwable t) {
+				logger.error("NODE0611 Unexpected problem completing delivery of " + task.getPublishId(), t);
+			}
+		}
+	}
+}
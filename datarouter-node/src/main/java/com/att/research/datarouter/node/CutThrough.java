@@ -0,0 +1,177 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.net.*;
+import javax.net.ssl.*;
+import org.apache.log4j.Logger;
+
+/**
+ *	Forwarding of a file to the next node while it is still being received.
+ *	<p>
+ *	Normally a file bound for another node is completely received and
+ *	spooled before a delivery thread starts sending it on, so a file that
+ *	passes through several nodes takes the time of one transfer per hop.
+ *	For files of at least the CutThroughMinSize node property, NodeServlet
+ *	instead opens a connection to the next node before it starts
+ *	receiving the file and writes each block to the connection as well as
+ *	to the spool.  If the next node accepts the file, it is not queued for
+ *	that node.  If anything goes wrong with the forwarded copy, it is
+ *	abandoned, and the spooled copy is queued and delivered as usual.
+ *	The next node has accepted, and spooled, the file before this node
+ *	responds to the sender, so the file is never only in transit.
+ */
+public class CutThrough	{
+	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.CutThrough");
+	private NodeConfigManager	config;
+	private Target	target;
+	private String	pubid;
+	private String	method;
+	private String	ctype;
+	private long	length;
+	private String	url;
+	private HttpURLConnection	uc;
+	private OutputStream	os;
+	/**
+	 *	Start forwarding a file
+	 *	@param config	The node configuration
+	 *	@param target	The next node and the routing to send with the file
+	 *	@param pubid	The publish ID
+	 *	@param method	The HTTP method
+	 *	@param fileid	The file ID
+	 *	@param metadata	The spooled meta data of the file
+	 *	@param ctype	The content type
+	 *	@param length	The length of the file
+	 *	@return	The forwarder, or null if the next node can't be reached
+	 */
+	public static CutThrough start(NodeConfigManager config, Target target, String pubid, String method, String fileid, String metadata, String ctype, long length) {
+		CutThrough ret = new CutThrough();
+		ret.config = config;
+		ret.target = target;
+		ret.pubid = pubid;
+		ret.method = method;
+		ret.ctype = ctype;
+		ret.length = length;
+		DestInfo di = target.getDestInfo();
+		ret.url = config.getDestURL(di, fileid);
+		try {
+			HttpURLConnection uc = (HttpURLConnection)(new URL(ret.url)).openConnection();
+			if (uc instanceof HttpsURLConnection) {
+				((HttpsURLConnection)uc).setSSLSocketFactory(DeliverySocketFactory.getInstance());
+			}
+			uc.setConnectTimeout(config.getConnectTimeout());
+			uc.setReadTimeout(config.getReadTimeout());
+			uc.setInstanceFollowRedirects(false);
+			uc.setRequestMethod(method);
+			uc.setRequestProperty("Content-Length", Long.toString(length));
+			uc.setRequestProperty("Authorization", di.getAuth());
+			uc.setRequestProperty("X-ATT-DR-PUBLISH-ID", pubid);
+			String[] lines = metadata.split("\n");
+			for (int i = 1; i < lines.length; i++) {
+				int j = lines[i].indexOf('\t');
+				if (j > 0) {
+					uc.addRequestProperty(lines[i].substring(0, j), lines[i].substring(j + 1));
+				}
+			}
+			uc.addRequestProperty("X-ATT-DR-ROUTING", target.getRouting());
+			uc.setFixedLengthStreamingMode(length);
+			uc.setDoOutput(true);
+			ret.uc = uc;
+			ret.os = uc.getOutputStream();
+			NodeStats.inc("cutthrough.started");
+			return(ret);
+		} catch (Exception e) {
+			ret.fail(e);
+			return(null);
+		}
+	}
+	private CutThrough() {}
+	/**
+	 *	Get the next node the file is being forwarded to
+	 */
+	public Target getTarget() {
+		return(target);
+	}
+	/**
+	 *	Forward the next block of the file.  If that fails, the
+	 *	forwarded copy is abandoned.
+	 */
+	public void write(byte[] buf, int off, int len) {
+		if (os == null) {
+			return;
+		}
+		try {
+			os.write(buf, off, len);
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+	/**
+	 *	Abandon the forwarded copy, since the file was not completely received
+	 */
+	public void abort() {
+		if (uc != null) {
+			uc.disconnect();
+			uc = null;
+			os = null;
+		}
+	}
+	/**
+	 *	Finish forwarding the file, once it has been completely received
+	 *	@return	true if the next node accepted the file
+	 */
+	public boolean finish() {
+		if (os == null) {
+			return(false);
+		}
+		int rc;
+		String xpubid;
+		try {
+			os.close();
+			os = null;
+			rc = uc.getResponseCode();
+			InputStream is = (rc >= 200 && rc <= 299) ? uc.getInputStream() : uc.getErrorStream();
+			if (is != null) {
+				byte[] buf = new byte[4096];
+				while (is.read(buf) > 0) {
+				}
+				is.close();
+			}
+			if (rc < 200 || rc > 299) {
+				throw new IOException("Response " + rc + " " + uc.getResponseMessage());
+			}
+			xpubid = uc.getHeaderField("X-ATT-DR-PUBLISH-ID");
+			uc = null;
+		} catch (Exception e) {
+			fail(e);
+			return(false);
+		}
+		// The next node has the file now, whatever happens below
+		NodeStats.inc("cutthrough.forwarded");
+		try {
+			String subid = target.getRouting().replaceAll("[^ ]*/", "");
+			StatusLog.logDel(pubid, config.getFeedId(subid.replaceAll(" .*", "")), subid, url, method, ctype, length, target.getDestInfo().getAuthUser(), rc, xpubid);
+		} catch (Exception e) {
+		}
+		return(true);
+	}
+	private void fail(Exception e) {
+		logger.info("NODE0512 Cut through forwarding of " + pubid + " to " + url + " failed, falling back to store and forward: " + e);
+		NodeStats.inc("cutthrough.fallback");
+		abort();
+	}
+}
@@ -16,6 +16,8 @@
 package com.att.research.datarouter.node;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import org.apache.log4j.Logger;
 
@@ -24,119 +26,231 @@ import org.apache.log4j.Logger;
  *	<p>
  *	The Delivery class manages assignment of delivery threads to delivery
  *	queues and creation and destruction of delivery queues as
- *	configuration changes.  DeliveryQueues are assigned threads based on a
- *	modified round-robin approach giving priority to queues with more work
- *	as measured by both bytes to deliver and files to deliver and lower
- *	priority to queues that already have delivery threads working.
- *	A delivery thread continues to work for a delivery queue as long as
- *	that queue has more files to deliver.
+ *	configuration changes.  Queues are not polled.  Instead, a queue is
+ *	put on a ready queue when it reports, through its Listener, that it
+ *	may have work: when a file is added, when its retry timer is reset,
+ *	when its failure timer expires (tracked by a TimerWheel rather than
+ *	by waking up threads to check), and when a delivery thread finishes
+ *	with it and it still has files to deliver.  Each queue is on the
+ *	ready queue at most once, and idle delivery threads block taking
+ *	queues from it, so they serve queues in the order they became ready.
+ *	A delivery thread continues to work for a delivery queue until that
+ *	queue runs out of files or reaches its fairness limits, after which
+ *	it goes to the back of the ready queue.  A queue whose destination
+ *	allows more than one file in flight is put back on the ready queue
+ *	when it is taken, so that further idle threads can claim it, until
+ *	that limit is reached.
+ *	<p>
+ *	When the DELIVERY_ENGINE provisioning parameter is "async", the
+ *	delivery threads are replaced by a single dispatcher thread that hands
+ *	files to the AsyncDelivery engine.  Each file in progress holds one
+ *	claim on its queue, so the same per destination limits apply, and the
+ *	engine limits the total number of files in progress.
+ *	<p>
+ *	Free disk space is checked every 5 seconds by a timer task.  When it
+ *	is low, files are thrown away, in the order chosen by the
+ *	EvictionPolicy, using an EvictionIndex of the delivery queues, which
+ *	each queue keeps up to date, instead of scanning the spool
+ *	directories or the queues.  Before
+ *	files have to be thrown away to free up disk space, checkPressure()
+ *	tells the node servlet to refuse new publications.
+ *	<p>
+ *	The spool may be spread over several volumes (see
+ *	NodeConfigManager.getSpoolBases()).  Each publication is placed on
+ *	one volume, chosen by chooseVolume(), and is linked into its
+ *	destinations' spool directories on that same volume.  Free disk
+ *	space is sampled, checked, and recovered separately for each volume.
+ *	<p>
+ *	Every SPOOL_CHECKPOINT_INTERVAL, each delivery queue that has changed
+ *	writes a checkpoint of its files, which it uses to start up quickly
+ *	after a restart.  This is done by its own timer thread, since it can
+ *	take a while for queues with large backlogs.
  */
 public class Delivery {
 	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.Delivery");
-	private static class DelItem implements Comparable<DelItem>	{
-		private String pubid;
-		private String spool;
-		public int compareTo(DelItem x) {
-			int i = pubid.compareTo(x.pubid);
-			if (i == 0) {
-				i = spool.compareTo(x.spool);
-			}
-			return(i);
-		}
-		public String getPublishId() {
-			return(pubid);
-		}
-		public String getSpool() {
-			return(spool);
+	private double	fdstart;
+	private double	fdstop;
+	private double	fdpublish;
+	private EvictionIndex	evictions;
+	/**
+	 *	Disk space on a spool volume
+	 */
+	private static class Volume	{
+		private String	base;
+		private volatile long	total;
+		private volatile long	free;
+		private AtomicLong	used = new AtomicLong();
+		public Volume(String base) {
+			this.base = base;
 		}
-		public DelItem(String pubid, String spool) {
-			this.pubid = pubid;
-			this.spool = spool;
+		/**
+		 *	Get the estimated free space, less what has been accepted since it was sampled
+		 */
+		public long getFree() {
+			return(free - used.get());
 		}
 	}
-	private double	fdstart;
-	private double	fdstop;
+	private Volume[]	volumes;
+	private String	placement;
+	private AtomicInteger	nextvolume = new AtomicInteger();
+	private long	lastcheckpoint = System.currentTimeMillis();
 	private int	threads;
 	private int	curthreads;
+	private boolean	async;
+	private int	curasync;
+	private AsyncDelivery	engine;
 	private NodeConfigManager	config;
-	private Hashtable<String, DeliveryQueue>	dqs = new Hashtable<String, DeliveryQueue>();
-	private DeliveryQueue[]	queues = new DeliveryQueue[0];
-	private int	qpos = 0;
-	private long	nextcheck;
+	private volatile Hashtable<String, DeliveryQueue>	dqs = new Hashtable<String, DeliveryQueue>();
+	private LinkedBlockingQueue<DeliveryQueue>	ready = new LinkedBlockingQueue<DeliveryQueue>();
+	private TimerWheel	wheel = new TimerWheel("Delivery Retry Timer", 100, 1024);
 	private Runnable	cmon = new Runnable() {
 		public void run() {
 			checkconfig();
 		}
 	};
+	private DeliveryQueue.Listener	listener = new DeliveryQueue.Listener() {
+		public void queueReady(DeliveryQueue dq) {
+			makeReady(dq);
+		}
+		public void queueReadyAfter(final DeliveryQueue dq, long when) {
+			wheel.schedule(when, new Runnable() {
+				public void run() {
+					makeReady(dq);
+				}
+			});
+		}
+	};
 	/**
 	 *	Constructs a new Delivery system using the specified configuration manager.
 	 *	@param config	The configuration manager for this delivery system.
 	 */
 	public Delivery(NodeConfigManager config) {
 		this.config = config;
+		String[] bases = config.getSpoolBases();
+		volumes = new Volume[bases.length];
+		for (int i = 0; i < bases.length; i++) {
+			volumes[i] = new Volume(bases[i]);
+		}
+		placement = config.getSpoolPlacement();
+		evictions = new EvictionIndex(volumes.length, new EvictionPolicy.OldestFirst());
+		for (int i = 0; i < bases.length; i++) {
+			config.getSegmentSpool(i);
+		}
+		sampleDisk();
 		config.registerConfigTask(cmon);
 		checkconfig();
+		config.getTimer().scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				freeDiskCheck();
+			}
+		}, 5000, 5000);
+		(new Timer("Spool Checkpoint", true)).scheduleAtFixedRate(new TimerTask() {
+			public void run() {
+				checkpoint();
+			}
+		}, 5000, 5000);
 	}
-	private void cleardir(String dir) {
-		if (dqs.get(dir) != null) {
+	private void checkpoint() {
+		long interval = config.getSpoolCheckpointInterval();
+		long now = System.currentTimeMillis();
+		if (interval <= 0 || now < lastcheckpoint + interval) {
+			return;
+		}
+		lastcheckpoint = now;
+		for (DeliveryQueue dq: dqs.values()) {
+			try {
+				dq.checkpoint();
+			} catch (Exception e) {
+				logger.warn("NODE0511 Unable to checkpoint delivery queue " + dq.getDestInfo().getSpool(), e);
+			}
+		}
+	}
+	private void cleardir(String dir, HashSet<String> live) {
+		if (live.contains(dir)) {
 			return;
 		}
 		File fdir = new File(dir);
 		for (File junk: fdir.listFiles()) {
-			if (junk.isFile()) {
-				junk.delete();
+			if (junk.isDirectory()) {
+				// time bucket or .quarantine
+				for (File junk2: junk.listFiles()) {
+					junk2.delete();
+				}
 			}
+			junk.delete();
 		}
 		fdir.delete();
 	}
-	private void freeDiskCheck() {
-		File spoolfile = new File(config.getSpoolBase());
-		long tspace = spoolfile.getTotalSpace();
+	private void sampleDisk() {
+		for (Volume v: volumes) {
+			File spoolfile = new File(v.base);
+			v.total = spoolfile.getTotalSpace();
+			v.used.set(0);
+			v.free = spoolfile.getUsableSpace();
+		}
+	}
+	private synchronized void freeDiskCheck() {
+		sampleDisk();
+		if (dqs.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < volumes.length; i++) {
+			freeDiskCheck(i);
+		}
+	}
+	private void freeDiskCheck(int volume) {
+		File spoolfile = new File(volumes[volume].base);
+		long tspace = volumes[volume].total;
 		long start = (long)(tspace * fdstart);
 		long stop = (long)(tspace * fdstop);
-		long cur = spoolfile.getUsableSpace();
+		long cur = volumes[volume].free;
 		if (cur >= start) {
 			return;
 		}
-		Vector<DelItem> cv = new Vector<DelItem>();
-		for (String sdir: dqs.keySet()) {
-			for (String meta: (new File(sdir)).list()) {
-				if (!meta.endsWith(".M") || meta.charAt(0) == '.') {
-					continue;
-				}
-				cv.add(new DelItem(meta.substring(0, meta.length() - 2), sdir));
+		logger.info("NODE0501 Free disk space below red threshold.  current=" + cur + " red=" + start + " total=" + tspace + " volume=" + spoolfile);
+		DeliveryQueue dq;
+		while ((dq = evictions.choose(volume)) != null) {
+			String pubid = dq.getOldest(volume);
+			if (pubid == null) {
+				continue;
 			}
-		}
-		DelItem[] items = cv.toArray(new DelItem[cv.size()]);
-		Arrays.sort(items);
-		logger.info("NODE0501 Free disk space below red threshold.  current=" + cur + " red=" + start + " total=" + tspace);
-		for (DelItem item: items) {
-			long amount = dqs.get(item.getSpool()).cancelTask(item.getPublishId());
-			logger.info("NODE0502 Attempting to discard " + item.getSpool() + "/" + item.getPublishId() + " to free up disk");
+			long amount = dq.cancelTask(pubid);
+			logger.info("NODE0502 Attempting to discard " + dq.getDestInfo().getSpool(volume) + "/" + pubid + " to free up disk");
 			if (amount > 0) {
 				cur += amount;
 				if (cur >= stop) {
 					cur = spoolfile.getUsableSpace();
 				}
 				if (cur >= stop) {
-					logger.info("NODE0503 Free disk space at or above yellow threshold.  current=" + cur + " yellow=" + stop + " total=" + tspace);
+					logger.info("NODE0503 Free disk space at or above yellow threshold.  current=" + cur + " yellow=" + stop + " total=" + tspace + " volume=" + spoolfile);
 					return;
 				}
 			}
 		}
 		cur = spoolfile.getUsableSpace();
 		if (cur >= stop) {
-			logger.info("NODE0503 Free disk space at or above yellow threshold.  current=" + cur + " yellow=" + stop + " total=" + tspace);
+			logger.info("NODE0503 Free disk space at or above yellow threshold.  current=" + cur + " yellow=" + stop + " total=" + tspace + " volume=" + spoolfile);
 			return;
 		}
-		logger.warn("NODE0504 Unable to recover sufficient disk space to reach green status.  current=" + cur + " yellow=" + stop + " total=" + tspace);
+		logger.warn("NODE0504 Unable to recover sufficient disk space to reach green status.  current=" + cur + " yellow=" + stop + " total=" + tspace + " volume=" + spoolfile);
 	}
 	private void cleardirs() {
-		String basedir = config.getSpoolBase();
+		HashSet<String> live = new HashSet<String>();
+		for (DeliveryQueue dq: dqs.values()) {
+			DestInfo di = dq.getDestInfo();
+			for (int i = 0; i < di.getVolumes(); i++) {
+				live.add(di.getSpool(i));
+			}
+		}
+		for (Volume v: volumes) {
+			cleardirs(v.base, live);
+		}
+	}
+	private void cleardirs(String basedir, HashSet<String> live) {
 		String nbase = basedir + "/n";
 		for (String nodedir: (new File(nbase)).list()) {
 			if (!nodedir.startsWith(".")) {
-				cleardir(nbase + "/" + nodedir);
+				cleardir(nbase + "/" + nodedir, live);
 			}
 		}
 		String sxbase = basedir + "/s";
@@ -147,7 +261,7 @@ public class Delivery {
 			File sxf = new File(sxbase + "/" + sxdir);
 			for (String sdir: sxf.list()) {
 				if (!sdir.startsWith(".")) {
-					cleardir(sxbase + "/" + sxdir + "/" + sdir);
+					cleardir(sxbase + "/" + sxdir + "/" + sdir, live);
 				}
 			}
 			sxf.delete();  // won't if anything still in it
@@ -159,27 +273,71 @@ public class Delivery {
 		}
 		fdstart = config.getFreeDiskStart();
 		fdstop = config.getFreeDiskStop();
+		fdpublish = config.getFreeDiskPublish();
+		// Always a new policy, since feed priorities may have changed
+		String ep = config.getEvictionPolicy();
+		if ("largestfeed".equalsIgnoreCase(ep)) {
+			evictions.setPolicy(new EvictionPolicy.LargestFeedFirst());
+		} else if ("lowestpriority".equalsIgnoreCase(ep)) {
+			evictions.setPolicy(new EvictionPolicy.LowestPriorityFirst(config));
+		} else {
+			evictions.setPolicy(new EvictionPolicy.OldestFirst());
+		}
 		threads = config.getDeliveryThreads();
 		if (threads < 1) {
 			threads = 1;
 		}
+		async = config.isAsyncDelivery();
+		if (async && engine == null) {
+			try {
+				engine = new AsyncDelivery(config.getAsyncDeliveryThreads(), config.getAsyncMaxTransfers(), config.getAsyncMaxIdle(), config.getAsyncIdleTimeout());
+			} catch (Exception e) {
+				logger.error("NODE0505 Unable to start asynchronous delivery engine - using delivery threads", e);
+				async = false;
+			}
+		} else if (engine != null) {
+			engine.setIdleLimits(config.getAsyncMaxIdle(), config.getAsyncIdleTimeout());
+		}
+		if (async) {
+			threads = 0;
+		}
 		DestInfo[] alldis = config.getAllDests();
-		DeliveryQueue[] nqs = new DeliveryQueue[alldis.length];
-		qpos = 0;
 		Hashtable<String, DeliveryQueue> ndqs = new Hashtable<String, DeliveryQueue>();
+		Vector<DeliveryQueue> newqs = new Vector<DeliveryQueue>();
 		for (DestInfo di: alldis) {
 			String spl = di.getSpool();
 			DeliveryQueue dq = dqs.get(spl);
 			if (dq == null) {
 				dq = new DeliveryQueue(config, di);
+				dq.setListener(listener);
+				dq.setEvictionIndex(evictions);
+				newqs.add(dq);
 			} else {
 				dq.config(di);
 			}
 			ndqs.put(spl, dq);
-			nqs[qpos++] = dq;
 		}
-		queues = nqs;
+		Hashtable<String, DeliveryQueue> odqs = dqs;
 		dqs = ndqs;
+		for (Map.Entry<String, DeliveryQueue> me: odqs.entrySet()) {
+			if (ndqs.get(me.getKey()) == null) {
+				me.getValue().setEvictionIndex(null);
+				evictions.remove(me.getValue());
+				me.getValue().releaseSegments();
+			}
+		}
+		// Scan after the new queues are visible to queueFile() so that
+		// no file linked in the meantime is missed.
+		for (DeliveryQueue dq: newqs) {
+			dq.rescan();
+		}
+		// Once every queue has counted the files it has in segments,
+		// remove the segments none of them need
+		SegmentSpool.sweepAll();
+		// Limits, or the delivery engine, may have changed.
+		for (DeliveryQueue dq: ndqs.values()) {
+			makeReady(dq);
+		}
 		cleardirs();
 		while (curthreads < threads) {
 			curthreads++;
@@ -192,49 +350,254 @@ public class Delivery {
 				}
 			}).start();
 		}
-		nextcheck = 0;
-		notify();
+		if (async && curasync == 0) {
+			curasync++;
+			(new Thread() {
+				{
+					setName("Async Delivery Dispatcher");
+				}
+				public void run() {
+					dodeliveryasync();
+				}
+			}).start();
+		}
+	}
+	private void makeReady(DeliveryQueue dq) {
+		if (dq.markQueued()) {
+			ready.add(dq);
+		}
 	}
 	private void dodelivery() {
 		DeliveryQueue dq;
-		while ((dq = getNextQueue()) != null) {
-			dq.run();
+		while ((dq = getNextQueue(false)) != null) {
+			try {
+				dq.run();
+			} finally {
+				doneWith(dq);
+			}
 		}
 	}
-	private synchronized DeliveryQueue getNextQueue() {
+	private void dodeliveryasync() {
+		DeliveryQueue dq;
 		while (true) {
-			if (curthreads > threads) {
-				curthreads--;
-				return(null);
+			try {
+				engine.acquire();
+			} catch (InterruptedException ie) {
+				continue;
 			}
-			if (qpos < queues.length) {
-				DeliveryQueue dq = queues[qpos++];
-				if (dq.isSkipSet()) {
+			if ((dq = getNextQueue(true)) == null) {
+				engine.release();
+				return;
+			}
+			final DeliveryQueue fdq = dq;
+			if (dq.getDestInfo().isBatching()) {
+				final DeliveryTask[] batch = dq.getBatch();
+				if (batch == null) {
+					engine.release();
+					doneWith(dq);
 					continue;
 				}
-				nextcheck = 0;
-				notify();
-				return(dq);
-			}
-			long now = System.currentTimeMillis();
-			if (now < nextcheck) {
-				try {
-					wait(nextcheck + 500 - now);
-				} catch (Exception e) {
+				// the engine sends one file per request, so a batch
+				// gets a thread of its own, holding the engine slot
+				(new Thread() {
+					{
+						setName("Batch Delivery");
+					}
+					public void run() {
+						try {
+							(new DeliveryBatch(fdq, batch)).run();
+						} finally {
+							engine.release();
+							doneWith(fdq);
+						}
+					}
+				}).start();
+				continue;
+			}
+			DeliveryTask t = dq.getNext();
+			if (t == null) {
+				engine.release();
+				doneWith(dq);
+				continue;
+			}
+			t.runAsync(engine, new Runnable() {
+				public void run() {
+					doneWith(fdq);
 				}
-				now = System.currentTimeMillis();
+			});
+		}
+	}
+	private void doneWith(DeliveryQueue dq) {
+		dq.release();
+		if (dq.hasCapacity() && !dq.isSkipSet()) {
+			makeReady(dq);
+		}
+	}
+	private synchronized boolean isSurplus(boolean dispatcher) {
+		if (dispatcher ? async : curthreads <= threads) {
+			return(false);
+		}
+		if (dispatcher) {
+			curasync--;
+		} else {
+			curthreads--;
+		}
+		return(true);
+	}
+	private DeliveryQueue getNextQueue(boolean dispatcher) {
+		while (!isSurplus(dispatcher)) {
+			DeliveryQueue dq;
+			try {
+				dq = ready.poll(5, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+				continue;
 			}
-			if (now >= nextcheck) {
-				nextcheck = now + 5000;
-				qpos = 0;
-				freeDiskCheck();
+			if (dq == null) {
+				continue;
+			}
+			dq.clearQueued();
+			if (dqs.get(dq.getDestInfo().getSpool()) != dq) {
+				// queue has been removed by a configuration change
+				continue;
+			}
+			if (!dq.claim()) {
+				continue;
+			}
+			if (dq.hasCapacity()) {
+				makeReady(dq);
+			}
+			return(dq);
+		}
+		return(null);
+	}
+	/**
+	 *	Notify the delivery queue for a spool directory that a file has
+	 *	been linked into it, and made durable.
+	 *	@param spool	The spool directory (on the first spool volume)
+	 *	@param pubid	The publish ID of the file
+	 *	@param length	The length of the data file
+	 *	@param volume	The index of the spool volume the file is on
+	 */
+	public void queueFile(String spool, String pubid, long length, int volume) {
+		DeliveryQueue dq = dqs.get(spool);
+		if (dq != null) {
+			dq.addFile(pubid, length, volume);
+		}
+	}
+	/**
+	 *	Notify the delivery queue for a spool directory that a file in
+	 *	a segment is to be delivered to it.  The queue records the file
+	 *	but does not deliver it until queueSegmentFile() is called.
+	 *	@param spool	The spool directory (on the first spool volume)
+	 *	@param pubid	The publish ID of the file
+	 *	@param ref	The location of the file in the segment
+	 *	@param volume	The index of the spool volume the segment is on
+	 *	@return	The journal the queue recorded the file in, or null if there is no such queue
+	 */
+	public File addSegmentFile(String spool, String pubid, SegmentSpool.Ref ref, int volume) {
+		DeliveryQueue dq = dqs.get(spool);
+		if (dq == null || !dq.addSegmentFile(pubid, ref, volume)) {
+			return(null);
+		}
+		return(dq.getSegmentJournal());
+	}
+	/**
+	 *	Notify the delivery queue for a spool directory that a file in
+	 *	a segment, recorded by addSegmentFile(), has been made durable.
+	 *	@param spool	The spool directory (on the first spool volume)
+	 *	@param pubid	The publish ID of the file
+	 */
+	public void queueSegmentFile(String spool, String pubid) {
+		DeliveryQueue dq = dqs.get(spool);
+		if (dq != null) {
+			dq.queueSegmentFile(pubid);
+		}
+	}
+	/**
+	 *	Notify the delivery queue for a spool directory that a file in
+	 *	a segment, recorded by addSegmentFile(), is not to be delivered.
+	 *	@param spool	The spool directory (on the first spool volume)
+	 *	@param pubid	The publish ID of the file
+	 */
+	public void dropSegmentFile(String spool, String pubid) {
+		DeliveryQueue dq = dqs.get(spool);
+		if (dq != null) {
+			dq.dropSegmentFile(pubid);
+		}
+	}
+	/**
+	 *	Choose the spool volume to place a publication on.  How it is
+	 *	chosen depends on the SpoolPlacement property: "roundrobin" takes
+	 *	each volume in turn; "feedhash" keeps each feed on one volume
+	 *	(node to node transfers, which have no feed, go to the volume with
+	 *	the most free space); and "leastused", the default, takes the
+	 *	volume with the largest fraction of its space free.
+	 *	@param feedid	The feed being published to, or null
+	 *	@return	The index of the spool volume
+	 */
+	public int chooseVolume(String feedid) {
+		int n = volumes.length;
+		if (n == 1) {
+			return(0);
+		}
+		if ("roundrobin".equalsIgnoreCase(placement)) {
+			return((nextvolume.getAndIncrement() & Integer.MAX_VALUE) % n);
+		}
+		if (feedid != null && "feedhash".equalsIgnoreCase(placement)) {
+			return((feedid.hashCode() & Integer.MAX_VALUE) % n);
+		}
+		int best = 0;
+		double bestfree = -1;
+		for (int i = 0; i < n; i++) {
+			Volume v = volumes[i];
+			double free = v.total <= 0 ? 0 : (double)v.getFree() / v.total;
+			if (free > bestfree) {
+				best = i;
+				bestfree = free;
+			}
+		}
+		return(best);
+	}
+	/**
+	 *	Check whether a publication should be refused, to hold back its
+	 *	publisher, because the spool is under pressure.  That is the
+	 *	case if accepting it would leave less free disk space than
+	 *	PUBLISH_FREE_DISK_PERCENT, or if the queue for any of its
+	 *	destinations has more files than the feed's PUBLISH_MAX_BACKLOG.
+	 *	Rather than checking the disk for every publication, the free
+	 *	space is sampled every 5 seconds, and the size of each accepted
+	 *	publication is subtracted from it until the next sample.
+	 *	@param feedid	The feed being published to
+	 *	@param targets	The destinations of the publication
+	 *	@param clen	The length of the publication
+	 *	@param volume	The index of the spool volume the publication is placed on
+	 *	@return	null if the publication may be accepted, otherwise the reason it may not
+	 */
+	public String checkPressure(String feedid, Target[] targets, long clen, int volume) {
+		Volume v = volumes[volume];
+		if (fdpublish > 0 && v.getFree() - clen < (long)(v.total * fdpublish)) {
+			return("free disk space low");
+		}
+		int max = config.getPublishMaxBacklog(feedid);
+		if (max > 0) {
+			for (Target t: targets) {
+				DestInfo di = t.getDestInfo();
+				if (di == null) {
+					continue;
+				}
+				DeliveryQueue dq = dqs.get(di.getSpool());
+				if (dq != null && dq.getBacklog() >= max) {
+					return("backlog for " + di.getName() + " too large");
+				}
 			}
 		}
+		v.used.addAndGet(clen);
+		return(null);
 	}
 	/**
 	 *	Reset the retry timer for a delivery queue
 	 */
-	public synchronized void resetQueue(String spool) {
+	public void resetQueue(String spool) {
 		if (spool != null) {
 			DeliveryQueue dq = dqs.get(spool);
 			if (dq != null) {
@@ -0,0 +1,229 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ *	Delivery of several files to a subscriber in a single request.
+ *	<p>
+ *	A subscription with a batchFiles delivery attribute greater than 1
+ *	receives its files in batches, rather than one file per request.
+ *	The batch is sent as a POST, to the delivery URL itself, with a
+ *	multipart/mixed body holding one part per file.  The headers of a
+ *	part are:
+ *	<ul>
+ *	<li>X-ATT-DR-PUBLISH-ID - The publish ID of the file
+ *	<li>X-ATT-DR-METHOD - PUT or DELETE, the method the file would
+ *	otherwise have been delivered with
+ *	<li>X-ATT-DR-FILE-ID - The file ID, which would otherwise have been
+ *	appended to the delivery URL
+ *	<li>Content-Length - The length of the part's body
+ *	<li>The headers the file would otherwise have been delivered with,
+ *	such as X-ATT-DR-META and Content-Type
+ *	</ul>
+ *	Each part's body is the file's data, which is empty for a DELETE or a
+ *	meta data only subscription.
+ *	<p>
+ *	If the subscriber responds with a 2XX status, the body of the response
+ *	must be text with a line for each file, consisting of its publish ID,
+ *	a space, and the HTTP status the file would have gotten had it been
+ *	delivered by itself, optionally followed by a space and a message.
+ *	Each file's outcome is then reported, and logged, just as if it had
+ *	been delivered by itself, so only the files refused with a 5XX status
+ *	are retried.  A file with no line in the response is treated as if
+ *	the subscriber could not be reached.  Any other response status
+ *	applies to every file in the batch.
+ */
+public class DeliveryBatch implements Runnable	{
+	private static Random	random = new Random();
+	private DeliveryTaskHelper	dth;
+	private DeliveryTask[]	tasks;
+	/**
+	 *	Create a batch of files to deliver in one request
+	 *	@param dth	The delivery task helper for the queue the files are in
+	 *	@param tasks	The files
+	 */
+	public DeliveryBatch(DeliveryTaskHelper dth, DeliveryTask[] tasks) {
+		this.dth = dth;
+		this.tasks = tasks;
+	}
+	/**
+	 *	Attempt delivery of the batch
+	 */
+	public void run() {
+		DestInfo di = dth.getDestInfo();
+		String boundary = "DR-" + Long.toHexString(random.nextLong() & Long.MAX_VALUE) + "-" + tasks.length;
+		Vector<DeliveryTask> sending = new Vector<DeliveryTask>();
+		Vector<byte[]> heads = new Vector<byte[]>();
+		long total = 0;
+		for (DeliveryTask t: tasks) {
+			try {
+				t.prepare();
+				StringBuffer sb = new StringBuffer();
+				if (!sending.isEmpty()) {
+					sb.append("\r\n");
+				}
+				sb.append("--").append(boundary).append("\r\n");
+				sb.append("X-ATT-DR-PUBLISH-ID: ").append(t.getPublishId()).append("\r\n");
+				sb.append("X-ATT-DR-METHOD: ").append(t.getMethod()).append("\r\n");
+				sb.append("X-ATT-DR-FILE-ID: ").append(t.getFileId()).append("\r\n");
+				sb.append("Content-Length: ").append(t.getLength()).append("\r\n");
+				for (String[] nv: t.getHeaders()) {
+					sb.append(nv[0]).append(": ").append(nv[1]).append("\r\n");
+				}
+				sb.append("\r\n");
+				byte[] head = sb.toString().getBytes("UTF-8");
+				heads.add(head);
+				sending.add(t);
+				total += head.length + t.getLength();
+			} catch (Exception e) {
+				dth.reportException(t, e);
+			}
+		}
+		if (sending.isEmpty()) {
+			return;
+		}
+		byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes();
+		total += tail.length;
+		String url = dth.getDestURL("");
+		url = url.substring(0, url.length() - 1);
+		int[] status = new int[sending.size()];
+		String[] msgs = new String[sending.size()];
+		try {
+			HttpURLConnection uc = (HttpURLConnection)(new URL(url)).openConnection();
+			if (uc instanceof HttpsURLConnection) {
+				((HttpsURLConnection)uc).setSSLSocketFactory(DeliverySocketFactory.getInstance());
+				NodeStats.inc("delivery.https.requests");
+			}
+			uc.setConnectTimeout(dth.getConnectTimeout());
+			uc.setReadTimeout(dth.getReadTimeout());
+			uc.setInstanceFollowRedirects(false);
+			uc.setRequestMethod("POST");
+			uc.setRequestProperty("Content-Length", Long.toString(total));
+			uc.setRequestProperty("Content-Type", "multipart/mixed; boundary=" + boundary);
+			uc.setRequestProperty("Authorization", di.getAuth());
+			if (di.isUsing100()) {
+				uc.setRequestProperty("Expect", "100-continue");
+			}
+			uc.setFixedLengthStreamingMode(total);
+			uc.setDoOutput(true);
+			OutputStream os = null;
+			try {
+				os = uc.getOutputStream();
+			} catch (ProtocolException pe) {
+				// Rcvd error instead of 100-continue
+			}
+			if (os != null) {
+				WritableByteChannel wbc = Channels.newChannel(os);
+				for (int i = 0; i < sending.size(); i++) {
+					DeliveryTask t = sending.get(i);
+					os.write(heads.get(i));
+					long length = t.getLength();
+					if (length == 0) {
+						continue;
+					}
+					FileChannel fc = (new FileInputStream(t.getDataFile())).getChannel();
+					try {
+						long offset = t.getDataOffset();
+						long sofar = 0;
+						while (sofar < length) {
+							long n = fc.transferTo(offset + sofar, length - sofar, wbc);
+							if (n <= 0) {
+								throw new IOException("Unexpected problem reading data file " + t.getDataFile());
+							}
+							sofar += n;
+						}
+					} finally {
+						fc.close();
+					}
+				}
+				os.write(tail);
+				os.close();
+			}
+			int rc = uc.getResponseCode();
+			String rmsg = uc.getResponseMessage();
+			if (rc < 200 || rc > 299) {
+				boolean redirect = (rc >= 300 && rc <= 399);
+				if (redirect) {
+					rmsg = uc.getHeaderField("Location");
+				}
+				drain(uc.getErrorStream());
+				for (int i = 0; i < status.length; i++) {
+					status[i] = rc;
+					msgs[i] = (redirect && rmsg != null) ? (rmsg + "/" + sending.get(i).getFileId()) : rmsg;
+				}
+			} else {
+				HashMap<String, String> results = new HashMap<String, String>();
+				BufferedReader br = new BufferedReader(new InputStreamReader(uc.getInputStream(), "UTF-8"));
+				try {
+					String s;
+					while ((s = br.readLine()) != null) {
+						s = s.trim();
+						int i = s.indexOf(' ');
+						if (i > 0) {
+							results.put(s.substring(0, i), s.substring(i + 1));
+						}
+					}
+				} finally {
+					br.close();
+				}
+				for (int i = 0; i < status.length; i++) {
+					status[i] = -1;
+					String r = results.get(sending.get(i).getPublishId());
+					if (r == null) {
+						continue;
+					}
+					int j = r.indexOf(' ');
+					if (j > 0) {
+						msgs[i] = r.substring(j + 1);
+						r = r.substring(0, j);
+					}
+					try {
+						status[i] = Integer.parseInt(r);
+					} catch (Exception e) {
+					}
+				}
+			}
+		} catch (Exception e) {
+			for (DeliveryTask t: sending) {
+				dth.reportException(t, e);
+			}
+			return;
+		}
+		for (int i = 0; i < status.length; i++) {
+			DeliveryTask t = sending.get(i);
+			if (status[i] < 100 || status[i] > 599) {
+				dth.reportException(t, new IOException("No valid status for " + t.getPublishId() + " in batch response"));
+			} else {
+				dth.reportStatus(t, status[i], null, msgs[i]);
+			}
+		}
+	}
+	private static void drain(InputStream is) throws IOException {
+		if (is == null) {
+			return;
+		}
+		byte[] buf = new byte[4096];
+		while (is.read(buf) > 0) {
+		}
+		is.close();
+	}
+}
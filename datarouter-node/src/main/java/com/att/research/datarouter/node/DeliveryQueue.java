@@ -17,54 +17,221 @@ package com.att.research.datarouter.node;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  *	Mechanism for monitoring and controlling delivery of files to a destination.
  *	<p>
  *	The DeliveryQueue class maintains lists of DeliveryTasks for a single
  *	destination (a subscription or another data router node) and assigns
- *	delivery threads to try to deliver them.  It also maintains a delivery
+ *	delivery threads to try to deliver them.  It also maintains delivery
  *	status that causes it to back off on delivery attempts after a failure.
  *	<p>
- *	If the most recent delivery result was a failure, then no more attempts
- *	will be made for a period of time.  Initially, and on the first failure
- *	following a success, this delay will be DeliveryQueueHelper.getInitFailureTimer() (milliseconds).
- *	If, after this delay, additional failures occur, each failure will
- *	multiply the delay by DeliveryQueueHelper.getFailureBackoff() up to a
- *	maximum delay specified by DeliveryQueueHelper.getMaxFailureTimer().
- *	Note that this behavior applies to the delivery queue as a whole and not
- *	to individual files in the queue.  If multiple files are being
- *	delivered and one fails, the delay will be started.  If a second
- *	delivery fails while the delay was active, it will not change the delay
- *	or change the duration of any subsequent delay.
- *	If, however, it succeeds, it will cancel the delay.
+ *	Back off is tracked per file.  When the destination refuses a file
+ *	with a 5XX response, that file is not retried for a period of time,
+ *	but other files continue to be delivered.  The first delay is
+ *	DeliveryQueueHelper.getInitFailureTimer() (milliseconds), and each
+ *	further refusal multiplies it by DeliveryQueueHelper.getFailureBackoff()
+ *	up to a maximum of DeliveryQueueHelper.getMaxFailureTimer().  If
+ *	DeliveryQueueHelper.getMaxAttempts() is non-zero, a file still being
+ *	refused after that many attempts is moved to the .quarantine
+ *	subdirectory of the spool directory and logged as expired.  The
+ *	attempt count and next attempt time of every file being retried are
+ *	appended to a journal, the .retry file in the spool directory, so that
+ *	they survive a restart.  The journal is rewritten when the queue is
+ *	created and whenever it has grown to more than twice the number of
+ *	files it describes.
  *	<p>
- *	The queue maintains 3 collections of files to deliver: A todo list of
+ *	The queue as a whole also backs off, with the same timers, when it
+ *	can't reach the destination at all, or when several different files
+ *	in a row have been refused.  In that case no attempts are made until
+ *	the delay has passed.  A success cancels the delay.
+ *	<p>
+ *	The queue maintains 3 collections of files to deliver: A todo index of
  *	files that will be attempted, a working set of files that are being
- *	attempted, and a retry set of files that were attempted and failed.
- *	Whenever the todo list is empty and needs to be refilled, a scan of the
- *	spool directory is made and the file names sorted.  Any files in the working set are ignored.
- *	If a DeliveryTask for the file is in the retry set, then that delivery
- *	task is placed on the todo list.  Otherwise, a new DeliveryTask for the
- *	file is created and placed on the todo list.
- *	If, when a DeliveryTask is about to be removed from the todo list, its
+ *	attempted, and a waiting set, ordered by next attempt time, of files
+ *	that were refused and are backing off.
+ *	The todo index is ordered by publish ID and is fed directly, via
+ *	addFile(), as files are linked into the spool directory.  The spool
+ *	directory itself is only scanned once, by rescan(), when the queue is
+ *	created, to pick up files left over from a previous run.
+ *	Files in the waiting set move back onto the todo index once their next
+ *	attempt time has passed.  DeliveryTasks are only created (and their
+ *	meta data files read) when they reach the head of the todo index.
+ *	If, when a DeliveryTask is about to be removed from the todo index, its
  *	age exceeds DeliveryQueueHelper.getExpirationTimer(), then it is instead
  *	marked as expired.
  *	<p>
+ *	Every file in the queue, in any of the 3 collections, is also in an
+ *	index, ordered by publish ID, of data file lengths.  The index gives
+ *	the number and total length of the files in the queue without a scan
+ *	of the spool directory, and the oldest file to discard when disk
+ *	space runs low.
+ *	<p>
+ *	When the node has more than one spool volume, the destination has a
+ *	spool directory on each, and each file is in the one on the volume
+ *	it was published to.  The index records the volume of each file.
+ *	Files from all volumes are delivered in a single publish ID order,
+ *	and a separate ordered set of the files on each volume finds the
+ *	oldest file on a particular volume.  The retry journal is kept in
+ *	the spool directory on the first volume, while files are quarantined
+ *	on their own volumes.
+ *	<p>
+ *	Whenever the oldest file that could be discarded from a volume, or
+ *	the total length of the files on it, changes, the queue tells its
+ *	EvictionIndex, if it has one, so that the file to discard when disk
+ *	space runs low can be found without looking through the queues.
+ *	<p>
+ *	Within a spool directory, files are in time bucket subdirectories
+ *	(see NodeUtils.getSpoolBucket()).  The index counts the files in
+ *	each bucket, and a bucket is removed once its last file is gone.
+ *	Files left directly in a spool directory by an earlier version are
+ *	moved into their buckets by rescan().
+ *	<p>
+ *	Small files may instead be in a SegmentSpool.  The queue records
+ *	the location of each such file when it is added, and removes it
+ *	once the file is delivered or given up on, by appending to a journal,
+ *	the .segments file in the spool directory, which rescan() reads to
+ *	pick the files up again after a restart.  The journal is compacted
+ *	in the same way as the retry journal.  A file in a segment is held
+ *	back from delivery, once recorded, until the journal has been synced
+ *	and the file is queued, just as a linked file is not queued until it
+ *	has been synced.
+ *	<p>
+ *	So that a queue with a large backlog can resume delivery soon after
+ *	a restart, the files in the queue are periodically written to a
+ *	checkpoint (see QueueCheckpoint), the .index file in the spool
+ *	directory.  rescan() takes the files in a time bucket from the
+ *	checkpoint, rather than listing the bucket, if the bucket has not
+ *	been modified since the checkpoint was taken.
+ *	<p>
+ *	Files that have been delivered, have expired, or have failed
+ *	permanently are not deleted by the thread that finished with them.
+ *	Instead, the queue appends a tombstone for the file to a journal, the
+ *	.done file in the spool directory, and hands the file to the
+ *	SpoolReclaimer, which deletes it in the background and then tells
+ *	the queue.  The journal is removed once every file in it is gone.
+ *	After a restart, rescan() deletes the files in the journal, rather
+ *	than delivering them again.  Files in segments are released
+ *	immediately, since that seldom deletes anything.
+ *	<p>
  *	A delivery queue also maintains a skip flag.  This flag is true if the
- *	failure timer is active or if no files are found in a directory scan.
+ *	failure timer is active or if there are no files to deliver.
+ *	<p>
+ *	Rather than being polled, a queue tells its Listener, if it has one,
+ *	when it may have become ready for delivery: when a file is added to it,
+ *	when the retry timer is reset, and, via a timed notification, when the
+ *	failure timer will expire or a waiting file will be due.
+ *	<p>
+ *	Up to DestInfo.getMaxInFlight() files may be in the working set at
+ *	once.  Delivery threads claim the queue with claim() before calling
+ *	run() and release it afterwards, so that no more threads are assigned
+ *	to a queue than it has files it may deliver concurrently.
+ *	<p>
+ *	If the destination takes files in batches (see DestInfo.isBatching()),
+ *	run() instead takes several files at a time, with getBatch(), and
+ *	delivers them in a single request (see DeliveryBatch).  The outcome
+ *	of each file is still reported, logged, and retried separately.
+ *	DestInfo.getMaxInFlight() then limits the number of requests in
+ *	progress rather than the number of files.
  */
 public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
+	/**
+	 *	Receiver of notifications that a delivery queue may be ready
+	 */
+	public interface Listener	{
+		/**
+		 *	The queue may have files ready for delivery now
+		 */
+		public void queueReady(DeliveryQueue dq);
+		/**
+		 *	The queue may have files ready for delivery after the specified time
+		 *	@param dq	The queue
+		 *	@param when	The time (milliseconds since 1970)
+		 */
+		public void queueReadyAfter(DeliveryQueue dq, long when);
+	}
+	/**
+	 *	Retry state of a file
+	 */
+	private static class Retry implements Comparable<Retry>	{
+		private String	pubid;
+		private int	attempts;
+		private long	next;
+		private DeliveryTask	dt;
+		public Retry(String pubid) {
+			this.pubid = pubid;
+		}
+		public int compareTo(Retry o) {
+			if (next != o.next) {
+				return(next < o.next ? -1 : 1);
+			}
+			return(pubid.compareTo(o.pubid));
+		}
+	}
+	/**
+	 *	Index entry for a file
+	 */
+	private static class Spooled	{
+		private long	length;
+		private int	volume;
+		public Spooled(long length, int volume) {
+			this.length = length;
+			this.volume = volume;
+		}
+	}
+	private static class Held	{
+		private SegmentSpool.Ref	ref;
+		private int	volume;
+		public Held(SegmentSpool.Ref ref, int volume) {
+			this.ref = ref;
+			this.volume = volume;
+		}
+	}
+	private static final int	REFUSALS_BEFORE_BACKOFF = 3;
+	/**
+	 *	How long before a checkpoint a bucket must have last been
+	 *	modified for the checkpoint to be trusted, to allow for the
+	 *	granularity of file modification times
+	 */
+	private static final long	CHECKPOINT_SLACK = 2000;
 	private DeliveryQueueHelper	dqh;
 	private DestInfo	di;
 	private Hashtable<String, DeliveryTask>	working = new Hashtable<String, DeliveryTask>();
-	private Hashtable<String, DeliveryTask> retry = new Hashtable<String, DeliveryTask>();
-	private int	todoindex;
+	private TreeSet<Retry>	waiting = new TreeSet<Retry>();
+	private HashMap<String, Retry>	retries = new HashMap<String, Retry>();
+	private String	lastrefused;
+	private int	refusals;
+	private long	wakeup;
+	private int	jlines;
 	private boolean	failed;
 	private long	failduration;
 	private long	resumetime;
+	private int	claimed;
+	private Listener	listener;
+	private AtomicBoolean	queued = new AtomicBoolean();
+	private TreeMap<String, Spooled>	index = new TreeMap<String, Spooled>();
+	private long	bytes;
+	private volatile int	backlog;
+	private volatile long	backlogbytes;
+	private long[]	volbytes;
+	private HashMap<String, Integer>	buckets = new HashMap<String, Integer>();
+	private HashMap<String, SegmentSpool.Ref>	segments = new HashMap<String, SegmentSpool.Ref>();
+	private HashMap<String, Held>	held = new HashMap<String, Held>();
+	private ArrayList<TreeSet<String>>	volindex;
+	private EvictionIndex	evictions;
+	private String[]	oldest;
+	private long[]	reported;
+	private boolean	removed;
+	private int	sjlines;
+	private HashMap<String, Integer>	reclaiming = new HashMap<String, Integer>();
+	private OutputStream	tombstones;
+	private int	tlines;
+	private long	changes;
+	private long	checkpointed;
 	File	dir;
-	private Vector<DeliveryTask> todo = new Vector<DeliveryTask>();
+	private File[]	dirs;
+	private TreeMap<String, DeliveryTask> todo = new TreeMap<String, DeliveryTask>();
 	/**
 	 *	Try to cancel a delivery task.
 	 *	@return	The length of the task in bytes or 0 if the task cannot be cancelled.
@@ -73,19 +240,19 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 		if (working.get(pubid) != null) {
 			return(0);
 		}
-		DeliveryTask dt = retry.get(pubid);
-		if (dt == null) {
-			for (int i = todoindex; i < todo.size(); i++) {
-				DeliveryTask xdt = todo.get(i);
-				if (xdt.getPublishId().equals(pubid)) {
-					dt = xdt;
-					break;
-				}
+		DeliveryTask dt = todo.remove(pubid);
+		Retry r = retries.remove(pubid);
+		if (r != null) {
+			waiting.remove(r);
+			if (dt == null) {
+				dt = r.dt;
 			}
 		}
+		int volume = unindex(pubid);
 		if (dt == null) {
-			dt = new DeliveryTask(this, pubid);
+			dt = new DeliveryTask(this, pubid, dirs[volume].getPath(), segments.get(pubid));
 			if (dt.getFileId() == null) {
+				forgetSegment(pubid);
 				return(0);
 			}
 		}
@@ -94,6 +261,7 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 		}
 		StatusLog.logExp(dt.getPublishId(), dt.getFeedId(), dt.getSubId(), dt.getURL(), dt.getMethod(), dt.getCType(), dt.getLength(), "diskFull", dt.getAttempts());
 		dt.clean();
+		cleaned(pubid, volume);
 		return(dt.getLength());
 	}
 	/**
@@ -101,25 +269,129 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 	 */
 	public synchronized void markSuccess(DeliveryTask task) {
 		working.remove(task.getPublishId());
-		task.clean();
+		retries.remove(task.getPublishId());
+		done(task, unindex(task.getPublishId()));
 		failed = false;
 		failduration = 0;
+		refusals = 0;
+		lastrefused = null;
 	}
 	/**
 	 *	Mark that a delivery task has expired.
 	 */
 	public synchronized void markExpired(DeliveryTask task) {
-		task.clean();
+		retries.remove(task.getPublishId());
+		done(task, unindex(task.getPublishId()));
 	}
 	/**
 	 *	Mark that a delivery task has failed permanently.
 	 */
 	public synchronized void markFailNoRetry(DeliveryTask task) {
 		working.remove(task.getPublishId());
-		task.clean();
+		retries.remove(task.getPublishId());
+		done(task, unindex(task.getPublishId()));
 		failed = false;
 		failduration = 0;
 	}
+	/**
+	 *	Get rid of the files of a task that has been removed from the
+	 *	queue, in the background unless the task is in a segment.
+	 */
+	private void done(DeliveryTask task, int volume) {
+		String pubid = task.getPublishId();
+		if (segments.containsKey(pubid)) {
+			task.clean();
+			cleaned(pubid, volume);
+			return;
+		}
+		reclaiming.put(pubid, volume);
+		tombstone(pubid + " " + volume);
+		SpoolReclaimer.reclaim(this, task);
+	}
+	/**
+	 *	Note that the SpoolReclaimer has deleted the files of some tasks
+	 *	@param pubids	The publish IDs of the tasks
+	 */
+	public synchronized void reclaimed(Collection<String> pubids) {
+		for (String pubid: pubids) {
+			Integer volume = reclaiming.remove(pubid);
+			if (volume != null) {
+				cleaned(pubid, volume);
+			}
+		}
+		if (reclaiming.isEmpty()) {
+			closeTombstones();
+			new File(dir, ".done").delete();
+		} else if (tlines > 2 * reclaiming.size() + 100) {
+			compactTombstones();
+		}
+	}
+	private void tombstone(String line) {
+		try {
+			if (tombstones == null) {
+				tombstones = new FileOutputStream(new File(dir, ".done"), true);
+			}
+			tombstones.write((line + "\n").getBytes());
+			tlines++;
+		} catch (Exception e) {
+		}
+	}
+	private void closeTombstones() {
+		if (tombstones != null) {
+			try {
+				tombstones.close();
+			} catch (Exception e) {
+			}
+			tombstones = null;
+		}
+		tlines = 0;
+	}
+	private void compactTombstones() {
+		closeTombstones();
+		File tmp = new File(dir, ".done.tmp");
+		try {
+			Writer w = new BufferedWriter(new FileWriter(tmp));
+			for (Map.Entry<String, Integer> me: reclaiming.entrySet()) {
+				w.write(me.getKey() + " " + me.getValue() + "\n");
+			}
+			w.close();
+			tmp.renameTo(new File(dir, ".done"));
+			tlines = reclaiming.size();
+		} catch (Exception e) {
+			tmp.delete();
+		}
+	}
+	/**
+	 *	Delete the files left behind, by a previous run, in the tombstone
+	 *	journal, except any the SpoolReclaimer is still working on.
+	 */
+	private void readTombstones() {
+		File f = new File(dir, ".done");
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(f));
+			String s;
+			while ((s = br.readLine()) != null) {
+				String[] x = s.split(" ");
+				if (x.length != 2 || reclaiming.containsKey(x[0])) {
+					continue;
+				}
+				try {
+					int volume = Integer.parseInt(x[1]);
+					String base = NodeUtils.getSpoolFile(dirs[volume].getPath(), x[0]);
+					new File(base).delete();
+					new File(base + ".M").delete();
+					new File(base + ".R").delete();
+				} catch (Exception e) {
+				}
+			}
+			br.close();
+		} catch (Exception e) {
+		}
+		if (reclaiming.isEmpty()) {
+			closeTombstones();
+			f.delete();
+		}
+	}
 	private void fdupdate() {
 		if (!failed) {
 			failed = true;
@@ -132,6 +404,9 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 			if (failduration > maxdur) {
 				failduration = maxdur;
 			}
+			if (listener != null) {
+				listener.queueReadyAfter(this, resumetime);
+			}
 		}
 	}
 	/**
@@ -139,27 +414,173 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 	 */
 	public synchronized void markRedirect(DeliveryTask task) {
 		working.remove(task.getPublishId());
-		retry.put(task.getPublishId(), task);
+		workingChanged(task.getPublishId());
+		if (releaseIfRemoved(task)) {
+			return;
+		}
+		todo.put(task.getPublishId(), task);
 	}
 	/**
-	 *	Mark that a delivery task has temporarily failed.
+	 *	Mark that the destination could not be reached while delivering a task.
 	 */
-	public synchronized void markFailWithRetry(DeliveryTask task) {
+	public synchronized void markUnreachable(DeliveryTask task) {
 		working.remove(task.getPublishId());
-		retry.put(task.getPublishId(), task);
+		workingChanged(task.getPublishId());
+		if (releaseIfRemoved(task)) {
+			return;
+		}
+		todo.put(task.getPublishId(), task);
 		fdupdate();
 	}
+	/**
+	 *	Mark that a delivery task has been refused but may be retried later.
+	 */
+	public synchronized void markFailWithRetry(DeliveryTask task) {
+		String pubid = task.getPublishId();
+		working.remove(pubid);
+		workingChanged(pubid);
+		if (releaseIfRemoved(task)) {
+			return;
+		}
+		if (!pubid.equals(lastrefused)) {
+			lastrefused = pubid;
+			if (++refusals >= REFUSALS_BEFORE_BACKOFF) {
+				fdupdate();
+			}
+		}
+		int maxattempts = dqh.getMaxAttempts();
+		if (maxattempts > 0 && task.getAttempts() >= maxattempts) {
+			retries.remove(pubid);
+			int volume = unindex(pubid);
+			StatusLog.logExp(pubid, task.getFeedId(), task.getSubId(), task.getURL(), task.getMethod(), task.getCType(), task.getLength(), "retriesExhausted", task.getAttempts());
+			task.quarantine(new File(dirs[volume], ".quarantine"));
+			cleaned(pubid, volume);
+			return;
+		}
+		long delay = dqh.getInitFailureTimer();
+		long maxdur = dqh.getMaxFailureTimer();
+		for (int i = 1; i < task.getAttempts() && delay < maxdur; i++) {
+			delay = (long)(delay * dqh.getFailureBackoff());
+		}
+		if (delay > maxdur) {
+			delay = maxdur;
+		}
+		Retry r = retries.get(pubid);
+		if (r == null) {
+			r = new Retry(pubid);
+			retries.put(pubid, r);
+		}
+		r.dt = task;
+		r.attempts = task.getAttempts();
+		r.next = System.currentTimeMillis() + delay;
+		waiting.add(r);
+		journal(r);
+		changes++;
+		scheduleWakeup();
+	}
+	private void scheduleWakeup() {
+		if (listener == null || waiting.isEmpty()) {
+			return;
+		}
+		long next = waiting.first().next;
+		if (wakeup > System.currentTimeMillis() && wakeup <= next) {
+			return;
+		}
+		wakeup = next;
+		listener.queueReadyAfter(this, next);
+	}
+	private void journal(Retry r) {
+		try {
+			FileOutputStream fos = new FileOutputStream(new File(dir, ".retry"), true);
+			fos.write((r.pubid + " " + r.attempts + " " + r.next + "\n").getBytes());
+			fos.close();
+		} catch (Exception e) {
+		}
+		if (++jlines > 2 * retries.size() + 100) {
+			compactJournal();
+		}
+	}
+	private void compactJournal() {
+		File tmp = new File(dir, ".retry.tmp");
+		try {
+			Writer w = new BufferedWriter(new FileWriter(tmp));
+			for (Retry r: retries.values()) {
+				w.write(r.pubid + " " + r.attempts + " " + r.next + "\n");
+			}
+			w.close();
+			tmp.renameTo(new File(dir, ".retry"));
+			jlines = retries.size();
+		} catch (Exception e) {
+			tmp.delete();
+		}
+	}
+	private HashMap<String, Retry> readJournal() {
+		HashMap<String, Retry> ret = new HashMap<String, Retry>();
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(new File(dir, ".retry")));
+			String s;
+			while ((s = br.readLine()) != null) {
+				String[] f = s.split(" ");
+				if (f.length != 3) {
+					continue;
+				}
+				try {
+					Retry r = new Retry(f[0]);
+					r.attempts = Integer.parseInt(f[1]);
+					r.next = Long.parseLong(f[2]);
+					ret.put(r.pubid, r);
+				} catch (Exception e) {
+				}
+			}
+			br.close();
+		} catch (Exception e) {
+		}
+		return(ret);
+	}
 	/**
 	 *	Get the next task.
 	 */
 	public synchronized DeliveryTask getNext() {
+		if (working.size() >= di.getMaxInFlight()) {
+			return(null);
+		}
 		DeliveryTask ret = peekNext();
 		if (ret != null) {
-			todoindex++;
+			todo.remove(ret.getPublishId());
 			working.put(ret.getPublishId(), ret);
+			workingChanged(ret.getPublishId());
 		}
 		return(ret);
 	}
+	/**
+	 *	Get the next tasks to deliver in one request: as many as
+	 *	DestInfo.getBatchFiles() files, but no more than
+	 *	DestInfo.getBatchBytes() bytes, unless the first file alone is
+	 *	longer than that.
+	 *	@return	The tasks or null if there are no files to deliver now
+	 */
+	public synchronized DeliveryTask[] getBatch() {
+		int maxfiles = di.getBatchFiles();
+		long maxbytes = di.getBatchBytes();
+		Vector<DeliveryTask> v = new Vector<DeliveryTask>();
+		long total = 0;
+		DeliveryTask t;
+		while (v.size() < maxfiles && (t = peekNext()) != null) {
+			long len = t.getLength();
+			if (!v.isEmpty() && total + len > maxbytes) {
+				break;
+			}
+			total += len;
+			todo.remove(t.getPublishId());
+			working.put(t.getPublishId(), t);
+			workingChanged(t.getPublishId());
+			v.add(t);
+		}
+		if (v.isEmpty()) {
+			return(null);
+		}
+		return(v.toArray(new DeliveryTask[v.size()]));
+	}
 	/**
 	 *	Peek at the next task.
 	 */
@@ -167,60 +588,469 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 		long now = System.currentTimeMillis();
 		long mindate = now - dqh.getExpirationTimer();
 		if (failed) {
-			if (now > resumetime) {
+			if (now >= resumetime) {
 				failed = false;
 			} else {
 				return(null);
 			}
 		}
+		while (!waiting.isEmpty() && waiting.first().next <= now) {
+			Retry r = waiting.pollFirst();
+			todo.put(r.pubid, r.dt);
+		}
 		while (true) {
-			if (todoindex >= todo.size()) {
-				todoindex = 0;
-				todo = new Vector<DeliveryTask>();
-				String[] files = dir.list();
-				Arrays.sort(files);
-				for (String fname: files) {
-					if (!fname.endsWith(".M")) {
-						continue;
-					}
-					String fname2 = fname.substring(0, fname.length() - 2);
-					long pidtime = 0;
-					int dot = fname2.indexOf('.');
-					if (dot < 1) {
-						continue;
-					}
-					try {
-						pidtime = Long.parseLong(fname2.substring(0, dot));
-					} catch (Exception e) {
-					}
-					if (pidtime < 1000000000000L) {
-						continue;
+			if (todo.isEmpty()) {
+				scheduleWakeup();
+				return(null);
+			}
+			String pubid = todo.firstKey();
+			DeliveryTask dt = todo.get(pubid);
+			if (dt == null) {
+				Spooled sp = index.get(pubid);
+				dt = new DeliveryTask(this, pubid, dirs[sp == null ? 0 : sp.volume].getPath(), segments.get(pubid));
+				if (dt.getFileId() == null) {
+					// meta data file is gone
+					todo.remove(pubid);
+					retries.remove(pubid);
+					unindex(pubid);
+					forgetSegment(pubid);
+					continue;
+				}
+				Retry r = retries.get(pubid);
+				if (r != null) {
+					dt.setAttempts(r.attempts);
+					r.dt = dt;
+				}
+				todo.put(pubid, dt);
+			}
+			if (dt.isCleaned()) {
+				todo.remove(pubid);
+				unindex(pubid);
+				continue;
+			}
+			if (dt.getDate() >= mindate) {
+				return(dt);
+			}
+			todo.remove(pubid);
+			reportExpiry(dt);
+		}
+	}
+	/**
+	 *	Add a file that has just been linked into the spool directory
+	 *	@param pubid	The publish ID of the file
+	 */
+	public void addFile(String pubid) {
+		addFile(pubid, new File(NodeUtils.getSpoolFile(dir.getPath(), pubid)).length(), 0);
+	}
+	/**
+	 *	Add a file of known length that has just been linked into the spool directory
+	 *	@param pubid	The publish ID of the file
+	 *	@param length	The length of the data file
+	 */
+	public void addFile(String pubid, long length) {
+		addFile(pubid, length, 0);
+	}
+	/**
+	 *	Add a file of known length that has just been linked into the spool directory on a spool volume
+	 *	@param pubid	The publish ID of the file
+	 *	@param length	The length of the data file
+	 *	@param volume	The index of the spool volume
+	 */
+	public synchronized void addFile(String pubid, long length, int volume) {
+		if (working.get(pubid) != null || retries.containsKey(pubid) || todo.containsKey(pubid)) {
+			return;
+		}
+		todo.put(pubid, null);
+		index(pubid, length, volume);
+		if (listener != null) {
+			listener.queueReady(this);
+		}
+	}
+	/**
+	 *	Record a file that has just been appended to a segment in the
+	 *	segment journal.  The file is not delivered until it is queued
+	 *	with queueSegmentFile(), once the journal has been synced.
+	 *	@param pubid	The publish ID of the file
+	 *	@param ref	The location of the file in the segment
+	 *	@param volume	The index of the spool volume the segment is on
+	 *	@return	false if the file is already in the queue
+	 */
+	public synchronized boolean addSegmentFile(String pubid, SegmentSpool.Ref ref, int volume) {
+		if (working.get(pubid) != null || retries.containsKey(pubid) || todo.containsKey(pubid) || segments.containsKey(pubid) || held.containsKey(pubid)) {
+			return(false);
+		}
+		held.put(pubid, new Held(ref, volume));
+		segmentJournal("+" + pubid + " " + volume + " " + ref);
+		return(true);
+	}
+	/**
+	 *	Queue a file recorded by addSegmentFile() for delivery
+	 *	@param pubid	The publish ID of the file
+	 */
+	public synchronized void queueSegmentFile(String pubid) {
+		Held h = held.remove(pubid);
+		if (h == null) {
+			return;
+		}
+		segments.put(pubid, h.ref);
+		todo.put(pubid, null);
+		index(pubid, h.ref.getLength(), h.volume);
+		if (listener != null) {
+			listener.queueReady(this);
+		}
+	}
+	/**
+	 *	Forget a file recorded by addSegmentFile(), because it could not
+	 *	be made durable, and the publication is being refused
+	 *	@param pubid	The publish ID of the file
+	 */
+	public synchronized void dropSegmentFile(String pubid) {
+		Held h = held.remove(pubid);
+		if (h != null) {
+			h.ref.release();
+			segmentJournal("-" + pubid);
+		}
+	}
+	/**
+	 *	Get the journal of files in segments, so that it can be
+	 *	made durable along with them
+	 */
+	public File getSegmentJournal() {
+		return(new File(dir, ".segments"));
+	}
+	/**
+	 *	Release the segments of all files in the queue, once the
+	 *	queue has been removed by a configuration change.  Files being
+	 *	delivered keep their segments until they come back, when they
+	 *	are released whatever the outcome, since they will not be tried
+	 *	again.
+	 */
+	public synchronized void releaseSegments() {
+		removed = true;
+		Iterator<Map.Entry<String, SegmentSpool.Ref>> it = segments.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, SegmentSpool.Ref> me = it.next();
+			if (working.get(me.getKey()) == null) {
+				me.getValue().release();
+				it.remove();
+			}
+		}
+		for (Held h: held.values()) {
+			h.ref.release();
+		}
+		held.clear();
+	}
+	/**
+	 *	Release the segment of a task coming back from delivery without
+	 *	being finished with, if the queue has been removed
+	 *	@return	true if the task was released
+	 */
+	private boolean releaseIfRemoved(DeliveryTask task) {
+		String pubid = task.getPublishId();
+		if (!removed || !segments.containsKey(pubid)) {
+			return(false);
+		}
+		retries.remove(pubid);
+		done(task, unindex(pubid));
+		return(true);
+	}
+	private void forgetSegment(String pubid) {
+		SegmentSpool.Ref ref = segments.remove(pubid);
+		if (ref != null) {
+			ref.release();
+			segmentJournal("-" + pubid);
+		}
+	}
+	private void segmentJournal(String line) {
+		try {
+			FileOutputStream fos = new FileOutputStream(getSegmentJournal(), true);
+			fos.write((line + "\n").getBytes());
+			fos.close();
+		} catch (Exception e) {
+		}
+		if (++sjlines > 2 * (segments.size() + held.size()) + 100) {
+			compactSegmentJournal();
+		}
+	}
+	private void compactSegmentJournal() {
+		if (segments.isEmpty() && held.isEmpty()) {
+			getSegmentJournal().delete();
+			sjlines = 0;
+			return;
+		}
+		File tmp = new File(dir, ".segments.tmp");
+		try {
+			Writer w = new BufferedWriter(new FileWriter(tmp));
+			for (Map.Entry<String, SegmentSpool.Ref> me: segments.entrySet()) {
+				Spooled sp = index.get(me.getKey());
+				w.write("+" + me.getKey() + " " + (sp == null ? 0 : sp.volume) + " " + me.getValue() + "\n");
+			}
+			for (Map.Entry<String, Held> me: held.entrySet()) {
+				w.write("+" + me.getKey() + " " + me.getValue().volume + " " + me.getValue().ref + "\n");
+			}
+			w.close();
+			tmp.renameTo(getSegmentJournal());
+			sjlines = segments.size() + held.size();
+		} catch (Exception e) {
+			tmp.delete();
+		}
+	}
+	private void rescanSegments(HashMap<String, Retry> saved) {
+		LinkedHashMap<String, String> live = new LinkedHashMap<String, String>();
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(getSegmentJournal()));
+			String s;
+			while ((s = br.readLine()) != null) {
+				if (s.startsWith("+")) {
+					int i = s.indexOf(' ');
+					if (i != -1) {
+						live.put(s.substring(1, i), s.substring(i + 1));
 					}
-					if (working.get(fname2) != null) {
-						continue;
+				} else if (s.startsWith("-")) {
+					live.remove(s.substring(1));
+				}
+			}
+			br.close();
+		} catch (Exception e) {
+		}
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, String> me: live.entrySet()) {
+			String pubid = me.getKey();
+			String v = me.getValue();
+			int i = v.indexOf(' ');
+			SegmentSpool.Ref ref = (i == -1) ? null : SegmentSpool.Ref.parse(v.substring(i + 1));
+			if (ref == null) {
+				continue;
+			}
+			int volume = -1;
+			try {
+				volume = Integer.parseInt(v.substring(0, i));
+			} catch (Exception e) {
+			}
+			if (volume < 0 || volume >= dirs.length || working.get(pubid) != null || retries.containsKey(pubid) || todo.containsKey(pubid)) {
+				ref.release();
+				continue;
+			}
+			segments.put(pubid, ref);
+			Retry r = saved.get(pubid);
+			if (r == null) {
+				todo.put(pubid, null);
+			} else {
+				retries.put(pubid, r);
+				if (r.next > now) {
+					waiting.add(r);
+				} else {
+					todo.put(pubid, null);
+				}
+			}
+			index(pubid, ref.getLength(), volume);
+		}
+		compactSegmentJournal();
+	}
+	/**
+	 *	Scan the spool directories for files not already known to this queue.
+	 *	This is only needed when the queue is first created, to pick up
+	 *	files spooled before it existed.  Files with retry state in the
+	 *	journal resume their back off.
+	 */
+	public synchronized void rescan() {
+		readTombstones();
+		HashMap<String, Retry> saved = readJournal();
+		QueueCheckpoint cp = QueueCheckpoint.read(getCheckpointFile());
+		HashMap<String, Vector<Integer>> cpbuckets = new HashMap<String, Vector<Integer>>();
+		if (cp != null) {
+			for (int i = 0; i < cp.count; i++) {
+				String key = cp.volumes[i] + "/" + NodeUtils.getSpoolBucket(cp.pubids[i]);
+				Vector<Integer> v = cpbuckets.get(key);
+				if (v == null) {
+					v = new Vector<Integer>();
+					cpbuckets.put(key, v);
+				}
+				v.add(i);
+			}
+		}
+		for (int volume = 0; volume < dirs.length; volume++) {
+			rescan(volume, saved, cp, cpbuckets);
+		}
+		backlog = index.size();
+		backlogbytes = bytes;
+		rescanSegments(saved);
+		compactJournal();
+		for (int volume = 0; volume < dirs.length; volume++) {
+			evictable(volume);
+		}
+		if (listener != null && !todo.isEmpty()) {
+			listener.queueReady(this);
+		}
+		scheduleWakeup();
+	}
+	private void rescan(int volume, HashMap<String, Retry> saved, QueueCheckpoint cp, HashMap<String, Vector<Integer>> cpbuckets) {
+		File vdir = dirs[volume];
+		String[] files = vdir.list();
+		if (files == null) {
+			return;
+		}
+		for (String fname: files) {
+			// Move files from a flat spool directory into their buckets
+			if (fname.indexOf('.') < 1) {
+				continue;
+			}
+			String bucket = NodeUtils.getSpoolBucket(fname);
+			if (bucket == null) {
+				continue;
+			}
+			File bdir = new File(vdir, bucket);
+			bdir.mkdir();
+			new File(vdir, fname).renameTo(new File(bdir, fname));
+		}
+		files = vdir.list();
+		if (files == null) {
+			return;
+		}
+		for (String bucket: files) {
+			if (bucket.startsWith(".")) {
+				continue;
+			}
+			File bdir = new File(vdir, bucket);
+			Vector<Integer> cpfiles = cpbuckets.get(volume + "/" + bucket);
+			if (cpfiles != null && bdir.lastModified() < cp.time - CHECKPOINT_SLACK) {
+				// unchanged since the checkpoint
+				long now = System.currentTimeMillis();
+				int n = 0;
+				for (int i: cpfiles) {
+					Retry r = null;
+					if (cp.attempts[i] > 0) {
+						r = new Retry(cp.pubids[i]);
+						r.attempts = cp.attempts[i];
+						r.next = cp.next[i];
 					}
-					DeliveryTask dt = retry.get(fname2);
-					if (dt == null) {
-						dt = new DeliveryTask(this, fname2);
+					if (restore(cp.pubids[i], cp.lengths[i], volume, saved, r, now)) {
+						n++;
 					}
-					todo.add(dt);
 				}
-				retry = new Hashtable<String, DeliveryTask>();
+				countBucket(volume + "/" + bucket, n);
+				continue;
+			}
+			String[] bfiles = bdir.list();
+			if (bfiles == null) {
+				continue;
 			}
-			if (todoindex < todo.size()) {
-				DeliveryTask dt = todo.get(todoindex);
-				if (dt.isCleaned()) {
-					todoindex++;
+			if (bfiles.length == 0) {
+				bdir.delete();
+				continue;
+			}
+			countBucket(volume + "/" + bucket, rescan(volume, bdir, bfiles, saved));
+		}
+	}
+	private int rescan(int volume, File bdir, String[] files, HashMap<String, Retry> saved) {
+		long now = System.currentTimeMillis();
+		int n = 0;
+		for (String fname: files) {
+			if (!fname.endsWith(".M")) {
+				continue;
+			}
+			String fname2 = fname.substring(0, fname.length() - 2);
+			long pidtime = 0;
+			int dot = fname2.indexOf('.');
+			if (dot < 1) {
+				continue;
+			}
+			try {
+				pidtime = Long.parseLong(fname2.substring(0, dot));
+			} catch (Exception e) {
+			}
+			if (pidtime < 1000000000000L) {
+				continue;
+			}
+			if (restore(fname2, new File(bdir, fname2).length(), volume, saved, null, now)) {
+				n++;
+			}
+		}
+		return(n);
+	}
+	private void countBucket(String key, int n) {
+		if (n == 0) {
+			return;
+		}
+		Integer count = buckets.get(key);
+		buckets.put(key, count == null ? n : count + n);
+	}
+	/**
+	 *	Add a file found by rescan(), resuming its back off if it has retry
+	 *	state.  The caller counts the file in its bucket and, once it is
+	 *	done, updates the backlog.
+	 *	@param r	The retry state from the checkpoint, used if the journal has none
+	 *	@return	True if the file was not already in the queue
+	 */
+	private boolean restore(String pubid, long length, int volume, HashMap<String, Retry> saved, Retry r, long now) {
+		if (index.containsKey(pubid) || reclaiming.containsKey(pubid)) {
+			return(false);
+		}
+		Retry jr = saved.get(pubid);
+		if (jr != null) {
+			r = jr;
+		}
+		if (r == null) {
+			todo.put(pubid, null);
+		} else {
+			retries.put(pubid, r);
+			if (r.next > now) {
+				waiting.add(r);
+			} else {
+				todo.put(pubid, null);
+			}
+		}
+		index.put(pubid, new Spooled(length, volume));
+		if (volindex != null) {
+			volindex.get(volume).add(pubid);
+		}
+		bytes += length;
+		volbytes[volume] += length;
+		changes++;
+		return(true);
+	}
+	/**
+	 *	Get the checkpoint file
+	 */
+	public File getCheckpointFile() {
+		return(new File(dir, ".index"));
+	}
+	/**
+	 *	Write a checkpoint of the files in the queue, if it has changed
+	 *	since the last one.  Files in segments are not included, since
+	 *	the segment journal already lists them.
+	 */
+	public void checkpoint() throws IOException {
+		QueueCheckpoint cp;
+		long snapshot;
+		synchronized (this) {
+			if (changes == checkpointed) {
+				return;
+			}
+			snapshot = changes;
+			cp = new QueueCheckpoint(System.currentTimeMillis(), index.size() - segments.size());
+			int i = 0;
+			for (Map.Entry<String, Spooled> me: index.entrySet()) {
+				String pubid = me.getKey();
+				if (segments.containsKey(pubid) || i == cp.count) {
 					continue;
 				}
-				if (dt.getDate() >= mindate) {
-					return(dt);
+				Spooled sp = me.getValue();
+				cp.pubids[i] = pubid;
+				cp.volumes[i] = sp.volume;
+				cp.lengths[i] = sp.length;
+				Retry r = retries.get(pubid);
+				if (r != null) {
+					cp.attempts[i] = r.attempts;
+					cp.next[i] = r.next;
 				}
-				todoindex++;
-				reportExpiry(dt);
-				continue;
+				i++;
 			}
-			return(null);
+			cp.count = i;
+		}
+		cp.write(getCheckpointFile());
+		synchronized (this) {
+			checkpointed = snapshot;
 		}
 	}
 	/**
@@ -229,8 +1059,21 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 	public DeliveryQueue(DeliveryQueueHelper dqh, DestInfo di) {
 		this.dqh = dqh;
 		this.di = di;
-		dir = new File(di.getSpool());
-		dir.mkdirs();
+		dirs = new File[di.getVolumes()];
+		for (int i = 0; i < dirs.length; i++) {
+			dirs[i] = new File(di.getSpool(i));
+			dirs[i].mkdirs();
+		}
+		dir = dirs[0];
+		volbytes = new long[dirs.length];
+		oldest = new String[dirs.length];
+		reported = new long[dirs.length];
+		if (dirs.length > 1) {
+			volindex = new ArrayList<TreeSet<String>>();
+			for (int i = 0; i < dirs.length; i++) {
+				volindex.add(new TreeSet<String>());
+			}
+		}
 	}
 	/**
 	 *	Update the destination info for this delivery queue
@@ -293,7 +1136,7 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 	public void reportException(DeliveryTask task, Exception exception) {
 		StatusLog.logDel(task.getPublishId(), task.getFeedId(), task.getSubId(), task.getURL(), task.getMethod(), task.getCType(), task.getLength(), di.getAuthUser(), -1, exception.toString());
 		dqh.handleUnreachable(di);
-		markFailWithRetry(task);
+		markUnreachable(task);
 	}
 	/**
 	 *	Get the feed ID for a subscription
@@ -303,12 +1146,30 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 	public String getFeedId(String subid) {
 		return(dqh.getFeedId(subid));
 	}
+	/**
+	 *	Get the timeout for connecting to the destination
+	 */
+	public int getConnectTimeout() {
+		return(dqh.getConnectTimeout());
+	}
+	/**
+	 *	Get the timeout for reading a response from the destination
+	 */
+	public int getReadTimeout() {
+		return(dqh.getReadTimeout());
+	}
 	/**
 	 *	Get the URL to deliver a message to given the file ID
 	 */
 	public String getDestURL(String fileid) {
 		return(dqh.getDestURL(di, fileid));
 	}
+	/**
+	 *	Get the channel for sending files to the destination, if any
+	 */
+	public NodeChannel getChannel() {
+		return(dqh.getChannel(di));
+	}
 	/**
 	 *	Deliver files until there's a failure or there are no more
 	 *	files to deliver
@@ -317,6 +1178,17 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 		DeliveryTask t;
 		long endtime = System.currentTimeMillis() + dqh.getFairTimeLimit();
 		int filestogo = dqh.getFairFileLimit();
+		if (di.isBatching()) {
+			DeliveryTask[] batch;
+			while ((batch = getBatch()) != null) {
+				(new DeliveryBatch(this, batch)).run();
+				filestogo -= batch.length;
+				if (filestogo <= 0 || System.currentTimeMillis() > endtime) {
+					break;
+				}
+			}
+			return;
+		}
 		while ((t = getNext()) != null) {
 			t.run();
 			if (--filestogo <= 0 || System.currentTimeMillis() > endtime) {
@@ -331,9 +1203,200 @@ public class DeliveryQueue implements Runnable, DeliveryTaskHelper	{
 		return(peekNext() == null);
 	}
 	/**
-	 *	Reset the retry timer
+	 *	Try to assign a delivery thread to this queue.
+	 *	@return	true if the queue has work for another thread.  The caller must call release() when it stops working on the queue.
+	 */
+	public synchronized boolean claim() {
+		if (claimed >= di.getMaxInFlight() || peekNext() == null || claimed - working.size() >= todo.size()) {
+			return(false);
+		}
+		claimed++;
+		return(true);
+	}
+	/**
+	 *	Can this queue use another delivery thread after the ones already assigned?
+	 */
+	public synchronized boolean hasCapacity() {
+		return(claimed < di.getMaxInFlight() && claimed - working.size() < todo.size());
+	}
+	/**
+	 *	A delivery thread has stopped working on this queue
 	 */
-	public void resetQueue() {
+	public synchronized void release() {
+		claimed--;
+	}
+	/**
+	 *	Reset the retry timer, and make all waiting files due now
+	 */
+	public synchronized void resetQueue() {
 		resumetime = System.currentTimeMillis();
+		for (Retry r: waiting) {
+			todo.put(r.pubid, r.dt);
+		}
+		waiting.clear();
+		if (listener != null) {
+			listener.queueReady(this);
+		}
+	}
+	private void index(String pubid, long length, int volume) {
+		unindex(pubid);
+		index.put(pubid, new Spooled(length, volume));
+		if (volindex != null) {
+			volindex.get(volume).add(pubid);
+		}
+		bytes += length;
+		volbytes[volume] += length;
+		backlog = index.size();
+		backlogbytes = bytes;
+		changes++;
+		String key = volume + "/" + NodeUtils.getSpoolBucket(pubid);
+		Integer count = buckets.get(key);
+		buckets.put(key, count == null ? 1 : count + 1);
+		evictable(volume);
+	}
+	/**
+	 *	Remove a file from the index
+	 *	@return	The index of the spool volume the file is on
+	 */
+	private int unindex(String pubid) {
+		Spooled was = index.remove(pubid);
+		if (was == null) {
+			return(0);
+		}
+		if (volindex != null) {
+			volindex.get(was.volume).remove(pubid);
+		}
+		bytes -= was.length;
+		volbytes[was.volume] -= was.length;
+		backlog = index.size();
+		backlogbytes = bytes;
+		changes++;
+		String key = was.volume + "/" + NodeUtils.getSpoolBucket(pubid);
+		int count = buckets.get(key);
+		if (count == 1) {
+			buckets.remove(key);
+		} else {
+			buckets.put(key, count - 1);
+		}
+		evictable(was.volume);
+		return(was.volume);
+	}
+	/**
+	 *	Tell the eviction index, if the oldest file that could be
+	 *	discarded from a volume, or the total length of the files on the
+	 *	volume, has changed
+	 */
+	private void evictable(int volume) {
+		if (evictions == null) {
+			return;
+		}
+		String o = getOldest(volume);
+		if (volbytes[volume] == reported[volume] && (o == null ? oldest[volume] == null : o.equals(oldest[volume]))) {
+			return;
+		}
+		oldest[volume] = o;
+		reported[volume] = volbytes[volume];
+		evictions.update(this, volume, o, volbytes[volume]);
+	}
+	/**
+	 *	Note that a file has been added to, or removed from, the working set
+	 */
+	private void workingChanged(String pubid) {
+		Spooled sp = index.get(pubid);
+		if (sp != null) {
+			evictable(sp.volume);
+		}
+	}
+	/**
+	 *	Set the index to keep informed of the files that could be
+	 *	discarded from this queue, or null to stop
+	 */
+	public synchronized void setEvictionIndex(EvictionIndex evictions) {
+		this.evictions = evictions;
+		for (int i = 0; i < dirs.length; i++) {
+			oldest[i] = null;
+			reported[i] = 0;
+			evictable(i);
+		}
+	}
+	/**
+	 *	Finish removing a file from the queue once it is gone.  For a
+	 *	file in a segment, record that in the segment journal.  Otherwise,
+	 *	remove the bucket the file was in, if no other file in the queue
+	 *	is in it.  This does nothing if the bucket is not empty.
+	 */
+	private void cleaned(String pubid, int volume) {
+		if (segments.remove(pubid) != null) {
+			segmentJournal("-" + pubid);
+			return;
+		}
+		String bucket = NodeUtils.getSpoolBucket(pubid);
+		if (bucket != null && !buckets.containsKey(volume + "/" + bucket)) {
+			new File(dirs[volume], bucket).delete();
+		}
+	}
+	/**
+	 *	Get the number of files in the queue, whether waiting to be
+	 *	delivered, being delivered, or waiting to be retried.  This
+	 *	is kept up to date as files are added and removed, so it
+	 *	can be read without locking the queue.
+	 */
+	public int getBacklog() {
+		return(backlog);
+	}
+	/**
+	 *	Get the total length of the files in the queue.  Like
+	 *	getBacklog(), this can be read without locking the queue.
+	 */
+	public long getBacklogBytes() {
+		return(backlogbytes);
+	}
+	/**
+	 *	Get the total length of the files in the queue on a spool volume
+	 *	@param volume	The index of the spool volume
+	 */
+	public synchronized long getBacklogBytes(int volume) {
+		return(volbytes[volume]);
+	}
+	/**
+	 *	Get the oldest file in the queue on a spool volume that could be
+	 *	cancelled to free up disk space on that volume
+	 *	@param volume	The index of the spool volume
+	 *	@return	The publish ID of the file or null if there is none
+	 */
+	public synchronized String getOldest(int volume) {
+		Set<String> files = (volindex == null) ? index.keySet() : volindex.get(volume);
+		for (String pubid: files) {
+			if (working.get(pubid) == null) {
+				return(pubid);
+			}
+		}
+		return(null);
+	}
+	/**
+	 *	Get the spool directory on a spool volume
+	 *	@param volume	The index of the spool volume
+	 */
+	public String getSpool(int volume) {
+		return(dirs[volume].getPath());
+	}
+	/**
+	 *	Set the receiver of notifications that this queue may be ready
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	/**
+	 *	Mark this queue as waiting to be scheduled.
+	 *	@return	false if it already was.
+	 */
+	public boolean markQueued() {
+		return(queued.compareAndSet(false, true));
+	}
+	/**
+	 *	Mark this queue as no longer waiting to be scheduled.
+	 */
+	public void clearQueued() {
+		queued.set(false);
 	}
 }
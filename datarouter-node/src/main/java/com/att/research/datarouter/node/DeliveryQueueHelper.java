@@ -34,6 +34,10 @@ public interface	DeliveryQueueHelper	{
 	 *	Get the maximum timeout (milliseconds) between delivery attempts
 	 */
 	public long	getMaxFailureTimer();
+	/**
+	 *	Get the number of delivery attempts after which a file that is still being refused is quarantined (0 means never)
+	 */
+	public int	getMaxAttempts();
 	/**
 	 *	Get the expiration timer (milliseconds) for deliveries
 	 */
@@ -47,6 +51,14 @@ public interface	DeliveryQueueHelper	{
 	 *	Get the maximum amount of time spent delivering files before checking if another queue has work to be performed.
 	 */
 	public long getFairTimeLimit();
+	/**
+	 *	Get the timeout (milliseconds) for connecting to a destination
+	 */
+	public int getConnectTimeout();
+	/**
+	 *	Get the timeout (milliseconds) for reading a response from a destination
+	 */
+	public int getReadTimeout();
 	/**
 	 *	Get the URL for delivering a file
 	 *	@param dest	The destination information for the file to be delivered.
@@ -71,6 +83,12 @@ public interface	DeliveryQueueHelper	{
 	 *	Should I handle 3xx responses differently than 4xx responses?
 	 */
 	public boolean	isFollowRedirects();
+	/**
+	 *	Get the channel for sending files to another node
+	 *	@param dest	The destination information for the node
+	 *	@return	The channel, or null if files should be sent with a PUT for each
+	 */
+	public NodeChannel	getChannel(DestInfo dest);
 	/**
 	 *	Get the feed ID for a subscription
 	 *	@param subid	The subscription ID
@@ -0,0 +1,112 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.net.*;
+import javax.net.ssl.*;
+import org.apache.log4j.Logger;
+
+/**
+ *	Socket factory shared by all https deliveries.
+ *	<p>
+ *	All delivery threads, and both subscriber and node-to-node deliveries,
+ *	use the same factory instance, and so the same TLS client session
+ *	cache, sized by the TLSSessionCacheSize and TLSSessionTimeout node
+ *	properties.  New connections to a destination that has been delivered
+ *	to before can then resume a cached session rather than repeat the full
+ *	handshake.
+ *	<p>
+ *	The number of connections this factory opens is counted in NodeStats,
+ *	along with the number of completed and resumed TLS handshakes.
+ */
+public class DeliverySocketFactory extends SSLSocketFactory	{
+	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.DeliverySocketFactory");
+	private static DeliverySocketFactory instance;
+	private SSLSocketFactory	base;
+	/**
+	 *	Set up the shared factory and the TLS client session cache.
+	 *	@param cachesize	Maximum number of cached TLS sessions (0 means no limit)
+	 *	@param cachetimeout	Lifetime of cached TLS sessions in seconds (0 means no limit)
+	 */
+	public static synchronized void init(int cachesize, int cachetimeout) {
+		SSLContext ctx = null;
+		try {
+			ctx = SSLContext.getDefault();
+			SSLSessionContext ssc = ctx.getClientSessionContext();
+			ssc.setSessionCacheSize(cachesize);
+			ssc.setSessionTimeout(cachetimeout);
+		} catch (Exception e) {
+			logger.warn("NODE0601 Unable to configure TLS session cache " + e.toString());
+		}
+		if (ctx == null) {
+			instance = new DeliverySocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+		} else {
+			instance = new DeliverySocketFactory(ctx.getSocketFactory());
+		}
+	}
+	/**
+	 *	Get the shared factory
+	 */
+	public static synchronized DeliverySocketFactory getInstance() {
+		if (instance == null) {
+			init(0, 86400);
+		}
+		return(instance);
+	}
+	private DeliverySocketFactory(SSLSocketFactory base) {
+		this.base = base;
+	}
+	private Socket track(Socket s) {
+		NodeStats.inc("delivery.https.connections");
+		if (s instanceof SSLSocket) {
+			final long created = System.currentTimeMillis();
+			((SSLSocket)s).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					NodeStats.inc("delivery.tls.handshakes");
+					if (event.getSession().getCreationTime() < created) {
+						NodeStats.inc("delivery.tls.resumed");
+					}
+				}
+			});
+		}
+		return(s);
+	}
+	public String[] getDefaultCipherSuites() {
+		return(base.getDefaultCipherSuites());
+	}
+	public String[] getSupportedCipherSuites() {
+		return(base.getSupportedCipherSuites());
+	}
+	public Socket createSocket() throws IOException {
+		return(track(base.createSocket()));
+	}
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		return(track(base.createSocket(s, host, port, autoClose)));
+	}
+	public Socket createSocket(String host, int port) throws IOException {
+		return(track(base.createSocket(host, port)));
+	}
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return(track(base.createSocket(host, port, localHost, localPort)));
+	}
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return(track(base.createSocket(host, port)));
+	}
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return(track(base.createSocket(address, port, localAddress, localPort)));
+	}
+}
@@ -17,7 +17,11 @@ package com.att.research.datarouter.node;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
 import org.apache.log4j.Logger;
 
 /**
@@ -26,15 +30,61 @@ import org.apache.log4j.Logger;
  *	A Delivery task represents a work item for the data router - a file that
  *	needs to be delivered and provides mechanisms to get information about
  *	the file and its delivery data as well as to attempt delivery.
+ *	<p>
+ *	A node may have millions of files queued when a subscriber is down,
+ *	so a delivery task is kept small.  Creating one does no I/O.  The
+ *	meta data file is only read when something about the file other than
+ *	its publish ID and date is needed, normally just before the first
+ *	delivery attempt.  Only the fields needed for logging are then kept
+ *	in the task.  The parsed headers are kept in a cache, shared by all
+ *	delivery tasks and bounded to METACACHE_SIZE entries, and are
+ *	reread from the meta data file if they have been evicted by the time
+ *	of the next attempt.  Header names are interned.
+ *	<p>
+ *	The meta data file is shared, through hard links, by every
+ *	destination the file was published to.  For a file going to another
+ *	node, the X-ATT-DR-ROUTING header, which is specific to that
+ *	destination, is kept in a separate routing file, the publish ID
+ *	followed by ".R".
+ *	<p>
+ *	A small file may instead be in a segment of the SegmentSpool, in
+ *	which case the meta data and data are read from the segment.
  */
 public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.DeliveryTask");
+	private static ThreadLocal<byte[]> drainbuf = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return(new byte[4096]);
+		}
+	};
+	private static ThreadLocal<ByteBuffer> sendbuf = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return(ByteBuffer.allocate(65536));
+		}
+	};
+	/**
+	 *	Parsed contents of a meta data file
+	 */
+	private static class Meta	{
+		private String	method;
+		private String	fileid;
+		private String	ctype;
+		private String	routing;
+		private String[][]	hdrs;
+	}
+	private static final int	METACACHE_SIZE = 4096;
+	private static final int	MAX_NAMES = 10000;
+	private static LinkedHashMap<String, Meta>	metacache = new LinkedHashMap<String, Meta>(METACACHE_SIZE, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Meta> eldest) {
+			return(size() > METACACHE_SIZE);
+		}
+	};
+	private static ConcurrentHashMap<String, String>	names = new ConcurrentHashMap<String, String>();
 	private DeliveryTaskHelper	dth;
 	private String	pubid;
 	private	DestInfo	di;
-	private String	spool;
-	private File	datafile;
-	private File	metafile;
+	private String	base;
+	private SegmentSpool.Ref	ref;
 	private long	length;
 	private long	date;
 	private String	method;
@@ -44,7 +94,8 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 	private String	feedid;
 	private String	subid;
 	private int	attempts;
-	private String[][]	hdrs;
+	private boolean	loaded;
+	private boolean	cleaned;
 	/**
 	 *	Is the object a DeliveryTask with the same publication ID?
 	 */
@@ -80,49 +131,146 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 	 *	the form <milliseconds since 1970>.<fqdn of initial data router node>
 	 */
 	public DeliveryTask(DeliveryTaskHelper dth, String pubid) {
+		this(dth, pubid, dth.getDestInfo().getSpool());
+	}
+	/**
+	 *	Create a delivery task for a file in a given spool directory
+	 *	@param	dth	The delivery task helper for the queue this task is in.
+	 *	@param	pubid	The publish ID for this file.
+	 *	@param	spool	The spool directory the file is in.  This is
+	 *	the destination's spool directory on the spool volume the file
+	 *	was published to.
+	 */
+	public DeliveryTask(DeliveryTaskHelper dth, String pubid, String spool) {
+		this(dth, pubid, spool, null);
+	}
+	/**
+	 *	Create a delivery task for a file that may be in a segment
+	 *	@param	dth	The delivery task helper for the queue this task is in.
+	 *	@param	pubid	The publish ID for this file.
+	 *	@param	spool	The spool directory the file is in.
+	 *	@param	ref	The location of the file in a segment, or null
+	 *	if the file is in the spool directory.
+	 */
+	public DeliveryTask(DeliveryTaskHelper dth, String pubid, String spool, SegmentSpool.Ref ref) {
 		this.dth = dth;
+		this.ref = ref;
 		this.pubid = pubid;
 		di = dth.getDestInfo();
 		subid = di.getSubId();
 		feedid = di.getLogData();
-		spool = di.getSpool();
-		String dfn = spool + "/" + pubid;
-		String mfn = dfn + ".M";
-		datafile = new File(spool + "/" + pubid);
-		metafile = new File(mfn);
-		boolean monly = di.isMetaDataOnly();
+		base = NodeUtils.getSpoolFile(spool, pubid);
 		date = Long.parseLong(pubid.substring(0, pubid.indexOf('.')));
+	}
+	private static String internName(String name) {
+		String ret = names.get(name);
+		if (ret == null) {
+			if (names.size() >= MAX_NAMES) {
+				return(name);
+			}
+			ret = names.putIfAbsent(name, name);
+			if (ret == null) {
+				ret = name;
+			}
+		}
+		return(ret);
+	}
+	private File getMetaFile() {
+		return(new File(base + ".M"));
+	}
+	private File getRoutingFile() {
+		return(new File(base + ".R"));
+	}
+	private boolean isToNode() {
+		return(dth.getDestInfo().getSubId() == null);
+	}
+	/**
+	 *	Get the parsed meta data, from the cache or the meta data file
+	 *	@return	The meta data or null if the meta data file can't be read
+	 */
+	private Meta getMeta() {
+		String key = base;
+		synchronized (metacache) {
+			Meta m = metacache.get(key);
+			if (m != null) {
+				return(m);
+			}
+		}
+		Meta m = new Meta();
 		Vector<String[]> hdrv = new Vector<String[]>();
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(metafile));
-			String s = br.readLine();
-			int i = s.indexOf('\t');
-			method = s.substring(0, i);
-			if (!"DELETE".equals(method) && !monly) {
-				length = datafile.length();
+			BufferedReader br = new BufferedReader(ref == null ? new FileReader(getMetaFile()) : new StringReader(ref.readMeta()));
+			try {
+				String s = br.readLine();
+				int i = s.indexOf('\t');
+				m.method = s.substring(0, i).intern();
+				m.fileid = s.substring(i + 1);
+				readHeaders(br, m, hdrv);
+			} finally {
+				br.close();
 			}
-			fileid = s.substring(i + 1);
-			while ((s = br.readLine()) != null) {
-				i = s.indexOf('\t');
-				String h = s.substring(0, i);
-				String v = s.substring(i + 1);
-				if ("x-att-dr-routing".equalsIgnoreCase(h)) {
-					subid = v.replaceAll("[^ ]*/", "");
-					feedid = dth.getFeedId(subid.replaceAll(" .*", ""));
-				}
-				if (length == 0 && h.toLowerCase().startsWith("content-")) {
-					continue;
-				}
-				if (h.equalsIgnoreCase("content-type")) {
-					ctype = v;
+		} catch (Exception e) {
+			if (m.fileid == null) {
+				return(null);
+			}
+		}
+		if (m.routing == null && isToNode() && ref == null) {
+			try {
+				BufferedReader br = new BufferedReader(new FileReader(getRoutingFile()));
+				try {
+					readHeaders(br, m, hdrv);
+				} finally {
+					br.close();
 				}
-				hdrv.add(new String[] {h, v});
+			} catch (Exception e) {
 			}
-			br.close();
-		} catch (Exception e) {
 		}
-		hdrs = hdrv.toArray(new String[hdrv.size()][]);
-		url = dth.getDestURL(fileid);
+		m.hdrs = hdrv.toArray(new String[hdrv.size()][]);
+		synchronized (metacache) {
+			metacache.put(key, m);
+		}
+		return(m);
+	}
+	private static void readHeaders(BufferedReader br, Meta m, Vector<String[]> hdrv) throws IOException {
+		String s;
+		while ((s = br.readLine()) != null) {
+			int i = s.indexOf('\t');
+			String h = internName(s.substring(0, i));
+			String v = s.substring(i + 1);
+			if ("x-att-dr-routing".equalsIgnoreCase(h)) {
+				m.routing = v;
+			}
+			if (h.equalsIgnoreCase("content-type")) {
+				m.ctype = v.intern();
+			}
+			hdrv.add(new String[] {h, v});
+		}
+	}
+	/**
+	 *	Read the meta data needed for logging, if not already done
+	 */
+	private synchronized void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		Meta m = getMeta();
+		if (m == null) {
+			return;
+		}
+		method = m.method;
+		fileid = m.fileid;
+		length = 0;
+		if (!"DELETE".equals(method) && !di.isMetaDataOnly()) {
+			length = getDataLength();
+		}
+		if (m.routing != null) {
+			subid = m.routing.replaceAll("[^ ]*/", "");
+			feedid = dth.getFeedId(subid.replaceAll(" .*", ""));
+		}
+		if (length != 0) {
+			ctype = m.ctype;
+		}
 	}
 	/**
 	 *	Get the publish ID
@@ -130,30 +278,45 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 	public String getPublishId() {
 		return(pubid);
 	}
+	/**
+	 *	Refresh the destination, length and URL for a new delivery attempt
+	 */
+	URL prepare() throws MalformedURLException {
+		load();
+		attempts++;
+		di = dth.getDestInfo();
+		length = 0;
+		if (!"DELETE".equals(method) && !di.isMetaDataOnly()) {
+			length = getDataLength();
+		}
+		url = dth.getDestURL(fileid);
+		return(new URL(url));
+	}
 	/**
 	 *	Attempt delivery
 	 */
 	public void run() {
-		attempts++;
 		try {
-			di = dth.getDestInfo();
-			boolean expect100 = di.isUsing100();
-			boolean monly = di.isMetaDataOnly();
-			length = 0;
-			if (!"DELETE".equals(method) && !monly) {
-				length = datafile.length();
+			URL u = prepare();
+			NodeChannel channel = (length <= NodeChannel.MAX_FILE_SIZE) ? dth.getChannel() : null;
+			if (channel != null) {
+				channel.deliverAndWait(this, dth);
+				return;
 			}
-			url = dth.getDestURL(fileid);
-			URL u = new URL(url);
+			boolean expect100 = di.isUsing100();
 			HttpURLConnection uc = (HttpURLConnection)u.openConnection();
-			uc.setConnectTimeout(60000);
-			uc.setReadTimeout(60000);
+			if (uc instanceof HttpsURLConnection) {
+				((HttpsURLConnection)uc).setSSLSocketFactory(DeliverySocketFactory.getInstance());
+				NodeStats.inc("delivery.https.requests");
+			}
+			uc.setConnectTimeout(dth.getConnectTimeout());
+			uc.setReadTimeout(dth.getReadTimeout());
 			uc.setInstanceFollowRedirects(false);
 			uc.setRequestMethod(method);
 			uc.setRequestProperty("Content-Length", Long.toString(length));
 			uc.setRequestProperty("Authorization", di.getAuth());
 			uc.setRequestProperty("X-ATT-DR-PUBLISH-ID", pubid);
-			for (String[] nv: hdrs) {
+			for (String[] nv: getHeaders()) {
 				uc.addRequestProperty(nv[0], nv[1]);
 			}
 			if (length > 0) {
@@ -171,24 +334,35 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 				}
 				if (os != null) {
 					long sofar = 0;
+					FileChannel fc = null;
 					try {
-						byte[] buf = new byte[1024 * 1024];
-						InputStream is = new FileInputStream(datafile);
+						// HttpURLConnection only offers a stream, so
+						// the file is copied through a buffer, but
+						// one kept by the thread rather than one
+						// allocated for each attempt.  Only the
+						// asynchronous engine sends without copying.
+						fc = (new FileInputStream(getDataFile())).getChannel();
+						ByteBuffer buf = sendbuf.get();
+						long offset = getDataOffset();
 						while (sofar < length) {
-							int i = buf.length;
-							if (sofar + i > length) {
-								i = (int)(length - sofar);
+							buf.clear();
+							if (length - sofar < buf.capacity()) {
+								buf.limit((int)(length - sofar));
 							}
-							i = is.read(buf, 0, i);
+							int i = fc.read(buf, offset + sofar);
 							if (i <= 0) {
-								throw new IOException("Unexpected problem reading data file " + datafile);
+								throw new IOException("Unexpected problem reading data file " + getDataFile());
 							}
+							os.write(buf.array(), 0, i);
 							sofar += i;
-							os.write(buf, 0, i);
 						}
-						is.close();
+						fc.close();
+						fc = null;
 						os.close();
 					} catch (IOException ioe) {
+						if (fc != null) {
+							try { fc.close(); } catch (Exception e) {}
+						}
 						dth.reportDeliveryExtra(this, sofar);
 						throw ioe;
 					}
@@ -217,8 +391,8 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 				}
 				is = uc.getErrorStream();
 			}
-			byte[] buf = new byte[4096];
 			if (is != null) {
+				byte[] buf = drainbuf.get();
 				while (is.read(buf) > 0) {
 				}
 				is.close();
@@ -228,24 +402,158 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 			dth.reportException(this, e);
 		}
 	}
+	/**
+	 *	Attempt delivery using the asynchronous delivery engine.
+	 *	<p>
+	 *	The outcome is reported to the delivery task helper just as it
+	 *	is by run(), but from one of the engine's threads, after which
+	 *	done is run.
+	 *	@param engine	The engine to perform the delivery
+	 *	@param done	What to do once the outcome has been reported
+	 */
+	public void runAsync(AsyncDelivery engine, Runnable done) {
+		URL u;
+		try {
+			u = prepare();
+		} catch (Exception e) {
+			dth.reportException(this, e);
+			engine.release();
+			done.run();
+			return;
+		}
+		NodeChannel channel = (length <= NodeChannel.MAX_FILE_SIZE) ? dth.getChannel() : null;
+		if (channel != null) {
+			final AsyncDelivery fengine = engine;
+			final Runnable fdone = done;
+			channel.deliver(this, dth, new Runnable() {
+				public void run() {
+					fengine.release();
+					fdone.run();
+				}
+			});
+			return;
+		}
+		engine.deliver(this, dth, u, done);
+	}
+	/**
+	 *	Get the meta data headers to send with the file
+	 */
+	String[][] getHeaders() {
+		Meta m = getMeta();
+		if (m == null) {
+			return(new String[0][]);
+		}
+		if (length != 0) {
+			return(m.hdrs);
+		}
+		Vector<String[]> hdrv = new Vector<String[]>();
+		for (String[] nv: m.hdrs) {
+			if (!nv[0].toLowerCase().startsWith("content-")) {
+				hdrv.add(nv);
+			}
+		}
+		return(hdrv.toArray(new String[hdrv.size()][]));
+	}
+	/**
+	 *	Get the spooled data file (the segment, for a file in a segment)
+	 */
+	File getDataFile() {
+		if (ref != null) {
+			return(ref.getFile());
+		}
+		return(new File(base));
+	}
+	/**
+	 *	Get the offset of the data in the spooled data file
+	 */
+	long getDataOffset() {
+		if (ref != null) {
+			return(ref.getDataOffset());
+		}
+		return(0);
+	}
+	private long getDataLength() {
+		if (ref != null) {
+			return(ref.getLength());
+		}
+		return(getDataFile().length());
+	}
+	/**
+	 *	Get the location of the file in a segment, or null if it isn't in one
+	 */
+	SegmentSpool.Ref getSegmentRef() {
+		return(ref);
+	}
+	/**
+	 *	Get the destination info used for the most recent delivery attempt
+	 */
+	DestInfo getDestInfo() {
+		return(di);
+	}
+	/**
+	 *	Move meta and data files into a quarantine directory
+	 */
+	public void quarantine(File qdir) {
+		qdir.mkdirs();
+		if (ref != null) {
+			// copy the file out of its segment
+			try {
+				FileOutputStream fos = new FileOutputStream(new File(qdir, pubid));
+				fos.write(ref.readData());
+				fos.close();
+				fos = new FileOutputStream(new File(qdir, pubid + ".M"));
+				fos.write(ref.readMeta().getBytes("UTF-8"));
+				fos.close();
+			} catch (IOException ioe) {
+				logger.warn("NODE0510 Unable to quarantine " + pubid + " from segment " + ref.getFile(), ioe);
+			}
+			ref.release();
+			forget();
+			return;
+		}
+		getDataFile().renameTo(new File(qdir, pubid));
+		getMetaFile().renameTo(new File(qdir, pubid + ".M"));
+		if (isToNode()) {
+			getRoutingFile().renameTo(new File(qdir, pubid + ".R"));
+		}
+		forget();
+	}
+	private void forget() {
+		cleaned = true;
+		synchronized (metacache) {
+			metacache.remove(base);
+		}
+	}
 	/**
 	 *	Remove meta and data files
 	 */
 	public void clean() {
-		datafile.delete();
-		metafile.delete();
-		hdrs = null;
+		load();
+		if (ref != null) {
+			if (!cleaned) {
+				ref.release();
+			}
+			forget();
+			return;
+		}
+		getDataFile().delete();
+		getMetaFile().delete();
+		if (isToNode()) {
+			getRoutingFile().delete();
+		}
+		forget();
 	}
 	/**
 	 *	Has this delivery task been cleaned?
 	 */
 	public boolean isCleaned() {
-		return(hdrs == null);
+		return(cleaned);
 	}
 	/**
 	 *	Get length of body
 	 */
 	public long	getLength() {
+		load();
 		return(length);
 	}
 	/**
@@ -258,24 +566,32 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 	 *	Get the most recent delivery attempt URL
 	 */
 	public String getURL() {
+		load();
+		if (url == null && fileid != null) {
+			// not attempted yet
+			return(dth.getDestURL(fileid));
+		}
 		return(url);
 	}
 	/**
 	 *	Get the content type
 	 */
 	public String	getCType() {
+		load();
 		return(ctype);
 	}
 	/**
 	 *	Get the method
 	 */
 	public String	getMethod() {
+		load();
 		return(method);
 	}
 	/**
 	 *	Get the file ID
 	 */
 	public String	getFileId() {
+		load();
 		return(fileid);
 	}
 	/**
@@ -284,16 +600,24 @@ public class DeliveryTask implements Runnable, Comparable<DeliveryTask>	{
 	public int	getAttempts() {
 		return(attempts);
 	}
+	/**
+	 *	Restore the number of delivery attempts (after a restart)
+	 */
+	public void	setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
 	/**
 	 *	Get the (space delimited list of) subscription ID for this delivery task
 	 */
 	public String	getSubId() {
+		load();
 		return(subid);
 	}
 	/**
 	 *	Get the feed ID for this delivery task
 	 */
 	public String	getFeedId() {
+		load();
 		return(feedid);
 	}
 }
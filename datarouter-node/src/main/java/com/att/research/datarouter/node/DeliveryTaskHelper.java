@@ -43,6 +43,14 @@ public interface DeliveryTaskHelper	{
 	 *	@param sent	The number of bytes sent or -1 if an error was returned instead of 100 Continue.
 	 */
 	public void reportDeliveryExtra(DeliveryTask task, long sent);
+	/**
+	 *	Get the timeout (milliseconds) for connecting to the destination
+	 */
+	public int getConnectTimeout();
+	/**
+	 *	Get the timeout (milliseconds) for reading a response from the destination
+	 */
+	public int getReadTimeout();
 	/**
 	 *	Get the destination information for the delivery queue
 	 *	@return	The destination information
@@ -54,6 +62,12 @@ public interface DeliveryTaskHelper	{
 	 *	@return	The URL to deliver to
 	 */
 	public String	getDestURL(String fileid);
+	/**
+	 *	Get the channel for sending files, if the destination is
+	 *	another node that files are sent to over a channel
+	 *	@return	The channel, or null if files should be sent with a PUT for each
+	 */
+	public NodeChannel	getChannel();
 	/**
 	 *	Get the feed ID for a subscription
 	 *	@param subid	The subscription ID
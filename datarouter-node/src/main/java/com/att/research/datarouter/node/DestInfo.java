@@ -17,10 +17,15 @@ package com.att.research.datarouter.node;
 
 /**
  *	Information for a delivery destination that doesn't change from message to message
+ *	<p>
+ *	A destination has a spool directory on each spool volume.  The one on
+ *	the first volume identifies the destination and holds its delivery
+ *	state, such as the retry journal.
  */
 public class DestInfo	{
 	private String	name;
 	private String	spool;
+	private String[]	spools;
 	private String	subid;
 	private String	logdata;
 	private String	url;
@@ -28,6 +33,9 @@ public class DestInfo	{
 	private String	authentication;
 	private boolean	metaonly;
 	private boolean	use100;
+	private int	maxinflight;
+	private int	batchfiles;
+	private long	batchbytes;
 	/**
 	 *	Create a destination information object.
 	 *	@param	name	n:fqdn or s:subid
@@ -39,10 +47,48 @@ public class DestInfo	{
 	 *	@param	authentication	The credentials.
 	 *	@param	metaonly	Is this a metadata only delivery?
 	 *	@param	use100	Should I use expect 100-continue?
+	 *	@param	maxinflight	The maximum number of files being delivered at once.
 	 */
-	public DestInfo(String name, String spool, String subid, String logdata, String url, String authuser, String authentication, boolean metaonly, boolean use100) {
+	public DestInfo(String name, String spool, String subid, String logdata, String url, String authuser, String authentication, boolean metaonly, boolean use100, int maxinflight) {
+		this(name, new String[] { spool }, subid, logdata, url, authuser, authentication, metaonly, use100, maxinflight);
+	}
+	/**
+	 *	Create a destination information object for a destination with
+	 *	spool directories on several spool volumes.
+	 *	@param	name	n:fqdn or s:subid
+	 *	@param	spools	The directories where files are spooled, one per spool volume.
+	 *	@param	subid	The subscription ID (if applicable).
+	 *	@param	logdata	Text to be included in log messages
+	 *	@param	url	The URL to deliver to.
+	 *	@param	authuser	The auth user for logging.
+	 *	@param	authentication	The credentials.
+	 *	@param	metaonly	Is this a metadata only delivery?
+	 *	@param	use100	Should I use expect 100-continue?
+	 *	@param	maxinflight	The maximum number of files being delivered at once.
+	 */
+	public DestInfo(String name, String[] spools, String subid, String logdata, String url, String authuser, String authentication, boolean metaonly, boolean use100, int maxinflight) {
+		this(name, spools, subid, logdata, url, authuser, authentication, metaonly, use100, maxinflight, 1, 0);
+	}
+	/**
+	 *	Create a destination information object for a destination that
+	 *	may receive several files in one request.
+	 *	@param	name	n:fqdn or s:subid
+	 *	@param	spools	The directories where files are spooled, one per spool volume.
+	 *	@param	subid	The subscription ID (if applicable).
+	 *	@param	logdata	Text to be included in log messages
+	 *	@param	url	The URL to deliver to.
+	 *	@param	authuser	The auth user for logging.
+	 *	@param	authentication	The credentials.
+	 *	@param	metaonly	Is this a metadata only delivery?
+	 *	@param	use100	Should I use expect 100-continue?
+	 *	@param	maxinflight	The maximum number of files being delivered at once.
+	 *	@param	batchfiles	The maximum number of files sent in one request (1 for no batching).
+	 *	@param	batchbytes	The maximum total length of the files sent in one request.
+	 */
+	public DestInfo(String name, String[] spools, String subid, String logdata, String url, String authuser, String authentication, boolean metaonly, boolean use100, int maxinflight, int batchfiles, long batchbytes) {
 		this.name = name;
-		this.spool = spool;
+		this.spool = spools[0];
+		this.spools = spools;
 		this.subid = subid;
 		this.logdata = logdata;
 		this.url = url;
@@ -50,6 +96,9 @@ public class DestInfo	{
 		this.authentication = authentication;
 		this.metaonly = metaonly;
 		this.use100 = use100;
+		this.maxinflight = maxinflight;
+		this.batchfiles = batchfiles;
+		this.batchbytes = batchbytes;
 	}
 	public boolean equals(Object o) {
 		return((o instanceof DestInfo) && ((DestInfo)o).spool.equals(spool));
@@ -70,6 +119,20 @@ public class DestInfo	{
 	public String getSpool() {
 		return(spool);
 	}
+	/**
+	 *	Get the spool directory for this destination on a spool volume.
+	 *	@param	volume	The index of the spool volume
+	 *	@return	The spool directory
+	 */
+	public String getSpool(int volume) {
+		return(spools[volume]);
+	}
+	/**
+	 *	Get the number of spool volumes this destination has spool directories on.
+	 */
+	public int getVolumes() {
+		return(spools.length);
+	}
 	/**
 	 *	Get the subscription ID.
 	 *	@return	Subscription ID or null if this is a node to node delivery.
@@ -120,4 +183,31 @@ public class DestInfo	{
 	public boolean isUsing100() {
 		return(use100);
 	}
+	/**
+	 *	Get the maximum number of files that may be delivered at once.
+	 *	@return	The limit on concurrent deliveries to this destination.
+	 */
+	public int getMaxInFlight() {
+		return(maxinflight);
+	}
+	/**
+	 *	Get the maximum number of files that may be sent in one request.
+	 *	@return	The batch size limit, or 1 if files are sent one per request.
+	 */
+	public int getBatchFiles() {
+		return(batchfiles);
+	}
+	/**
+	 *	Get the maximum total length of the files sent in one request.
+	 *	@return	The batch length limit.
+	 */
+	public long getBatchBytes() {
+		return(batchbytes);
+	}
+	/**
+	 *	Are several files sent to this destination in one request?
+	 */
+	public boolean isBatching() {
+		return(batchfiles > 1);
+	}
 }
@@ -0,0 +1,214 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.*;
+
+/**
+ *	Ordered index of the delivery queues, for choosing which file to
+ *	throw away when a spool volume runs low on free space.
+ *	<p>
+ *	Whenever it changes, each delivery queue tells the index the oldest
+ *	file it could give up on each spool volume, and the total length of
+ *	its files there.  For each volume, the index keeps the feeds ordered
+ *	by their rank under the EvictionPolicy, highest first, and then by
+ *	their oldest file, and keeps the queues of each feed ordered by their
+ *	oldest file.  The queue to take a file from is then the first queue
+ *	of the first feed, and a change to a queue only moves that queue and
+ *	its feed, so both choosing and updating take logarithmic time, no
+ *	matter how many files or queues there are.
+ */
+public class EvictionIndex	{
+	private static class Queue	{
+		private DeliveryQueue	dq;
+		private long	seq;
+		private Feed	feed;
+		private String	oldest;
+		private long	bytes;
+		public Queue(DeliveryQueue dq, long seq, Feed feed) {
+			this.dq = dq;
+			this.seq = seq;
+			this.feed = feed;
+		}
+	}
+	private static class Feed	{
+		private String	feedid;
+		private long	bytes;
+		private long	rank;
+		private int	members;
+		private TreeSet<Queue>	queues = new TreeSet<Queue>(byoldest);
+		public Feed(String feedid) {
+			this.feedid = feedid;
+		}
+		public String getOldest() {
+			return(queues.first().oldest);
+		}
+	}
+	private static Comparator<Queue>	byoldest = new Comparator<Queue>() {
+		public int compare(Queue a, Queue b) {
+			int i = a.oldest.compareTo(b.oldest);
+			if (i != 0) {
+				return(i);
+			}
+			return(Long.compare(a.seq, b.seq));
+		}
+	};
+	private static Comparator<Feed>	byrank = new Comparator<Feed>() {
+		public int compare(Feed a, Feed b) {
+			if (a.rank != b.rank) {
+				return(a.rank > b.rank ? -1 : 1);
+			}
+			int i = a.getOldest().compareTo(b.getOldest());
+			if (i != 0) {
+				return(i);
+			}
+			return(a.feedid.compareTo(b.feedid));
+		}
+	};
+	/**
+	 *	The queues and feeds with files on one spool volume
+	 */
+	private class Volume	{
+		private HashMap<DeliveryQueue, Queue>	queues = new HashMap<DeliveryQueue, Queue>();
+		private HashMap<String, Feed>	feeds = new HashMap<String, Feed>();
+		private TreeSet<Feed>	ranked = new TreeSet<Feed>(byrank);
+		private long	seq;
+		public synchronized void update(DeliveryQueue dq, String oldest, long bytes) {
+			Queue q = queues.get(dq);
+			if (q == null) {
+				if (oldest == null && bytes == 0) {
+					return;
+				}
+				String feedid = getFeedId(dq);
+				Feed f = feeds.get(feedid);
+				if (f == null) {
+					f = new Feed(feedid);
+					f.rank = policy.rank(feedid, 0);
+					feeds.put(feedid, f);
+				}
+				f.members++;
+				q = new Queue(dq, ++seq, f);
+				queues.put(dq, q);
+			}
+			Feed f = q.feed;
+			long fbytes = f.bytes - q.bytes + bytes;
+			long rank = policy.rank(f.feedid, fbytes);
+			if (rank == f.rank && (oldest == null ? q.oldest == null : oldest.equals(q.oldest))) {
+				f.bytes = fbytes;
+				q.bytes = bytes;
+			} else {
+				if (!f.queues.isEmpty()) {
+					ranked.remove(f);
+				}
+				if (q.oldest != null) {
+					f.queues.remove(q);
+				}
+				f.bytes = fbytes;
+				f.rank = rank;
+				q.bytes = bytes;
+				q.oldest = oldest;
+				if (oldest != null) {
+					f.queues.add(q);
+				}
+				if (!f.queues.isEmpty()) {
+					ranked.add(f);
+				}
+			}
+			if (oldest == null && bytes == 0) {
+				queues.remove(dq);
+				if (--f.members == 0) {
+					feeds.remove(f.feedid);
+				}
+			}
+		}
+		public synchronized DeliveryQueue choose() {
+			if (ranked.isEmpty()) {
+				return(null);
+			}
+			return(ranked.first().queues.first().dq);
+		}
+		public synchronized void rerank() {
+			ranked.clear();
+			for (Feed f: feeds.values()) {
+				f.rank = policy.rank(f.feedid, f.bytes);
+				if (!f.queues.isEmpty()) {
+					ranked.add(f);
+				}
+			}
+		}
+	}
+	private Volume[]	volumes;
+	private volatile EvictionPolicy	policy;
+	/**
+	 *	Create an empty index
+	 *	@param volumes	The number of spool volumes
+	 *	@param policy	How to rank the feeds
+	 */
+	public EvictionIndex(int volumes, EvictionPolicy policy) {
+		this.policy = policy;
+		this.volumes = new Volume[volumes];
+		for (int i = 0; i < volumes; i++) {
+			this.volumes[i] = new Volume();
+		}
+	}
+	/**
+	 *	Change how the feeds are ranked
+	 */
+	public void setPolicy(EvictionPolicy policy) {
+		this.policy = policy;
+		for (Volume v: volumes) {
+			v.rerank();
+		}
+	}
+	/**
+	 *	Note a change to the files a delivery queue has on a spool volume
+	 *	@param dq	The queue
+	 *	@param volume	The index of the spool volume
+	 *	@param oldest	The oldest file the queue could throw away, or null if there is none
+	 *	@param bytes	The total length of the queue's files on the volume
+	 */
+	public void update(DeliveryQueue dq, int volume, String oldest, long bytes) {
+		if (volume < volumes.length) {
+			volumes[volume].update(dq, oldest, bytes);
+		}
+	}
+	/**
+	 *	Forget a delivery queue that has been removed
+	 */
+	public void remove(DeliveryQueue dq) {
+		for (Volume v: volumes) {
+			v.update(dq, null, 0);
+		}
+	}
+	/**
+	 *	Choose the delivery queue to throw away a file from
+	 *	@param volume	The index of the spool volume to free up space on
+	 *	@return	The queue or null if no queue has a file on the volume that can be thrown away
+	 */
+	public DeliveryQueue choose(int volume) {
+		return(volumes[volume].choose());
+	}
+	/**
+	 *	Get the feed ID of a delivery queue ("" for a queue to another node)
+	 */
+	private static String getFeedId(DeliveryQueue dq) {
+		DestInfo di = dq.getDestInfo();
+		if (di.getSubId() == null || di.getLogData() == null) {
+			return("");
+		}
+		return(di.getLogData());
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.*;
+
+/**
+ *	Choice of which undelivered files to throw away when free disk space
+ *	runs low.
+ *	<p>
+ *	Files are thrown away one at a time, always the oldest file in the
+ *	delivery queue with the oldest file of the highest ranked feed.  A
+ *	policy just ranks the feeds, and the EvictionIndex keeps the queues
+ *	in that order, so the file can be found without looking through the
+ *	queues.  The policies provided are: OldestFirst ranks all feeds
+ *	equally, so it takes the oldest file on the node; LargestFeedFirst
+ *	ranks feeds by the total length of their queued files; and
+ *	LowestPriorityFirst ranks feeds by their FEED_PRIORITY provisioning
+ *	parameter (lowest first).
+ *	<p>
+ *	Each spool volume is checked separately, so a policy chooses among
+ *	the files on the volume that is low on space.
+ */
+public interface EvictionPolicy	{
+	/**
+	 *	Rank a feed (higher ranks are thrown away first)
+	 *	@param feedid	The feed ID ("" for the queues to other nodes)
+	 *	@param bytes	The total length of the feed's queued files on the spool volume
+	 */
+	public long rank(String feedid, long bytes);
+	/**
+	 *	Throw away the oldest files on the node first
+	 */
+	public static class OldestFirst implements EvictionPolicy	{
+		public long rank(String feedid, long bytes) {
+			return(0);
+		}
+	}
+	/**
+	 *	Throw away files from the feed with the most queued data on the volume first
+	 */
+	public static class LargestFeedFirst implements EvictionPolicy	{
+		public long rank(String feedid, long bytes) {
+			return(bytes);
+		}
+	}
+	/**
+	 *	Throw away files from the feed with the lowest FEED_PRIORITY first.
+	 *	Priorities are looked up once, so a new instance should be used
+	 *	whenever the provisioning data changes.
+	 */
+	public static class LowestPriorityFirst implements EvictionPolicy	{
+		private NodeConfigManager	config;
+		private HashMap<String, Long>	priorities = new HashMap<String, Long>();
+		public LowestPriorityFirst(NodeConfigManager config) {
+			this.config = config;
+		}
+		public synchronized long rank(String feedid, long bytes) {
+			Long priority = priorities.get(feedid);
+			if (priority == null) {
+				priority = 0L;
+				try { priority = Long.parseLong(config.getFeedProvParam("FEED_PRIORITY", feedid.length() == 0 ? null : feedid, "0")); } catch (Exception e) {}
+				priorities.put(feedid, priority);
+			}
+			return(-priority);
+		}
+	}
+}
@@ -26,19 +26,24 @@ public class LogManager	extends TimerTask	{
 		public long getInitFailureTimer() { return(10000L); }
 		public double getFailureBackoff() { return(2.0); }
 		public long getMaxFailureTimer() { return(150000L); }
+		public int getMaxAttempts() { return(0); }
 		public long getExpirationTimer() { return(604800000L); }
 		public int getFairFileLimit() { return(10000); }
 		public long getFairTimeLimit() { return(86400000); }
+		public int getConnectTimeout() { return(60000); }
+		public int getReadTimeout() { return(60000); }
 		public String getDestURL(DestInfo dest, String fileid) {
 			return(config.getEventLogUrl());
 		}
 		public void handleUnreachable(DestInfo dest) {}
 		public boolean handleRedirection(DestInfo dest, String location, String fileid) { return(false); }
 		public boolean isFollowRedirects() { return(false); }
+		public NodeChannel getChannel(DestInfo dest) { return(null); }
 		public String getFeedId(String subid) { return(null); }
 		private DeliveryQueue dq;
 		public Uploader() {
-			dq = new DeliveryQueue(this, new DestInfo("LogUpload", uploaddir, null, null, null, config.getMyName(), config.getMyAuth(), false, false));
+			dq = new DeliveryQueue(this, new DestInfo("LogUpload", uploaddir, null, null, null, config.getMyName(), config.getMyAuth(), false, false, 1));
+			dq.rescan();
 			setDaemon(true);
 			setName("Log Uploader");
 			start();
@@ -85,8 +90,12 @@ public class LogManager	extends TimerTask	{
 						lastqueued = fn;
 						try {
 							String pid = config.getPublishId();
-							Files.createLink(Paths.get(uploaddir + "/" + pid), Paths.get(logdir + "/" + fn));
-							Files.createLink(Paths.get(uploaddir + "/" + pid + ".M"), Paths.get(uploaddir + "/.meta"));
+							String dbase = NodeUtils.getSpoolFile(uploaddir, pid);
+							NodeUtils.spoolLink(Paths.get(dbase), Paths.get(logdir + "/" + fn));
+							// The meta data file is linked last, since finding
+							// it is what makes the file eligible for delivery
+							Files.createLink(Paths.get(dbase + ".M"), Paths.get(uploaddir + "/.meta"));
+							dq.addFile(pid, new File(dbase).length());
 						} catch (Exception e) {
 						}
 					}
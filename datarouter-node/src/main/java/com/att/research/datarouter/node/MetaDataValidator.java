@@ -0,0 +1,184 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+/**
+ *	Check the syntax of X-ATT-DR-META headers.
+ *	<p>
+ *	The metadata must be a JSON object whose values are all strings,
+ *	numbers, null, true or false.  The check is a single left to right
+ *	pass over the header value, with no backtracking and no copying.
+ *	It accepts exactly what the regular expression previously used by
+ *	NodeServlet accepted, including its leniencies: any character,
+ *	other than an unescaped double quote, may appear in a string; a
+ *	backslash escapes the next character unless that is a line
+ *	terminator; and numbers may have a leading + sign, a leading or
+ *	trailing decimal point, and no digits after the decimal point.
+ */
+public class MetaDataValidator	{
+	private MetaDataValidator() {}
+	/**
+	 *	Check the syntax of metadata
+	 *	@param s	The metadata
+	 *	@return	-1 if the metadata is valid, otherwise the offset of
+	 *	the first character that is not valid (the length of the
+	 *	metadata, if it ends prematurely).
+	 */
+	public static int check(String s) {
+		int len = s.length();
+		int i = ws(s, 0);
+		if (i == len || s.charAt(i) != '{') {
+			return(i);
+		}
+		i = ws(s, i + 1);
+		if (i < len && s.charAt(i) != '}') {
+			while (true) {
+				if ((i = string(s, i)) < 0) {
+					return(~i);
+				}
+				i = ws(s, i);
+				if (i == len || s.charAt(i) != ':') {
+					return(i);
+				}
+				if ((i = value(s, ws(s, i + 1))) < 0) {
+					return(~i);
+				}
+				i = ws(s, i);
+				if (i == len || s.charAt(i) != ',') {
+					break;
+				}
+				i = ws(s, i + 1);
+			}
+		}
+		if (i == len || s.charAt(i) != '}') {
+			return(i);
+		}
+		i = ws(s, i + 1);
+		if (i != len) {
+			return(i);
+		}
+		return(-1);
+	}
+	/*
+	 *	The parsing methods below take the offset to start at and return
+	 *	the offset just past what they matched, or, if they fail, the
+	 *	complement (~) of the offset of the error.
+	 */
+	private static int ws(String s, int i) {
+		int len = s.length();
+		while (i < len) {
+			char c = s.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != '\f' && c != '\u000b') {
+				break;
+			}
+			i++;
+		}
+		return(i);
+	}
+	private static boolean isLineTerminator(char c) {
+		return(c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029');
+	}
+	private static boolean isDigit(String s, int i) {
+		if (i == s.length()) {
+			return(false);
+		}
+		char c = s.charAt(i);
+		return(c >= '0' && c <= '9');
+	}
+	private static int digits(String s, int i) {
+		while (isDigit(s, i)) {
+			i++;
+		}
+		return(i);
+	}
+	private static int string(String s, int i) {
+		int len = s.length();
+		if (i == len || s.charAt(i) != '"') {
+			return(~i);
+		}
+		i++;
+		while (i < len) {
+			char c = s.charAt(i);
+			if (c == '"') {
+				return(i + 1);
+			}
+			if (c == '\\' && i + 1 < len && !isLineTerminator(s.charAt(i + 1))) {
+				i++;
+			}
+			i++;
+		}
+		return(~len);
+	}
+	private static int literal(String s, int i, String word) {
+		int n = word.length();
+		for (int j = 0; j < n; j++) {
+			if (i + j == s.length() || s.charAt(i + j) != word.charAt(j)) {
+				return(~(i + j));
+			}
+		}
+		return(i + n);
+	}
+	private static int number(String s, int i) {
+		int len = s.length();
+		if (i < len && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+			i++;
+		}
+		if (i < len && s.charAt(i) == '.') {
+			if (!isDigit(s, ++i)) {
+				return(~i);
+			}
+			i = digits(s, i);
+		} else {
+			if (!isDigit(s, i)) {
+				return(~i);
+			}
+			if (s.charAt(i++) != '0') {
+				i = digits(s, i);
+			}
+			if (i < len && s.charAt(i) == '.') {
+				i = digits(s, i + 1);
+			}
+		}
+		if (i < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			i++;
+			if (i < len && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+				i++;
+			}
+			if (!isDigit(s, i)) {
+				return(~i);
+			}
+			i = digits(s, i);
+		}
+		return(i);
+	}
+	private static int value(String s, int i) {
+		if (i == s.length()) {
+			return(~i);
+		}
+		switch (s.charAt(i)) {
+		case '"':
+			return(string(s, i));
+		case 'n':
+			return(literal(s, i, "null"));
+		case 't':
+			return(literal(s, i, "true"));
+		case 'f':
+			return(literal(s, i, "false"));
+		default:
+			return(number(s, i));
+		}
+	}
+}
@@ -0,0 +1,479 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import javax.net.ssl.*;
+import org.apache.log4j.Logger;
+
+/**
+ *	Long lived, multiplexed connection for transferring files to another node.
+ *	<p>
+ *	Rather than a separate PUT to /internal/publish for each file, a node
+ *	channel sends many files to the same node as frames of a single POST
+ *	to /internal/channel, which stays open for as long as the connection
+ *	lasts.  The request is authenticated once, like any other node to
+ *	node request.  Each frame is sent as one chunk of the request body,
+ *	and consists of a line with the frame's sequence number, publish ID,
+ *	method, file ID, number of headers, and data length, separated by
+ *	tabs, followed by a line for each header (name, tab, value), which
+ *	includes the routing, and then the data.  The receiving node spools
+ *	each file as it would one sent to /internal/publish, and streams
+ *	back, in the response body, a line with the sequence number, status,
+ *	and (for a success) publish ID, or (for a failure) message, for each
+ *	frame.
+ *	<p>
+ *	Any number of delivery threads (or the asynchronous delivery engine)
+ *	may send files over the channel at once.  Frames are written one at a
+ *	time, and the outcome of each is reported to its DeliveryTaskHelper
+ *	by the channel's reader thread when its acknowledgement arrives.
+ *	The number of files sent but not yet acknowledged is limited by the
+ *	NODE_CHANNEL_WINDOW provisioning parameter, which is also the number
+ *	of files that may be in flight to the node at once.  Files larger
+ *	than MAX_FILE_SIZE are still sent with their own PUT, so that they
+ *	don't hold up the small files behind them.  If the connection is
+ *	lost, every file awaiting acknowledgement is reported as having
+ *	failed with an exception, and will be retried, and the next file
+ *	sent opens a new connection.
+ */
+public class NodeChannel	{
+	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.NodeChannel");
+	/**
+	 *	The largest file sent over a channel
+	 */
+	public static final long	MAX_FILE_SIZE = 1024 * 1024;
+	private static ConcurrentHashMap<String, NodeChannel>	channels = new ConcurrentHashMap<String, NodeChannel>();
+	/**
+	 *	Receiver of the files sent over a channel
+	 */
+	public interface Receiver	{
+		/**
+		 *	Spool a file
+		 *	@param pubid	The publish ID
+		 *	@param method	The method ("PUT" or "DELETE")
+		 *	@param fileid	The file ID
+		 *	@param hdrs	The headers, including the routing
+		 *	@param data	The data, which need not be read completely
+		 *	@param length	The length of the data
+		 *	@return	The status and message (or publish ID), separated by a space
+		 */
+		public String receive(String pubid, String method, String fileid, String[][] hdrs, InputStream data, long length) throws IOException;
+	}
+	private static class Pending	{
+		private DeliveryTask	task;
+		private DeliveryTaskHelper	dth;
+		private Runnable	done;
+		private Pending(DeliveryTask task, DeliveryTaskHelper dth, Runnable done) {
+			this.task = task;
+			this.dth = dth;
+			this.done = done;
+		}
+	}
+	private String	name;
+	private URL	url;
+	private String	auth;
+	private int	connecttimeout;
+	private int	readtimeout;
+	private Socket	socket;
+	private OutputStream	out;
+	private long	lastseq;
+	private ConcurrentHashMap<Long, Pending>	pending = new ConcurrentHashMap<Long, Pending>();
+	/**
+	 *	Get the channel to a node, creating it if needed
+	 *	@param di	The destination information of the node
+	 *	@param connecttimeout	The timeout (milliseconds) for connecting
+	 *	@param readtimeout	The timeout (milliseconds) for an acknowledgement
+	 */
+	public static NodeChannel get(DestInfo di, int connecttimeout, int readtimeout) {
+		NodeChannel ret = channels.get(di.getName());
+		if (ret == null) {
+			ret = new NodeChannel(di.getName());
+			NodeChannel x = channels.putIfAbsent(di.getName(), ret);
+			if (x != null) {
+				ret = x;
+			}
+		}
+		ret.setDest(di, connecttimeout, readtimeout);
+		return(ret);
+	}
+	private NodeChannel(String name) {
+		this.name = name;
+	}
+	private synchronized void setDest(DestInfo di, int connecttimeout, int readtimeout) {
+		try {
+			String u = di.getURL().replaceAll("/internal/publish$", "/internal/channel");
+			if (url != null && !url.toString().equals(u)) {
+				close(new IOException("Destination changed"));
+			}
+			url = new URL(u);
+		} catch (MalformedURLException mue) {
+			url = null;
+		}
+		auth = di.getAuth();
+		this.connecttimeout = connecttimeout;
+		this.readtimeout = readtimeout;
+	}
+	/**
+	 *	Send a file.  The outcome is reported to the delivery task helper,
+	 *	after which done, if not null, is run.
+	 *	@param task	The file
+	 *	@param dth	Where to report the outcome
+	 *	@param done	What to do after the outcome has been reported
+	 */
+	public void deliver(DeliveryTask task, DeliveryTaskHelper dth, Runnable done) {
+		Pending p = new Pending(task, dth, done);
+		long seq;
+		synchronized (this) {
+			seq = ++lastseq;
+			pending.put(seq, p);
+			try {
+				if (out == null) {
+					connect();
+				}
+				writeFrame(seq, task);
+				NodeStats.inc("channel.files");
+				return;
+			} catch (IOException ioe) {
+				close(ioe);
+			}
+		}
+	}
+	/**
+	 *	Send a file and wait for the outcome to be reported
+	 */
+	public void deliverAndWait(DeliveryTask task, DeliveryTaskHelper dth) {
+		final CountDownLatch latch = new CountDownLatch(1);
+		deliver(task, dth, new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		});
+		while (true) {
+			try {
+				latch.await();
+				return;
+			} catch (InterruptedException ie) {
+			}
+		}
+	}
+	private void connect() throws IOException {
+		if (url == null) {
+			throw new IOException("Invalid channel URL for " + name);
+		}
+		boolean https = "https".equals(url.getProtocol());
+		int port = url.getPort();
+		if (port == -1) {
+			port = https ? 443 : 80;
+		}
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(url.getHost(), port), connecttimeout);
+			s.setTcpNoDelay(true);
+			s.setSoTimeout(readtimeout);
+			if (https) {
+				SSLSocket ss = (SSLSocket)DeliverySocketFactory.getInstance().createSocket(s, url.getHost(), port, true);
+				SSLParameters sp = ss.getSSLParameters();
+				sp.setEndpointIdentificationAlgorithm("HTTPS");
+				ss.setSSLParameters(sp);
+				s = ss;
+				ss.startHandshake();
+			}
+			OutputStream os = new BufferedOutputStream(s.getOutputStream(), 65536);
+			String hp = url.getHost() + (url.getPort() == -1 ? "" : ":" + url.getPort());
+			os.write(("POST " + url.getFile() + " HTTP/1.1\r\nHost: " + hp + "\r\nAuthorization: " + auth + "\r\nContent-Type: application/octet-stream\r\nTransfer-Encoding: chunked\r\n\r\n").getBytes("UTF-8"));
+			os.flush();
+			socket = s;
+			out = os;
+		} catch (IOException ioe) {
+			try { s.close(); } catch (Exception e) {}
+			throw ioe;
+		}
+		NodeStats.inc("channel.connections");
+		final Socket fs = s;
+		Thread t = new Thread("Node Channel " + name) {
+			public void run() {
+				readAcks(fs);
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+	private void writeFrame(long seq, DeliveryTask task) throws IOException {
+		String method = task.getMethod();
+		long length = task.getLength();
+		String[][] hdrs = task.getHeaders();
+		StringBuffer sb = new StringBuffer();
+		sb.append(seq).append('\t').append(task.getPublishId()).append('\t').append(method).append('\t').append(task.getFileId()).append('\t').append(hdrs.length).append('\t').append(length).append('\n');
+		for (String[] nv: hdrs) {
+			sb.append(nv[0]).append('\t').append(nv[1]).append('\n');
+		}
+		byte[] head = sb.toString().getBytes("UTF-8");
+		out.write((Long.toHexString(head.length + length) + "\r\n").getBytes("UTF-8"));
+		out.write(head);
+		if (length > 0) {
+			FileChannel fc = (new FileInputStream(task.getDataFile())).getChannel();
+			try {
+				WritableByteChannel wbc = Channels.newChannel(out);
+				long offset = task.getDataOffset();
+				long sofar = 0;
+				while (sofar < length) {
+					long i = fc.transferTo(offset + sofar, length - sofar, wbc);
+					if (i <= 0) {
+						throw new IOException("Unexpected problem reading data file " + task.getDataFile());
+					}
+					sofar += i;
+				}
+			} finally {
+				fc.close();
+			}
+		}
+		out.write('\r');
+		out.write('\n');
+		out.flush();
+	}
+	private void readAcks(Socket s) {
+		Exception why = new EOFException("Channel closed by " + name);
+		try {
+			InputStream is = new BufferedInputStream(s.getInputStream());
+			String status = readLine(is);
+			if (status == null || !status.matches("HTTP/1\\.[01] 200 .*")) {
+				throw new IOException("Unexpected response " + status);
+			}
+			boolean chunked = false;
+			String line;
+			while ((line = readLine(is)) != null && line.length() != 0) {
+				if (line.toLowerCase().matches("transfer-encoding:\\s*chunked\\s*")) {
+					chunked = true;
+				}
+			}
+			if (chunked) {
+				is = new ChunkedInputStream(is);
+			}
+			while (true) {
+				try {
+					line = readLine(is);
+				} catch (SocketTimeoutException ste) {
+					if (pending.isEmpty()) {
+						continue;
+					}
+					throw ste;
+				}
+				if (line == null) {
+					break;
+				}
+				String[] f = line.split(" ", 3);
+				Pending p = pending.remove(Long.parseLong(f[0]));
+				if (p == null) {
+					continue;
+				}
+				int rc = Integer.parseInt(f[1]);
+				String extra = (f.length > 2) ? f[2] : null;
+				if (rc >= 200 && rc <= 299) {
+					p.dth.reportStatus(p.task, rc, extra, null);
+				} else {
+					p.dth.reportStatus(p.task, rc, null, extra);
+				}
+				if (p.done != null) {
+					p.done.run();
+				}
+			}
+		} catch (Exception e) {
+			why = e;
+		}
+		synchronized (this) {
+			if (socket == s) {
+				close(why);
+			}
+		}
+		try { s.close(); } catch (Exception e) {}
+	}
+	private synchronized void close(Exception why) {
+		if (socket != null) {
+			logger.info("NODE0513 Closing node channel to " + name + ": " + why);
+			try { socket.close(); } catch (Exception e) {}
+			socket = null;
+			out = null;
+		}
+		for (Long seq: pending.keySet()) {
+			Pending p = pending.remove(seq);
+			if (p != null) {
+				p.dth.reportException(p.task, why);
+				if (p.done != null) {
+					p.done.run();
+				}
+			}
+		}
+	}
+	/**
+	 *	Read the files sent over a channel, passing each to a receiver and
+	 *	acknowledging it, until the sender closes the channel
+	 *	@param is	The request body (with any chunked encoding removed)
+	 *	@param os	The response body
+	 *	@param r	Where to send the files
+	 */
+	public static void serve(InputStream is, OutputStream os, Receiver r) throws IOException {
+		is = new BufferedInputStream(is, 65536);
+		String line;
+		while ((line = readLine(is)) != null) {
+			String[] f = line.split("\t");
+			if (f.length != 6) {
+				throw new IOException("Malformed frame " + line);
+			}
+			int nhdrs = Integer.parseInt(f[4]);
+			long length = Long.parseLong(f[5]);
+			String[][] hdrs = new String[nhdrs][];
+			for (int i = 0; i < nhdrs; i++) {
+				String h = readLine(is);
+				int j = (h == null) ? -1 : h.indexOf('\t');
+				if (j == -1) {
+					throw new IOException("Malformed header in frame " + f[0]);
+				}
+				hdrs[i] = new String[] { h.substring(0, j), h.substring(j + 1) };
+			}
+			LimitedInputStream data = new LimitedInputStream(is, length);
+			String ack;
+			try {
+				ack = r.receive(f[1], f[2], f[3], hdrs, data, length);
+			} catch (IOException ioe) {
+				ack = "500 " + ioe.getMessage();
+			}
+			if (data.skipRest() != 0) {
+				throw new EOFException("Channel closed in the middle of frame " + f[0]);
+			}
+			os.write((f[0] + " " + ack.replaceAll("[\r\n]", " ") + "\n").getBytes("UTF-8"));
+			os.flush();
+		}
+	}
+	private static String readLine(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+		int c;
+		while ((c = is.read()) != '\n') {
+			if (c == -1) {
+				if (bos.size() == 0) {
+					return(null);
+				}
+				break;
+			}
+			bos.write(c);
+		}
+		String ret = bos.toString("UTF-8");
+		if (ret.endsWith("\r")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		return(ret);
+	}
+	/**
+	 *	The data of one frame
+	 */
+	private static class LimitedInputStream extends InputStream	{
+		private InputStream	is;
+		private long	left;
+		private LimitedInputStream(InputStream is, long left) {
+			this.is = is;
+			this.left = left;
+		}
+		public int read() throws IOException {
+			if (left <= 0) {
+				return(-1);
+			}
+			int ret = is.read();
+			if (ret != -1) {
+				left--;
+			}
+			return(ret);
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (left <= 0) {
+				return(-1);
+			}
+			int ret = is.read(b, off, (int)Math.min(len, left));
+			if (ret > 0) {
+				left -= ret;
+			}
+			return(ret);
+		}
+		/**
+		 *	Skip the rest of the data
+		 *	@return	The number of bytes missing at the end of the stream
+		 */
+		private long skipRest() throws IOException {
+			byte[] buf = new byte[8192];
+			while (left > 0 && read(buf, 0, buf.length) > 0) {
+			}
+			return(left);
+		}
+	}
+	/**
+	 *	Decoding of a chunked response body
+	 */
+	private static class ChunkedInputStream extends InputStream	{
+		private InputStream	is;
+		private long	left;
+		private boolean	eof;
+		private ChunkedInputStream(InputStream is) {
+			this.is = is;
+		}
+		private boolean fill() throws IOException {
+			while (left == 0 && !eof) {
+				String s = readLine(is);
+				if (s == null) {
+					eof = true;
+					break;
+				}
+				s = s.trim();
+				int i = s.indexOf(';');
+				if (i != -1) {
+					s = s.substring(0, i);
+				}
+				if (s.length() == 0) {
+					continue;
+				}
+				left = Long.parseLong(s, 16);
+				if (left == 0) {
+					eof = true;
+				}
+			}
+			return(!eof);
+		}
+		public int read() throws IOException {
+			if (!fill()) {
+				return(-1);
+			}
+			int ret = is.read();
+			if (ret == -1) {
+				eof = true;
+			} else {
+				left--;
+			}
+			return(ret);
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!fill()) {
+				return(-1);
+			}
+			int ret = is.read(b, off, (int)Math.min(len, left));
+			if (ret == -1) {
+				eof = true;
+			} else {
+				left -= ret;
+			}
+			return(ret);
+		}
+	}
+}
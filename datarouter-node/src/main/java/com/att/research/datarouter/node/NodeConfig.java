@@ -187,6 +187,9 @@ public class NodeConfig	{
 		private String	credentials;
 		private boolean	metaonly;
 		private boolean	use100;
+		private int	maxinflight;
+		private int	batchfiles;
+		private long	batchbytes;
 		/**
 		 *	Construct a subscription configuration entry
 		 *	@param subid	The subscription ID
@@ -196,8 +199,11 @@ public class NodeConfig	{
 		 *	@param credentials	The credentials used to authenticate to the delivery URL exactly as they go in the Authorization header.
 		 *	@param metaonly	Is this a meta data only subscription?
 		 *	@param use100	Should we send Expect: 100-continue?
+		 *	@param maxinflight	The maximum number of concurrent deliveries to this subscription
+		 *	@param batchfiles	The maximum number of files to deliver in one request
+		 *	@param batchbytes	The maximum total length of the files delivered in one request
 		 */
-		public ProvSubscription(String subid, String feedid, String url, String authuser, String credentials, boolean metaonly, boolean use100) {
+		public ProvSubscription(String subid, String feedid, String url, String authuser, String credentials, boolean metaonly, boolean use100, int maxinflight, int batchfiles, long batchbytes) {
 			this.subid = subid;
 			this.feedid = feedid;
 			this.url = url;
@@ -205,6 +211,9 @@ public class NodeConfig	{
 			this.credentials = credentials;
 			this.metaonly = metaonly;
 			this.use100 = use100;
+			this.maxinflight = maxinflight;
+			this.batchfiles = batchfiles;
+			this.batchbytes = batchbytes;
 		}
 		/**
 		 *	Get the subscription ID
@@ -248,6 +257,24 @@ public class NodeConfig	{
 		public boolean isUsing100() {
 			return(use100);
 		}
+		/**
+		 *	Get the maximum number of concurrent deliveries
+		 */
+		public int getMaxInFlight() {
+			return(maxinflight);
+		}
+		/**
+		 *	Get the maximum number of files delivered in one request
+		 */
+		public int getBatchFiles() {
+			return(batchfiles);
+		}
+		/**
+		 *	Get the maximum total length of the files delivered in one request
+		 */
+		public long getBatchBytes() {
+			return(batchbytes);
+		}
 	}
 	/**
 	 *	Raw configuration entry for controlled ingress to the data router node
@@ -388,29 +415,42 @@ public class NodeConfig	{
 	private String	myauth;
 	private DestInfo[]	alldests;
 	private int	rrcntr;
+	/**
+	 *	Get (and create) a destination's spool directory on each spool volume
+	 */
+	private static String[] spools(String[] spooldirs, String dir) {
+		String[] ret = new String[spooldirs.length];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = spooldirs[i] + dir;
+			(new File(ret[i])).mkdirs();
+		}
+		return(ret);
+	}
 	/**
 	 *	Process the raw provisioning data to configure this node
 	 *	@param pd	The parsed provisioning data
 	 *	@param myname	My name as seen by external systems
-	 *	@param spooldir	The directory where temporary files live
+	 *	@param spooldirs	The base spool directory on each spool volume
 	 *	@param port	The port number for URLs
 	 *	@param nodeauthkey	The keying string used to generate node authentication credentials
 	 */
-	public NodeConfig(ProvData pd, String myname, String spooldir, int port, String nodeauthkey) {
+	public NodeConfig(ProvData pd, String myname, String[] spooldirs, int port, String nodeauthkey) {
 		this.myname = myname;
 		for (ProvParam p: pd.getParams()) {
 			params.put(p.getName(), p.getValue());
 		}
 		Vector<DestInfo>	div = new Vector<DestInfo>();
 		myauth = NodeUtils.getNodeAuthHdr(myname, nodeauthkey);
+		// Files sent over a node channel may be in flight together
+		int nodeinflight = 1;
+		try { nodeinflight = Math.max(1, Integer.parseInt(params.get("NODE_CHANNEL_WINDOW"))); } catch (Exception e) {}
 		for (ProvNode pn: pd.getNodes()) {
 			String cn = pn.getCName();
 			if (nodeinfo.get(cn) != null) {
 				continue;
 			}
 			String auth = NodeUtils.getNodeAuthHdr(cn, nodeauthkey);
-			DestInfo di = new DestInfo("n:" + cn, spooldir + "/n/" + cn, null, "n2n-" + cn, "https://" + cn + ":" + port + "/internal/publish", cn, myauth, false, true);
-			(new File(di.getSpool())).mkdirs();
+			DestInfo di = new DestInfo("n:" + cn, spools(spooldirs, "/n/" + cn), null, "n2n-" + cn, "https://" + cn + ":" + port + "/internal/publish", cn, myauth, false, true, nodeinflight);
 			div.add(di);
 			nodeinfo.put(cn, di);
 			nodes.put(auth, new IsFrom(cn));
@@ -479,8 +519,7 @@ public class NodeConfig	{
 			} catch (Exception e) {
 			}
 			String siddir = sididx + "/" + sid;
-			DestInfo di = new DestInfo("s:" + sid, spooldir + "/s/" + siddir, sid, fid, ps.getURL(), ps.getAuthUser(), ps.getCredentials(), ps.isMetaDataOnly(), ps.isUsing100());
-			(new File(di.getSpool())).mkdirs();
+			DestInfo di = new DestInfo("s:" + sid, spools(spooldirs, "/s/" + siddir), sid, fid, ps.getURL(), ps.getAuthUser(), ps.getCredentials(), ps.isMetaDataOnly(), ps.isUsing100(), ps.getMaxInFlight(), ps.getBatchFiles(), ps.getBatchBytes());
 			div.add(di);
 			subinfo.put(sid, di);
 			String egr = egrtab.get(sid);
@@ -17,6 +17,7 @@ package com.att.research.datarouter.node;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import org.apache.log4j.Logger;
 
@@ -42,6 +43,7 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 
 	private Timer timer = new Timer("Node Configuration Timer", true);
 	private long	maxfailuretimer;
+	private int	maxattempts;
 	private long	initfailuretimer;
 	private long	expirationtimer;
 	private double	failurebackoff;
@@ -49,7 +51,18 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	private int	fairfilelimit;
 	private double	fdpstart;
 	private double	fdpstop;
+	private double	fdppublish;
 	private int	deliverythreads;
+	private boolean	asyncdelivery;
+	private String	evictionpolicy;
+	private long	checkpointinterval;
+	private int	asyncthreads;
+	private int	asyncmaxtransfers;
+	private int	asyncmaxidle;
+	private long	asyncidletimeout;
+	private int	channelwindow;
+	private int	connecttimeout;
+	private int	readtimeout;
 	private String	provurl;
 	private String	provhost;
 	private IsFrom	provcheck;
@@ -57,8 +70,12 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	private int	svcport;
 	private int	port;
 	private String	spooldir;
+	private String[]	spooldirs;
+	private String	spoolplacement;
+	private long	cutthroughminsize;
 	private String	logdir;
 	private long	logretention;
+	private long	eventlogflush;
 	private String	redirfile;
 	private String	kstype;
 	private String	ksfile;
@@ -75,6 +92,9 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	private PublishId	pid;
 	private String	nak;
 	private TaskList	configtasks = new TaskList();
+	private ConcurrentHashMap<String, double[]>	publimits = new ConcurrentHashMap<String, double[]>();
+	private ConcurrentHashMap<String, Integer>	pubbacklogs = new ConcurrentHashMap<String, Integer>();
+	private ConcurrentHashMap<String, Long>	segmentlimits = new ConcurrentHashMap<String, Long>();
 	private String	eventlogurl;
 	private String	eventlogprefix;
 	private String	eventlogsuffix;
@@ -118,12 +138,17 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 		port = Integer.parseInt(p.getProperty("ExtHttpsPort", "443"));
 		long minpfinterval = Long.parseLong(p.getProperty("MinProvFetchInterval", "10000"));
 		long minrsinterval = Long.parseLong(p.getProperty("MinRedirSaveInterval", "10000"));
-		spooldir = p.getProperty("SpoolDir", "spool");
-		File fdir = new File(spooldir + "/f");
-		fdir.mkdirs();
-		for (File junk: fdir.listFiles()) {
-			if (junk.isFile()) {
-				junk.delete();
+		spooldirs = p.getProperty("SpoolDir", "spool").trim().split("\\s*,\\s*");
+		spooldir = spooldirs[0];
+		spoolplacement = p.getProperty("SpoolPlacement", "leastused");
+		cutthroughminsize = Long.parseLong(p.getProperty("CutThroughMinSize", "-1"));
+		for (String sd: spooldirs) {
+			File fdir = new File(sd + "/f");
+			fdir.mkdirs();
+			for (File junk: fdir.listFiles()) {
+				if (junk.isFile()) {
+					junk.delete();
+				}
 			}
 		}
 		logdir = p.getProperty("LogDir", "logs");
@@ -131,6 +156,7 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 		logretention = Long.parseLong(p.getProperty("LogRetention", "30")) * 86400000L;
 		eventlogprefix = logdir + "/events";
 		eventlogsuffix = ".log";
+		eventlogflush = Long.parseLong(p.getProperty("EventLogFlushInterval", "0"));
 		String redirfile = p.getProperty("RedirectionFile", "etc/redirections.dat");
 		kstype = p.getProperty("KeyStoreType", "jks");
 		ksfile = p.getProperty("KeyStoreFile", "etc/keystore");
@@ -144,6 +170,7 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 			System.setProperty("javax.net.ssl.trustStore", tsfile);
 			System.setProperty("javax.net.ssl.trustStorePassword", tspass);
 		}
+		DeliverySocketFactory.init(Integer.parseInt(p.getProperty("TLSSessionCacheSize", "0")), Integer.parseInt(p.getProperty("TLSSessionTimeout", "86400")));
 		nak = p.getProperty("NodeAuthKey", "Node123!");
 		quiesce = new File(p.getProperty("QuiesceFile", "etc/SHUTDOWN"));
 		myname = NodeUtils.getCanonicalName(kstype, ksfile, kspass);
@@ -169,22 +196,50 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 		eventloginterval = getProvParam("LOGROLL_INTERVAL", "5m");
 		initfailuretimer = 10000;
 		maxfailuretimer = 3600000;
+		maxattempts = 0;
 		expirationtimer = 86400000;
 		failurebackoff = 2.0;
 		deliverythreads = 40;
+		asyncthreads = 2;
+		asyncmaxtransfers = 1000;
+		asyncmaxidle = 5;
+		asyncidletimeout = 5000;
 		fairfilelimit = 100;
 		fairtimelimit = 60000;
+		connecttimeout = 60000;
+		readtimeout = 60000;
 		fdpstart = 0.05;
 		fdpstop = 0.2;
+		fdppublish = 0.1;
 		try { initfailuretimer = (long)(Double.parseDouble(getProvParam("DELIVERY_INIT_RETRY_INTERVAL")) * 1000); } catch (Exception e) {}
 		try { maxfailuretimer = (long)(Double.parseDouble(getProvParam("DELIVERY_MAX_RETRY_INTERVAL")) * 1000); } catch (Exception e) {}
+		try { maxattempts = Integer.parseInt(getProvParam("DELIVERY_MAX_ATTEMPTS")); } catch (Exception e) {}
 		try { expirationtimer = (long)(Double.parseDouble(getProvParam("DELIVERY_MAX_AGE")) * 1000); } catch (Exception e) {}
 		try { failurebackoff = Double.parseDouble(getProvParam("DELIVERY_RETRY_RATIO")); } catch (Exception e) {}
 		try { deliverythreads = Integer.parseInt(getProvParam("DELIVERY_THREADS")); } catch (Exception e) {}
+		asyncdelivery = "async".equalsIgnoreCase(getProvParam("DELIVERY_ENGINE", "thread"));
+		evictionpolicy = getProvParam("EVICTION_POLICY", "oldest");
+		checkpointinterval = 60000;
+		try { checkpointinterval = (long)(Double.parseDouble(getProvParam("SPOOL_CHECKPOINT_INTERVAL")) * 1000); } catch (Exception e) {}
+		try { asyncthreads = Integer.parseInt(getProvParam("DELIVERY_ASYNC_THREADS")); } catch (Exception e) {}
+		try { asyncmaxtransfers = Integer.parseInt(getProvParam("DELIVERY_ASYNC_MAX_TRANSFERS")); } catch (Exception e) {}
+		try { asyncmaxidle = Integer.parseInt(getProvParam("DELIVERY_ASYNC_MAX_IDLE")); } catch (Exception e) {}
+		try { asyncidletimeout = (long)(Double.parseDouble(getProvParam("DELIVERY_ASYNC_IDLE_TIMEOUT")) * 1000); } catch (Exception e) {}
+		channelwindow = 0;
+		try { channelwindow = Integer.parseInt(getProvParam("NODE_CHANNEL_WINDOW")); } catch (Exception e) {}
 		try { fairfilelimit = Integer.parseInt(getProvParam("FAIR_FILE_LIMIT")); } catch (Exception e) {}
 		try { fairtimelimit = (long)(Double.parseDouble(getProvParam("FAIR_TIME_LIMIT")) * 1000); } catch (Exception e) {}
+		try { connecttimeout = (int)(Double.parseDouble(getProvParam("DELIVERY_CONNECT_TIMEOUT")) * 1000); } catch (Exception e) {}
+		try { readtimeout = (int)(Double.parseDouble(getProvParam("DELIVERY_READ_TIMEOUT")) * 1000); } catch (Exception e) {}
 		try { fdpstart = Double.parseDouble(getProvParam("FREE_DISK_RED_PERCENT")) / 100.0; } catch (Exception e) {}
 		try { fdpstop = Double.parseDouble(getProvParam("FREE_DISK_YELLOW_PERCENT")) / 100.0; } catch (Exception e) {}
+		try { fdppublish = Double.parseDouble(getProvParam("PUBLISH_FREE_DISK_PERCENT")) / 100.0; } catch (Exception e) {}
+		publimits.clear();
+		pubbacklogs.clear();
+		segmentlimits.clear();
+		long syncwindow = 2;
+		try { syncwindow = Long.parseLong(getProvParam("PUBLISH_GROUP_COMMIT_WINDOW")); } catch (Exception e) {}
+		SpoolSync.setWindow(syncwindow);
 		if (fdpstart < 0.01) {
 			fdpstart = 0.01;
 		}
@@ -197,12 +252,15 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 		if (fdpstop > 0.5) {
 			fdpstop = 0.5;
 		}
+		if (fdppublish > 0 && fdppublish <= fdpstart) {
+			fdppublish = fdpstart + 0.01;
+		}
 	}
 	private void fetchconfig() {
 		try {
 			System.out.println("provurl:: "+provurl);
 			Reader r = new InputStreamReader((new URL(provurl)).openStream());
-			config = new NodeConfig(new ProvData(r), myname, spooldir, port, nak);
+			config = new NodeConfig(new ProvData(r), myname, spooldirs, port, nak);
 			localconfig();
 			configtasks.startRun();
 			Runnable rr;
@@ -313,12 +371,110 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 		}
 		return(name);
 	}
+	/**
+	 *	Get a provisioned configuration parameter that may be overridden
+	 *	for a feed.  The parameter NAME.FEEDID is used if it is defined,
+	 *	and otherwise the parameter NAME.
+	 *	@param name	The name of the parameter
+	 *	@param feedid	The feed ID (or null for no feed specific value)
+	 *	@param deflt	The value to use if neither parameter is defined
+	 *	@return	The value of the parameter or deflt if it is not defined.
+	 */
+	public String getFeedProvParam(String name, String feedid, String deflt) {
+		String ret = null;
+		if (feedid != null) {
+			ret = config.getProvParam(name + "." + feedid);
+		}
+		if (ret == null) {
+			ret = getProvParam(name, deflt);
+		}
+		return(ret);
+	}
+	/**
+	 *	Get the durability mode (see SpoolSync) for files published to a feed
+	 *	@param feedid	The feed ID or null if not known
+	 */
+	public int getPublishDurability(String feedid) {
+		return(SpoolSync.parseMode(getFeedProvParam("PUBLISH_DURABILITY", feedid, null), SpoolSync.NONE));
+	}
+	/**
+	 *	Get the publish rate limits for a feed.  The limits are the
+	 *	PUBLISH_RATE_LIMIT (requests per second) and
+	 *	PUBLISH_BYTE_RATE_LIMIT (bytes per second) for the feed as a
+	 *	whole, and PUBLISHER_RATE_LIMIT and PUBLISHER_BYTE_RATE_LIMIT
+	 *	for each publisher to the feed, each of which may be overridden
+	 *	for the feed.  0 means no limit.
+	 *	@param feedid	The feed ID
+	 *	@return	The four limits, in the order above
+	 */
+	public double[] getPublishLimits(String feedid) {
+		double[] ret = publimits.get(feedid);
+		if (ret == null) {
+			String[] names = { "PUBLISH_RATE_LIMIT", "PUBLISH_BYTE_RATE_LIMIT", "PUBLISHER_RATE_LIMIT", "PUBLISHER_BYTE_RATE_LIMIT" };
+			ret = new double[names.length];
+			for (int i = 0; i < names.length; i++) {
+				try { ret[i] = Double.parseDouble(getFeedProvParam(names[i], feedid, "0")); } catch (Exception e) {}
+			}
+			publimits.put(feedid, ret);
+		}
+		return(ret);
+	}
+	/**
+	 *	Get the maximum number of files queued for any one destination
+	 *	of a feed, above which publishing to the feed is refused.  This
+	 *	is PUBLISH_MAX_BACKLOG, which may be overridden for the feed.
+	 *	0 means no limit.
+	 *	@param feedid	The feed ID
+	 */
+	public int getPublishMaxBacklog(String feedid) {
+		Integer ret = pubbacklogs.get(feedid);
+		if (ret == null) {
+			ret = 0;
+			try { ret = Integer.parseInt(getFeedProvParam("PUBLISH_MAX_BACKLOG", feedid, "0")); } catch (Exception e) {}
+			pubbacklogs.put(feedid, ret);
+		}
+		return(ret);
+	}
+	/**
+	 *	Get the largest file published to a feed that is spooled in a
+	 *	segment (see SegmentSpool).  This is SEGMENT_MAX_FILE_SIZE
+	 *	(default 65536 bytes) if the feed's SPOOL_ENGINE is "segment",
+	 *	each of which may be overridden for the feed.  Otherwise, it is
+	 *	-1, meaning every file is spooled in its own data file.
+	 *	@param feedid	The feed ID
+	 */
+	public long getSegmentMaxFileSize(String feedid) {
+		Long ret = segmentlimits.get(feedid);
+		if (ret == null) {
+			ret = -1L;
+			if ("segment".equalsIgnoreCase(getFeedProvParam("SPOOL_ENGINE", feedid, "file"))) {
+				ret = 65536L;
+				try { ret = Long.parseLong(getFeedProvParam("SEGMENT_MAX_FILE_SIZE", feedid, "65536")); } catch (Exception e) {}
+			}
+			segmentlimits.put(feedid, ret);
+		}
+		return(ret);
+	}
+	/**
+	 *	Get the segment spool on a spool volume
+	 *	@param volume	The index of the spool volume
+	 */
+	public SegmentSpool getSegmentSpool(int volume) {
+		return(SegmentSpool.get(spooldirs[volume] + "/g"));
+	}
 	/**
 	 *	Generate a publish ID
 	 */
 	public String getPublishId() {
 		return(pid.next());
 	}
+	/**
+	 *	Generate a block of consecutive publish IDs
+	 *	@param count	The number of publish IDs
+	 */
+	public String[] getPublishIds(int count) {
+		return(pid.next(count));
+	}
 	/**
 	 *	Get all the outbound spooling destinations.
 	 *	This will include both subscriptions and nodes.
@@ -395,6 +551,12 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	public long getMaxFailureTimer() {
 		return(maxfailuretimer);
 	}
+	/**
+	 *	Get the number of delivery attempts after which a refused file is quarantined
+	 */
+	public int getMaxAttempts() {
+		return(maxattempts);
+	}
 	/**
 	 *	Get the ratio between consecutive delivery attempts
 	 */
@@ -421,6 +583,18 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	public long getFairTimeLimit() {
 		return(fairtimelimit);
 	}
+	/**
+	 *	Get the timeout for connecting to a destination
+	 */
+	public int getConnectTimeout() {
+		return(connecttimeout);
+	}
+	/**
+	 *	Get the timeout for reading a response from a destination
+	 */
+	public int getReadTimeout() {
+		return(readtimeout);
+	}
 	/**
 	 *	Get the targets for a feed
 	 *	@param feedid	The feed ID
@@ -435,12 +609,44 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	public String getSpoolDir() {
 		return(spooldir + "/f");
 	}
+	/**
+	 *	Get the spool directory for temporary files on a spool volume
+	 *	@param volume	The index of the spool volume
+	 */
+	public String getSpoolDir(int volume) {
+		return(spooldirs[volume] + "/f");
+	}
 	/**
 	 *	Get the base directory for spool directories
 	 */
 	public String getSpoolBase() {
 		return(spooldir);
 	}
+	/**
+	 *	Get the base directory for spool directories on each spool volume.
+	 *	These are listed, separated by commas, in the SpoolDir property.
+	 *	Each should be on a separate file system.
+	 */
+	public String[] getSpoolBases() {
+		return(spooldirs);
+	}
+	/**
+	 *	Get how a spool volume is chosen for each publication.  This is
+	 *	the SpoolPlacement property, which is "leastused" (the default),
+	 *	"roundrobin", or "feedhash".
+	 */
+	public String getSpoolPlacement() {
+		return(spoolplacement);
+	}
+	/**
+	 *	Get the smallest file that is forwarded to another node while
+	 *	it is still being received (see CutThrough).  This is the
+	 *	CutThroughMinSize property.  If negative (the default), files
+	 *	are always spooled completely before being forwarded.
+	 */
+	public long getCutThroughMinSize() {
+		return(cutthroughminsize);
+	}
 	/**
 	 *	Get the key store type
 	 */
@@ -495,6 +701,58 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	public int	getDeliveryThreads() {
 		return(deliverythreads);
 	}
+	/**
+	 *	Should files be delivered by the asynchronous delivery engine
+	 *	instead of by delivery threads?
+	 */
+	public boolean	isAsyncDelivery() {
+		return(asyncdelivery);
+	}
+	/**
+	 *	Get the name of the policy for choosing which files to throw away
+	 *	when free disk space runs low.  This is EVICTION_POLICY, which is
+	 *	"oldest" (the default), "largestfeed", or "lowestpriority".
+	 */
+	public String getEvictionPolicy() {
+		return(evictionpolicy);
+	}
+	/**
+	 *	Get how often (in milliseconds) each delivery queue's files are
+	 *	checkpointed (see QueueCheckpoint).  This is
+	 *	SPOOL_CHECKPOINT_INTERVAL (seconds, default 60).  0 means never.
+	 */
+	public long getSpoolCheckpointInterval() {
+		return(checkpointinterval);
+	}
+	/**
+	 *	Get the number of event loop threads for the asynchronous delivery engine
+	 */
+	public int	getAsyncDeliveryThreads() {
+		return(asyncthreads);
+	}
+	/**
+	 *	Get the maximum number of transfers the asynchronous delivery engine has in progress at once
+	 */
+	public int	getAsyncMaxTransfers() {
+		return(asyncmaxtransfers);
+	}
+	/**
+	 *	Get the maximum number of idle connections to each destination
+	 *	that the asynchronous delivery engine keeps open for reuse.  This
+	 *	is DELIVERY_ASYNC_MAX_IDLE.  Default is 5.  0 means connections
+	 *	are never reused.
+	 */
+	public int	getAsyncMaxIdle() {
+		return(asyncmaxidle);
+	}
+	/**
+	 *	Get how long (in milliseconds) the asynchronous delivery engine
+	 *	keeps an idle connection open for reuse.  This is
+	 *	DELIVERY_ASYNC_IDLE_TIMEOUT (seconds, default 5).
+	 */
+	public long	getAsyncIdleTimeout() {
+		return(asyncidletimeout);
+	}
 	/**
 	 *	Get the URL for uploading the event log data
 	 */
@@ -525,6 +783,19 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	public boolean isFollowRedirects() {
 		return(followredirects);
 	}
+	/**
+	 *	Get the channel for sending files to another node.  Files are
+	 *	sent over channels if the NODE_CHANNEL_WINDOW provisioning
+	 *	parameter is positive.
+	 *	@param dest	The destination information for the node
+	 *	@return	The channel or null
+	 */
+	public NodeChannel getChannel(DestInfo dest) {
+		if (channelwindow <= 0 || dest.getSubId() != null) {
+			return(null);
+		}
+		return(NodeChannel.get(dest, connecttimeout, readtimeout));
+	}
 	/**
 	 *	Get the directory where the event and node log files live
 	 */
@@ -537,6 +808,14 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	public long getLogRetention() {
 		return(logretention);
 	}
+	/**
+	 *	Get the event log flush interval (in milliseconds).
+	 *	0 means flush whenever no more records are waiting to be written,
+	 *	and a negative value means flush after every record.
+	 */
+	public long getEventLogFlushInterval() {
+		return(eventlogflush);
+	}
 	/**
 	 *	Get the timer
 	 */
@@ -564,6 +843,12 @@ public class NodeConfigManager implements DeliveryQueueHelper	{
 	public double getFreeDiskStart() {
 		return(fdpstart);
 	}
+	/**
+	 *	Get the fraction of free spool disk space below which new publications are refused.  This is PUBLISH_FREE_DISK_PERCENT / 100.0.  Default is 0.1.  0 means never refuse.  If not 0, it is kept above FreeDiskStart, so that publishers are held back before undelivered files are thrown away.
+	 */
+	public double getFreeDiskPublish() {
+		return(fdppublish);
+	}
 	/**
 	 *	Get the fraction of free spool disk space where we stop throwing away undelivered files.  This is FREE_DISK_YELLOW_PERCENT / 100.0.  Default is 0.2.  Limited by FreeDiskStart <= FreeDiskStop <= 0.5.
 	 */
@@ -15,6 +15,7 @@
 
 package com.att.research.datarouter.node;
 
+import java.io.*;
 import org.eclipse.jetty.servlet.*;
 import org.eclipse.jetty.util.ssl.*;
 import org.eclipse.jetty.server.*;
@@ -57,6 +58,60 @@ public class NodeMain	{
 	public static void resetQueue(String subid, String ip) {
 		d.resetQueue(ncm.getSpoolDir(subid, ip));
 	}
+	/**
+	 *	Tell the delivery system a file has been linked into a spool directory
+	 */
+	public static void queueFile(String spool, String pubid, long length, int volume) {
+		if (d != null) {
+			d.queueFile(spool, pubid, length, volume);
+		}
+	}
+	/**
+	 *	Record, with the delivery queue for a spool directory, a file in a segment that is to be delivered to it
+	 *	@return	The journal the queue recorded the file in, or null if there is no such queue
+	 */
+	public static File addSegmentFile(String spool, String pubid, SegmentSpool.Ref ref, int volume) {
+		if (d == null) {
+			return(null);
+		}
+		return(d.addSegmentFile(spool, pubid, ref, volume));
+	}
+	/**
+	 *	Tell the delivery system a file in a segment has been made durable
+	 */
+	public static void queueSegmentFile(String spool, String pubid) {
+		if (d != null) {
+			d.queueSegmentFile(spool, pubid);
+		}
+	}
+	/**
+	 *	Tell the delivery system a file in a segment is not to be delivered after all
+	 */
+	public static void dropSegmentFile(String spool, String pubid) {
+		if (d != null) {
+			d.dropSegmentFile(spool, pubid);
+		}
+	}
+	/**
+	 *	Choose the spool volume to place a publication on
+	 *	@return	The index of the spool volume
+	 */
+	public static int chooseVolume(String feedid) {
+		if (d == null) {
+			return(0);
+		}
+		return(d.chooseVolume(feedid));
+	}
+	/**
+	 *	Check whether a publication should be refused because the spool is under pressure
+	 *	@return	null if the publication may be accepted, otherwise the reason it may not
+	 */
+	public static String checkPressure(String feedid, Target[] targets, long clen, int volume) {
+		if (d == null) {
+			return(null);
+		}
+		return(d.checkPressure(feedid, targets, clen, volume));
+	}
 	/**
 	 *	Start the data router.
 	 *	<p>
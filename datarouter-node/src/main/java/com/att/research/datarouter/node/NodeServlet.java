@@ -18,7 +18,6 @@ package com.att.research.datarouter.node;
 import javax.servlet.*;
 import javax.servlet.http.*;
 import java.util.*;
-import java.util.regex.*;
 import java.io.*;
 import java.nio.file.*;
 import org.apache.log4j.Logger;
@@ -39,29 +38,70 @@ import java.net.*;
  *	PUT/DELETE https://<i>node</i>/internal/publish/<i>fileid</i> - n2n transfer
  *	<br>
  *	PUT/DELETE https://<i>node</i>/publish/<i>feedid</i>/<i>fileid</i> - publsh request
+ *	<br>
+ *	POST https://<i>node</i>/publish/<i>feedid</i> - batch publish request
+ *	<br>
+ *	POST https://<i>node</i>/internal/channel - n2n transfers over a node channel
+ *	<br>
+ *	GET http://<i>node</i>/internal/stats - node statistics (internal subnet only)
+ *	<p>
+ *	A publication is acknowledged only once its spooled files are as
+ *	durable as the PUBLISH_DURABILITY provisioning parameter (which may
+ *	be overridden for a feed by PUBLISH_DURABILITY.<i>feedid</i>)
+ *	requires.  See SpoolSync.
+ *	<p>
+ *	Publications are also subject to per feed and per publisher rate
+ *	limits (see NodeConfigManager.getPublishLimits()), and are refused
+ *	with 503 and a Retry-After header when over them, or when the spool
+ *	is under pressure (see Delivery.checkPressure()).
+ *	<p>
+ *	Small files published to feeds that use segments are appended to a
+ *	segment (see SegmentSpool) for their subscriptions, rather than
+ *	being linked into each subscription's spool directory.
+ *	<p>
+ *	A batch publish request carries many files in a multipart/mixed
+ *	body, one part per file, in the same format as a batch delivery (see
+ *	DeliveryBatch), except that X-ATT-DR-PUBLISH-ID is assigned by the
+ *	node and X-ATT-DR-METHOD defaults to PUT.  The publisher is
+ *	authorized, redirected, and checked for spool pressure once for the
+ *	whole request, while rate limits and meta data are checked for each
+ *	file.  The files get consecutive publish IDs, are spooled and queued
+ *	one by one as they are received, and are synced together, once the
+ *	body has been read, before the node responds.  The response is text,
+ *	with a line for each file, in the order of the parts, of its publish
+ *	ID, a space, and its status (204 if it was published), optionally
+ *	followed by a space and the reason it was refused.  If the body ends
+ *	early, files after the last complete one have no line.
  */
 public class NodeServlet extends HttpServlet	{
 	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.NodeServlet");
 	private static NodeConfigManager	config;
-	private static Pattern	MetaDataPattern;
 	private static SubnetMatcher internalsubnet = new SubnetMatcher("135.207.136.128/25");
+	private static final int	PUBLISH_ID_BLOCK = 100;
+	/**
+	 *	A file put in a destination's spool, but not yet queued for
+	 *	delivery, because it has not yet been synced
+	 */
+	private static class Queued	{
+		private String	spool;
+		private String	pubid;
+		private long	length;
+		private int	volume;
+		private String	dbase;
+		/**
+		 *	@param dbase	The path of the linked data file, or null if the file is in a segment
+		 */
+		public Queued(String spool, String pubid, long length, int volume, String dbase) {
+			this.spool = spool;
+			this.pubid = pubid;
+			this.length = length;
+			this.volume = volume;
+			this.dbase = dbase;
+		}
+	}
 	//Adding EELF Logger Rally:US664892  
     private static EELFLogger eelflogger = EELFManager.getInstance().getLogger("com.att.research.datarouter.node.NodeServlet");
 
-	static {
-		try {
-			String ws = "\\s*";
-			// assume that \\ and \" have been replaced by X
-			String string = "\"[^\"]*\"";
-			//String string = "\"(?:[^\"\\\\]|\\\\.)*\"";
-			String number = "[+-]?(?:\\.\\d+|(?:0|[1-9]\\d*)(?:\\.\\d*)?)(?:[eE][+-]?\\d+)?";
-			String value = "(?:" + string + "|" + number + "|null|true|false)";
-			String item = string + ws + ":" + ws + value + ws;
-			String object = ws + "\\{" + ws + "(?:" + item + "(?:" + "," + ws + item + ")*)?\\}" + ws;
-			MetaDataPattern = Pattern.compile(object, Pattern.DOTALL);
-		} catch (Exception e) {
-		}
-	}
 	/**
 	 *	Get the NodeConfigurationManager
 	 */
@@ -126,6 +166,14 @@ public class NodeServlet extends HttpServlet	{
 				is.close();
 				return;
 			}
+			if ("/internal/stats".equals(path)) {
+				resp.setContentType("text/plain");
+				resp.setStatus(200);
+				byte[] buf = NodeStats.report().getBytes();
+				resp.setContentLength(buf.length);
+				resp.getOutputStream().write(buf);
+				return;
+			}
 			if (path.startsWith("/internal/rtt/")) {
 				String xip = path.substring(14);
 				long st = System.currentTimeMillis();
@@ -158,6 +206,434 @@ public class NodeServlet extends HttpServlet	{
 		eelflogger.info(EelfMsgs.MESSAGE_WITH_BEHALF_AND_FEEDID, req.getHeader("X-ATT-DR-ON-BEHALF-OF"),getIdFromPath(req)+"");
 		common(req, resp, true);
 	}
+	/**
+	 *	Handle a POST for /internal/channel
+	 */
+	protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		NodeUtils.setIpAndFqdnForEelf("doPost");
+		if (down(resp)) {
+			return;
+		}
+		final String ip = req.getRemoteAddr();
+		final String lip = req.getLocalAddr();
+		String path = req.getPathInfo();
+		if (path != null && path.startsWith("/publish/") && path.length() > 9 && path.indexOf('/', 9) == -1) {
+			eelflogger.info(EelfMsgs.MESSAGE_WITH_BEHALF_AND_FEEDID, req.getHeader("X-ATT-DR-ON-BEHALF-OF"),getIdFromPath(req)+"");
+			publishBatch(req, resp, path.substring(9));
+			return;
+		}
+		if (!"/internal/channel".equals(path)) {
+			logger.info("NODE0103 Rejecting invalid POST of " + req.getPathInfo() + " from " + ip);
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (!req.isSecure()) {
+			logger.info("NODE0104 Rejecting insecure POST of " + req.getPathInfo() + " from " + ip);
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "https required on node channels");
+			return;
+		}
+		String credentials = req.getHeader("Authorization");
+		if (credentials == null || !config.isAnotherNode(credentials, ip)) {
+			logger.info("NODE0107 Rejecting unauthorized node-to-node transfer attempt from " + ip);
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain");
+		OutputStream os = resp.getOutputStream();
+		os.flush();
+		NodeChannel.serve(req.getInputStream(), os, new NodeChannel.Receiver() {
+			public String receive(String pubid, String method, String fileid, String[][] hdrs, InputStream data, long length) throws IOException {
+				if (config.isShutdown() || !config.isConfigured()) {
+					return(HttpServletResponse.SC_SERVICE_UNAVAILABLE + " Service is being quiesced");
+				}
+				return(channelFile(ip, lip, pubid, method, fileid, hdrs, data, length));
+			}
+		});
+	}
+	/**
+	 *	Handle a batch publish request
+	 *	@param feedid	The feed the files are published to
+	 */
+	private void publishBatch(HttpServletRequest req, HttpServletResponse resp, String feedid) throws IOException {
+		String ip = req.getRemoteAddr();
+		String lip = req.getLocalAddr();
+		if (!req.isSecure()) {
+			logger.info("NODE0104 Rejecting insecure POST of " + req.getPathInfo() + " from " + ip);
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "https required on publish requests");
+			return;
+		}
+		String credentials = req.getHeader("Authorization");
+		if (credentials == null) {
+			logger.info("NODE0106 Rejecting unauthenticated POST of " + req.getPathInfo() + " from " + ip);
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Authorization header required");
+			return;
+		}
+		String mtype = req.getContentType();
+		int bx = (mtype == null) ? -1 : mtype.indexOf("boundary=");
+		if (bx == -1 || !mtype.toLowerCase().startsWith("multipart/mixed")) {
+			logger.info("NODE0114 Rejecting batch publish attempt without multipart/mixed body for feed " + feedid + " from " + ip);
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expecting multipart/mixed body with one part per file");
+			return;
+		}
+		String boundary = "--" + mtype.substring(bx + 9).replaceAll(";.*", "").replaceAll("\"", "").trim();
+		long start = System.currentTimeMillis();
+		String rcvd = NodeUtils.logts(start) + ";from=" + ip + ";by=" + lip;
+		String hp = config.getMyName();
+		int xp = config.getExtHttpsPort();
+		if (xp != 443) {
+			hp = hp + ":" + xp;
+		}
+		String reason = config.isPublishPermitted(feedid, credentials, ip);
+		if (reason != null) {
+			logger.info("NODE0111 Rejecting unauthorized batch publish attempt to feed " + feedid + " from " + ip + " reason " + reason);
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN,reason);
+			return;
+		}
+		String user = config.getAuthUser(feedid, credentials);
+		String newnode = config.getIngressNode(feedid, user, ip);
+		if (newnode != null) {
+			String port = "";
+			int iport = config.getExtHttpsPort();
+			if (iport != 443) {
+				port = ":" + iport;
+			}
+			String redirto = "https://" + newnode + port + "/publish/" + feedid;
+			logger.info("NODE0108 Redirecting batch publish attempt for feed " + feedid + " user " + user + " ip " + ip + " to " + redirto);
+			resp.sendRedirect(redirto);
+			return;
+		}
+		Target[] targets = config.getTargets(feedid);
+		int volume = NodeMain.chooseVolume(feedid);
+		long clen = 0;
+		try {
+			clen = Long.parseLong(req.getHeader("Content-Length"));
+		} catch (Exception e) {
+		}
+		String pressure = NodeMain.checkPressure(feedid, targets, clen, volume);
+		if (pressure != null) {
+			logger.info("NODE0113 Rejecting batch publish attempt for feed " + feedid + " user " + user + " ip " + ip + " reason " + pressure);
+			resp.setHeader("Retry-After", "30");
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Node busy: " + pressure);
+			return;
+		}
+		long seglimit = config.getSegmentMaxFileSize(feedid);
+		StringBuffer status = new StringBuffer();
+		Vector<String> syncfiles = new Vector<String>();
+		Vector<String> syncdirs = new Vector<String>();
+		Vector<String> temps = new Vector<String>();
+		Vector<String[]> published = new Vector<String[]>();
+		Vector<Queued> queued = new Vector<Queued>();
+		String dfeedid = feedid;
+		String[] pubids = null;
+		int nextid = 0;
+		byte[] buf = new byte[65536];
+		try {
+			InputStream is = new BufferedInputStream(req.getInputStream(), 65536);
+			String line = readLine(is);
+			while (line != null && line.length() == 0) {
+				line = readLine(is);
+			}
+			while (line != null && line.equals(boundary)) {
+				Vector<String[]> hdrs = new Vector<String[]>();
+				String method = "PUT";
+				String fileid = null;
+				long length = -1;
+				while ((line = readLine(is)) != null && line.length() != 0) {
+					int i = line.indexOf(':');
+					if (i <= 0) {
+						continue;
+					}
+					String hn = line.substring(0, i).trim();
+					String hv = line.substring(i + 1).trim();
+					String hnlc = hn.toLowerCase();
+					if ("x-att-dr-method".equals(hnlc)) {
+						method = hv;
+					} else if ("x-att-dr-file-id".equals(hnlc)) {
+						fileid = hv;
+					} else if ("content-length".equals(hnlc)) {
+						try {
+							length = Long.parseLong(hv);
+						} catch (NumberFormatException nfe) {
+							throw new IOException("Invalid Content-Length in part: " + hv);
+						}
+					} else {
+						hdrs.add(new String[] { hn, hv });
+					}
+				}
+				if (length < 0) {
+					throw new IOException("Missing Content-Length in part");
+				}
+				if (pubids == null || nextid == pubids.length) {
+					pubids = config.getPublishIds(PUBLISH_ID_BLOCK);
+					nextid = 0;
+				}
+				String pubid = pubids[nextid++];
+				boolean isput = "PUT".equals(method);
+				String logurl = "https://" + hp + "/publish/" + feedid + "/" + fileid;
+				String ctype = null;
+				String refused = null;
+				StringBuffer mx = new StringBuffer();
+				mx.append(method).append('\t').append(fileid).append('\n');
+				if (!isput && !"DELETE".equals(method)) {
+					refused = HttpServletResponse.SC_BAD_REQUEST + " Method must be PUT or DELETE";
+				} else if (fileid == null || fileid.length() == 0 || fileid.indexOf('/') != -1) {
+					refused = HttpServletResponse.SC_BAD_REQUEST + " Invalid or missing X-ATT-DR-FILE-ID";
+				}
+				for (String[] nv: hdrs) {
+					if (refused != null) {
+						break;
+					}
+					String hnlc = nv[0].toLowerCase();
+					if ((isput && ("content-type".equals(hnlc) ||
+					    "content-language".equals(hnlc) ||
+					    "content-md5".equals(hnlc) ||
+					    "content-range".equals(hnlc))) ||
+					    "x-att-dr-meta".equals(hnlc) ||
+					    (hnlc.startsWith("x-") && !hnlc.startsWith("x-att-dr-"))) {
+						if ("content-type".equals(hnlc)) {
+							ctype = nv[1];
+						}
+						if ("x-att-dr-meta".equals(hnlc)) {
+							if (nv[1].length() > 4096) {
+								refused = HttpServletResponse.SC_BAD_REQUEST + " Metadata too long";
+								break;
+							}
+							int bad = MetaDataValidator.check(nv[1]);
+							if (bad != -1) {
+								refused = HttpServletResponse.SC_BAD_REQUEST + " Malformed metadata at offset " + bad;
+								break;
+							}
+						}
+						mx.append(nv[0]).append('\t').append(nv[1]).append('\n');
+					}
+				}
+				if (refused == null && throttle(feedid, user, length) > 0) {
+					refused = HttpServletResponse.SC_SERVICE_UNAVAILABLE + " Publish rate limit exceeded";
+				}
+				if (refused != null) {
+					logger.info("NODE0114 Refusing file " + fileid + " of batch publish attempt for feed " + feedid + " user " + user + " ip " + ip + ": " + refused);
+					copy(is, null, length, buf);
+					status.append(pubid).append(' ').append(refused).append('\n');
+				} else {
+					mx.append("X-ATT-DR-RECEIVED\t").append(rcvd).append('\n');
+					String fbase = config.getSpoolDir(volume) + "/" + pubid;
+					temps.add(fbase);
+					byte[] small = null;
+					try {
+						if (isput && seglimit >= 0 && length <= seglimit) {
+							small = new byte[(int)length];
+							int n = 0;
+							int i;
+							while (n < small.length && (i = is.read(small, n, small.length - n)) > 0) {
+								n += i;
+							}
+							if (n < small.length) {
+								throw new EOFException("Expected " + small.length + " bytes but received " + n);
+							}
+						} else {
+							OutputStream dos = new FileOutputStream(fbase);
+							try {
+								copy(is, dos, length, buf);
+							} finally {
+								dos.close();
+							}
+						}
+					} catch (IOException ioe) {
+						StatusLog.logPubFail(pubid, feedid, logurl, method, ctype, length, (small == null) ? new File(fbase).length() : -1, ip, user, ioe.getMessage());
+						throw ioe;
+					}
+					Vector<Queued> fq = new Vector<Queued>();
+					try {
+						dfeedid = spoolFile(targets, null, pubid, feedid, volume, fbase, mx.toString(), small, length, syncfiles, syncdirs, fq);
+					} catch (IOException ioe) {
+						unspool(fq);
+						throw ioe;
+					}
+					queued.addAll(fq);
+					published.add(new String[] { pubid, logurl, method, ctype, Long.toString(length) });
+					status.append(pubid).append(' ').append(HttpServletResponse.SC_NO_CONTENT).append('\n');
+				}
+				line = readLine(is);
+				if (line != null && line.length() == 0) {
+					line = readLine(is);
+				}
+			}
+		} catch (IOException ioe) {
+			// report the files published before the problem
+			logger.info("NODE0110 IO Exception receiving batch publish attempt for feed " + feedid + " user " + user + " ip " + ip + " " + ioe.toString(), ioe);
+		}
+		try {
+			int durability = config.getPublishDurability(dfeedid);
+			String dname = SpoolSync.getModeName(durability);
+			long syncstart = System.currentTimeMillis();
+			try {
+				SpoolSync.sync(durability, syncfiles, syncdirs);
+			} catch (IOException ioe) {
+				unspool(queued);
+				throw ioe;
+			}
+			queue(queued);
+			long now = System.currentTimeMillis();
+			NodeStats.time("publish.sync." + dname, now - syncstart);
+			NodeStats.time("publish.batch." + dname, now - start);
+			NodeStats.add("publish.batch.files", published.size());
+		} finally {
+			for (String fbase: temps) {
+				new File(fbase).delete();
+				new File(fbase + ".M").delete();
+			}
+		}
+		byte[] body = status.toString().getBytes("UTF-8");
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain");
+		resp.setContentLength(body.length);
+		OutputStream os = resp.getOutputStream();
+		os.write(body);
+		os.close();
+		for (String[] p: published) {
+			StatusLog.logPub(p[0], feedid, p[1], p[2], p[3], Long.parseLong(p[4]), ip, user, HttpServletResponse.SC_NO_CONTENT);
+		}
+	}
+	/**
+	 *	Read a line, ending with LF or CRLF, of a multipart body
+	 *	@return	The line, without the line ending, or null at the end of the body
+	 */
+	private static String readLine(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int c;
+		while ((c = is.read()) != -1 && c != '\n') {
+			bos.write(c);
+		}
+		if (c == -1 && bos.size() == 0) {
+			return(null);
+		}
+		String ret = bos.toString("UTF-8");
+		if (ret.endsWith("\r")) {
+			ret = ret.substring(0, ret.length() - 1);
+		}
+		return(ret);
+	}
+	/**
+	 *	Copy exactly length bytes from a stream
+	 *	@param os	Where to copy them, or null to discard them
+	 */
+	private static void copy(InputStream is, OutputStream os, long length, byte[] buf) throws IOException {
+		while (length > 0) {
+			int n = is.read(buf, 0, (int)Math.min(buf.length, length));
+			if (n <= 0) {
+				throw new EOFException("Unexpected end of batch publish body");
+			}
+			if (os != null) {
+				os.write(buf, 0, n);
+			}
+			length -= n;
+		}
+	}
+	/**
+	 *	Spool a file received over a node channel, just as if it were
+	 *	sent to /internal/publish
+	 *	@return	The status and publish ID for the acknowledgement
+	 */
+	private static String channelFile(String ip, String lip, String pubid, String method, String fileid, String[][] hdrs, InputStream is, long length) throws IOException {
+		if (fileid.indexOf('/') != -1) {
+			logger.info("NODE0105 Rejecting bad file ID " + fileid + " for " + pubid + " on node channel from " + ip);
+			return(HttpServletResponse.SC_NOT_FOUND + " Invalid request URI.  Expecting <feed-publishing-url>/<fileid>.");
+		}
+		long start = System.currentTimeMillis();
+		String rcvd = NodeUtils.logts(start) + ";from=" + ip + ";by=" + lip;
+		boolean isput = "PUT".equals(method);
+		String hp = config.getMyName();
+		int xp = config.getExtHttpsPort();
+		if (xp != 443) {
+			hp = hp + ":" + xp;
+		}
+		String logurl = "https://" + hp + "/internal/publish/" + fileid;
+		String routing = null;
+		String ctype = null;
+		StringBuffer mx = new StringBuffer();
+		mx.append(method).append('\t').append(fileid).append('\n');
+		for (String[] nv: hdrs) {
+			String hnlc = nv[0].toLowerCase();
+			if ("x-att-dr-routing".equals(hnlc)) {
+				routing = nv[1];
+				continue;
+			}
+			if ((isput && ("content-type".equals(hnlc) ||
+			    "content-language".equals(hnlc) ||
+			    "content-md5".equals(hnlc) ||
+			    "content-range".equals(hnlc))) ||
+			    "x-att-dr-meta".equals(hnlc) ||
+			    "x-att-dr-received".equals(hnlc) ||
+			    (hnlc.startsWith("x-") && !hnlc.startsWith("x-att-dr-"))) {
+				if ("content-type".equals(hnlc)) {
+					ctype = nv[1];
+				}
+				mx.append(nv[0]).append('\t').append(nv[1]).append('\n');
+			}
+		}
+		mx.append("X-ATT-DR-RECEIVED\t").append(rcvd).append('\n');
+		Target[] targets = config.parseRouting(routing);
+		int volume = NodeMain.chooseVolume(null);
+		String fbase = config.getSpoolDir(volume) + "/" + pubid;
+		File data = new File(fbase);
+		File meta = new File(fbase + ".M");
+		try {
+			OutputStream dos = new FileOutputStream(data);
+			try {
+				byte[] buf = new byte[65536];
+				int i;
+				while ((i = is.read(buf)) > 0) {
+					dos.write(buf, 0, i);
+				}
+			} finally {
+				dos.close();
+			}
+			if (data.length() != length) {
+				throw new EOFException("Expected " + length + " bytes but received " + data.length());
+			}
+			Writer mw = new FileWriter(meta);
+			try {
+				mw.write(mx.toString());
+			} finally {
+				mw.close();
+			}
+			Vector<String> syncfiles = new Vector<String>();
+			Vector<String> syncdirs = new Vector<String>();
+			syncfiles.add(fbase);
+			syncfiles.add(fbase + ".M");
+			String dfeedid = null;
+			Vector<Target> linktargets = new Vector<Target>();
+			for (Target t: targets) {
+				DestInfo di = t.getDestInfo();
+				if (di == null) {
+					continue;
+				}
+				if (di.getSubId() != null && dfeedid == null) {
+					dfeedid = config.getFeedId(di.getSubId());
+				}
+				linktargets.add(t);
+			}
+			Vector<Queued> queued = new Vector<Queued>();
+			try {
+				linkTargets(linktargets, pubid, volume, fbase, length, syncfiles, syncdirs, queued);
+				SpoolSync.sync(config.getPublishDurability(dfeedid), syncfiles, syncdirs);
+			} catch (IOException ioe) {
+				unspool(queued);
+				throw ioe;
+			}
+			queue(queued);
+			NodeStats.time("channel.receive", System.currentTimeMillis() - start);
+			StatusLog.logPub(pubid, null, logurl, method, ctype, length, ip, null, HttpServletResponse.SC_NO_CONTENT);
+			return(HttpServletResponse.SC_NO_CONTENT + " " + pubid);
+		} catch (IOException ioe) {
+			logger.info("NODE0110 IO Exception receiving file " + pubid + " over node channel from " + ip + " " + ioe.toString(), ioe);
+			return(HttpServletResponse.SC_INTERNAL_SERVER_ERROR + " " + ioe.toString());
+		} finally {
+			data.delete();
+			meta.delete();
+		}
+	}
 	/**
 	 *	Handle all DELETE requests
 	 */
@@ -193,7 +669,8 @@ public class NodeServlet extends HttpServlet	{
 		String lip = req.getLocalAddr();
 		String pubid = null;
 		String xpubid = null;
-		String rcvd = NodeUtils.logts(System.currentTimeMillis()) + ";from=" + ip + ";by=" + lip;
+		long start = System.currentTimeMillis();
+		String rcvd = NodeUtils.logts(start) + ";from=" + ip + ";by=" + lip;
 		Target[]	targets = null;
 		if (fileid.startsWith("/publish/")) {
 			fileid = fileid.substring(9);
@@ -237,6 +714,7 @@ public class NodeServlet extends HttpServlet	{
 			hp = hp + ":" + xp;
 		}
 		String logurl = "https://" + hp + "/internal/publish/" + fileid;
+		int volume = NodeMain.chooseVolume(feedid);
 		if (feedid != null) {
 			logurl = "https://" + hp + "/publish/" + feedid + "/" + fileid;
 			String reason = config.isPublishPermitted(feedid, credentials, ip);
@@ -258,13 +736,33 @@ public class NodeServlet extends HttpServlet	{
 				resp.sendRedirect(redirto);
 				return;
 			}
+			long clen = 0;
+			if (isput) {
+				try {
+					clen = Long.parseLong(req.getHeader("Content-Length"));
+				} catch (Exception e) {
+				}
+			}
+			long wait = throttle(feedid, user, clen);
+			if (wait > 0) {
+				logger.info("NODE0112 Rejecting publish attempt over rate limit for feed " + feedid + " user " + user + " ip " + ip);
+				resp.setHeader("Retry-After", Long.toString(wait));
+				resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Publish rate limit exceeded");
+				return;
+			}
+			String pressure = NodeMain.checkPressure(feedid, targets, clen, volume);
+			if (pressure != null) {
+				logger.info("NODE0113 Rejecting publish attempt for feed " + feedid + " user " + user + " ip " + ip + " reason " + pressure);
+				resp.setHeader("Retry-After", "30");
+				resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Node busy: " + pressure);
+				return;
+			}
 			resp.setHeader("X-ATT-DR-PUBLISH-ID", pubid);
 		}
-		String fbase = config.getSpoolDir() + "/" + pubid;
+		String fbase = config.getSpoolDir(volume) + "/" + pubid;
 		File data = new File(fbase);
 		File meta = new File(fbase + ".M");
 		OutputStream dos = null;
-		Writer mw = null;
 		InputStream is = null;
 		try {
 			StringBuffer mx = new StringBuffer();
@@ -293,9 +791,10 @@ public class NodeServlet extends HttpServlet	{
 								resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Metadata too long");
 								return;
 							}
-							if (!MetaDataPattern.matcher(hv.replaceAll("\\\\.", "X")).matches()) {
-								logger.info("NODE0109 Rejecting publish attempt with malformed metadata for feed " + feedid + " user " + user + " ip " + ip);
-								resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed metadata");
+							int bad = MetaDataValidator.check(hv);
+							if (bad != -1) {
+								logger.info("NODE0109 Rejecting publish attempt with malformed metadata at offset " + bad + " for feed " + feedid + " user " + user + " ip " + ip);
+								resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed metadata at offset " + bad);
 								return;
 							}
 						}
@@ -305,19 +804,53 @@ public class NodeServlet extends HttpServlet	{
 			}
 			mx.append("X-ATT-DR-RECEIVED\t").append(rcvd).append('\n');
 			String metadata = mx.toString();
-			byte[] buf = new byte[1024 * 1024];
+			long seglen = -1;
+			if (isput && feedid != null && config.getSegmentMaxFileSize(feedid) >= 0) {
+				try {
+					seglen = Long.parseLong(req.getHeader("Content-Length"));
+				} catch (Exception e) {
+				}
+				if (seglen > config.getSegmentMaxFileSize(feedid)) {
+					seglen = -1;
+				}
+			}
+			// A small file for a feed using segments is read into memory
+			// and only written to a data file if some destination needs one
+			byte[] small = null;
+			CutThrough ct = null;
 			int i;
 			try {
 				is = req.getInputStream();
-				dos = new FileOutputStream(data);
-				while ((i = is.read(buf)) > 0) {
-					dos.write(buf, 0, i);
+				if (seglen >= 0) {
+					small = new byte[(int)seglen];
+					int n = 0;
+					while (n < small.length && (i = is.read(small, n, small.length - n)) > 0) {
+						n += i;
+					}
+					if (n < small.length) {
+						throw new EOFException("Expected " + small.length + " bytes but received " + n);
+					}
+				} else {
+					byte[] buf = new byte[1024 * 1024];
+					if (isput) {
+						ct = cutThrough(targets, pubid, fileid, metadata, ctype, req.getHeader("Content-Length"));
+					}
+					dos = new FileOutputStream(data);
+					while ((i = is.read(buf)) > 0) {
+						dos.write(buf, 0, i);
+						if (ct != null) {
+							ct.write(buf, 0, i);
+						}
+					}
+					dos.close();
+					dos = null;
 				}
 				is.close();
 				is = null;
-				dos.close();
-				dos = null;
 			} catch (IOException ioe) {
+				if (ct != null) {
+					ct.abort();
+				}
 				long exlen = -1;
 				try {
 					exlen = Long.parseLong(req.getHeader("Content-Length"));
@@ -326,38 +859,244 @@ public class NodeServlet extends HttpServlet	{
 				StatusLog.logPubFail(pubid, feedid, logurl, req.getMethod(), ctype, exlen, data.length(), ip, user, ioe.getMessage());
 				throw ioe;
 			}
-			Path dpath = Paths.get(fbase);
-			for (Target t: targets) {
-				DestInfo di = t.getDestInfo();
-				if (di == null) {
-					// TODO: unknown destination
-					continue;
-				}
-				String dbase = di.getSpool() + "/" + pubid;
-				Files.createLink(Paths.get(dbase), dpath);
-				mw = new FileWriter(meta);
-				mw.write(metadata);
-				if (di.getSubId() == null) {
-					mw.write("X-ATT-DR-ROUTING\t" + t.getRouting() + "\n");
-				}
-				mw.close();
-				meta.renameTo(new File(dbase + ".M"));
+			long dlen = (small == null) ? data.length() : small.length;
+			Target forwarded = null;
+			if (ct != null && ct.finish()) {
+				forwarded = ct.getTarget();
 			}
+			Vector<String> syncfiles = new Vector<String>();
+			Vector<String> syncdirs = new Vector<String>();
+			Vector<Queued> queued = new Vector<Queued>();
+			String dname;
+			long syncstart;
+			try {
+				String dfeedid = spoolFile(targets, forwarded, pubid, feedid, volume, fbase, metadata, small, dlen, syncfiles, syncdirs, queued);
+				int durability = config.getPublishDurability(dfeedid);
+				dname = SpoolSync.getModeName(durability);
+				syncstart = System.currentTimeMillis();
+				SpoolSync.sync(durability, syncfiles, syncdirs);
+			} catch (IOException ioe) {
+				unspool(queued);
+				throw ioe;
+			}
+			queue(queued);
+			long now = System.currentTimeMillis();
+			NodeStats.time("publish.sync." + dname, now - syncstart);
+			NodeStats.time("publish.time." + dname, now - start);
 			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
 			resp.getOutputStream().close();
-			StatusLog.logPub(pubid, feedid, logurl, req.getMethod(), ctype, data.length(), ip, user, HttpServletResponse.SC_NO_CONTENT);
+			StatusLog.logPub(pubid, feedid, logurl, req.getMethod(), ctype, dlen, ip, user, HttpServletResponse.SC_NO_CONTENT);
 		} catch (IOException ioe) {
 			logger.info("NODE0110 IO Exception receiving publish attempt for feed " + feedid + " user " + user + " ip " + ip + " " + ioe.toString(), ioe);
 			throw ioe;
 		} finally {
 			if (is != null) { try { is.close(); } catch (Exception e) {}}
 			if (dos != null) { try { dos.close(); } catch (Exception e) {}}
-			if (mw != null) { try { mw.close(); } catch (Exception e) {}}
 			try { data.delete(); } catch (Exception e) {}
 			try { meta.delete(); } catch (Exception e) {}
 		}
 	}
 	
+	/**
+	 *	Put a received file in the spool for each of its destinations.
+	 *	If the data was read into memory, because the file is small and
+	 *	its feed uses segments, it is appended to a segment for the
+	 *	file's subscriptions.  For its other destinations, the data file
+	 *	(written here, if the data was read into memory) and the meta
+	 *	data file are linked into their spool directories.
+	 *	@param forwarded	The destination the file was forwarded to while being received, or null
+	 *	@param fbase	The path of the received data file
+	 *	@param small	The data, if it was read into memory, or null
+	 *	@param syncfiles	Files added, to be synced
+	 *	@param syncdirs	Directories added, to be synced
+	 *	@param queued	Destinations the file was added for, to be queued once synced
+	 *	@return	The feed whose durability requirement applies to the file
+	 */
+	private static String spoolFile(Target[] targets, Target forwarded, String pubid, String feedid, int volume, String fbase, String metadata, byte[] small, long dlen, Vector<String> syncfiles, Vector<String> syncdirs, Vector<Queued> queued) throws IOException {
+		String dfeedid = feedid;
+		SegmentSpool.Ref ref = null;
+		if (small != null) {
+			int count = 0;
+			for (Target t: targets) {
+				if (t.getDestInfo() != null && t.getDestInfo().getSubId() != null) {
+					count++;
+				}
+			}
+			if (count > 0) {
+				ref = config.getSegmentSpool(volume).append(pubid, metadata.getBytes("UTF-8"), small, count);
+				syncfiles.add(ref.getFile().getPath());
+			}
+		}
+		Vector<Target> linktargets = new Vector<Target>();
+		for (Target t: targets) {
+			DestInfo di = t.getDestInfo();
+			if (di == null) {
+				// TODO: unknown destination
+				continue;
+			}
+			if (t == forwarded) {
+				continue;
+			}
+			if (di.getSubId() != null && dfeedid == null) {
+				dfeedid = config.getFeedId(di.getSubId());
+			}
+			if (ref != null && di.getSubId() != null) {
+				File journal = NodeMain.addSegmentFile(di.getSpool(), pubid, ref, volume);
+				if (journal != null) {
+					syncfiles.add(journal.getPath());
+					queued.add(new Queued(di.getSpool(), pubid, dlen, volume, null));
+					continue;
+				}
+				ref.release();
+			}
+			linktargets.add(t);
+		}
+		if (!linktargets.isEmpty()) {
+			if (small != null) {
+				OutputStream dos = new FileOutputStream(fbase);
+				try {
+					dos.write(small);
+				} finally {
+					dos.close();
+				}
+			}
+			Writer mw = new FileWriter(fbase + ".M");
+			try {
+				mw.write(metadata);
+			} finally {
+				mw.close();
+			}
+			syncfiles.add(fbase);
+			syncfiles.add(fbase + ".M");
+		}
+		linkTargets(linktargets, pubid, volume, fbase, dlen, syncfiles, syncdirs, queued);
+		return(dfeedid);
+	}
+	/**
+	 *	Link a received data file and meta data file into the spool
+	 *	directories of the destinations it is bound for.  The file is
+	 *	not queued here, since it must not be delivered before it has
+	 *	been synced.
+	 *	@param fbase	The path of the received data file
+	 *	@param syncfiles	Files to add, to be synced
+	 *	@param syncdirs	Directories to add, to be synced
+	 *	@param queued	Destinations the file was linked for, to be queued once synced
+	 */
+	private static void linkTargets(Vector<Target> linktargets, String pubid, int volume, String fbase, long dlen, Vector<String> syncfiles, Vector<String> syncdirs, Vector<Queued> queued) throws IOException {
+		Path dpath = Paths.get(fbase);
+		Path mpath = Paths.get(fbase + ".M");
+		for (Target t: linktargets) {
+			DestInfo di = t.getDestInfo();
+			String dspool = di.getSpool(volume);
+			String dbase = NodeUtils.getSpoolFile(dspool, pubid);
+			NodeUtils.spoolLink(Paths.get(dbase), dpath);
+			queued.add(new Queued(di.getSpool(), pubid, dlen, volume, dbase));
+			if (di.getSubId() == null) {
+				// The routing differs for each node so it goes
+				// in a sidecar file rather than the shared meta data
+				Writer mw = new FileWriter(dbase + ".R");
+				try {
+					mw.write("X-ATT-DR-ROUTING\t" + t.getRouting() + "\n");
+				} finally {
+					mw.close();
+				}
+				syncfiles.add(dbase + ".R");
+			}
+			// The meta data file is linked last, since finding
+			// it is what makes the file eligible for delivery
+			Files.createLink(Paths.get(dbase + ".M"), mpath);
+			syncdirs.add(new File(dbase).getParent());
+			syncdirs.add(dspool);
+		}
+	}
+	/**
+	 *	Queue spooled files for delivery, once they have been synced
+	 */
+	private static void queue(Vector<Queued> queued) {
+		for (Queued q: queued) {
+			if (q.dbase == null) {
+				NodeMain.queueSegmentFile(q.spool, q.pubid);
+			} else {
+				NodeMain.queueFile(q.spool, q.pubid, q.length, q.volume);
+			}
+		}
+	}
+	/**
+	 *	Take spooled files back out of the spool, since they could not
+	 *	be made durable, and the publication is being refused.  The meta
+	 *	data file is removed first, so a rescan never finds a partial file.
+	 */
+	private static void unspool(Vector<Queued> queued) {
+		for (Queued q: queued) {
+			if (q.dbase == null) {
+				NodeMain.dropSegmentFile(q.spool, q.pubid);
+			} else {
+				new File(q.dbase + ".M").delete();
+				new File(q.dbase + ".R").delete();
+				new File(q.dbase).delete();
+			}
+		}
+	}
+	/**
+	 *	Start forwarding a file to the first other node it is bound for,
+	 *	while it is being received, if it is large enough
+	 *	@param clen	The Content-Length header of the request
+	 *	@return	The forwarder, or null if the file is not being forwarded
+	 */
+	private static CutThrough cutThrough(Target[] targets, String pubid, String fileid, String metadata, String ctype, String clen) {
+		long minsize = config.getCutThroughMinSize();
+		long length;
+		try {
+			length = Long.parseLong(clen);
+		} catch (Exception e) {
+			return(null);
+		}
+		if (minsize < 0 || length < minsize) {
+			return(null);
+		}
+		for (Target t: targets) {
+			DestInfo di = t.getDestInfo();
+			if (di != null && di.getSubId() == null) {
+				return(CutThrough.start(config, t, pubid, "PUT", fileid, metadata, ctype, length));
+			}
+		}
+		return(null);
+	}
+	/**
+	 *	Check a publish request against the rate limits for its feed and
+	 *	publisher, taking tokens if it is within them.
+	 *	@param feedid	The feed
+	 *	@param user	The publisher
+	 *	@param clen	The length of the file being published
+	 *	@return	0 if the request is within the limits, otherwise
+	 *	the number of seconds to wait before trying again
+	 */
+	private static long throttle(String feedid, String user, long clen) {
+		double[] limits = config.getPublishLimits(feedid);
+		TokenBucket[] taken = new TokenBucket[limits.length];
+		for (int i = 0; i < limits.length; i++) {
+			if (limits[i] <= 0) {
+				continue;
+			}
+			String name = ((i % 2 == 0) ? "req/" : "bytes/") + feedid;
+			if (i >= 2) {
+				name = name + "/" + user;
+			}
+			TokenBucket tb = TokenBucket.get(name);
+			long amount = (i % 2 == 0) ? 1 : clen;
+			long wait = tb.take(limits[i], amount);
+			if (wait > 0) {
+				for (int j = 0; j < i; j++) {
+					if (taken[j] != null) {
+						taken[j].giveBack(limits[j], (j % 2 == 0) ? 1 : clen);
+					}
+				}
+				return((wait + 999999999L) / 1000000000L);
+			}
+			taken[i] = tb;
+		}
+		return(0);
+	}
 	private int getIdFromPath(HttpServletRequest req) {
 		String path = req.getPathInfo();
 		if (path == null || path.length() < 2)
@@ -0,0 +1,107 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *	Counters describing the internal behavior of the node.
+ *	<p>
+ *	Counters are created on first use and are never reset.  They can be
+ *	retrieved, one per line as name and value separated by a space, from
+ *	GET /internal/stats.
+ *	<p>
+ *	A latency histogram is kept as a set of counters sharing a name: the
+ *	number of events (name.count), their total time (name.ms), and, for
+ *	each power of 2 number of milliseconds, the number of events taking
+ *	at most that long but longer than the next lower power of 2
+ *	(name.le.000001, name.le.000002, ... name.le.065536, name.le.more).
+ */
+public class NodeStats	{
+	private static ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private static String[]	buckets = new String[18];
+	static {
+		for (int i = 0; i < 17; i++) {
+			buckets[i] = String.format(".le.%06d", 1L << i);
+		}
+		buckets[17] = ".le.more";
+	}
+	private NodeStats() {}
+	private static AtomicLong counter(String name) {
+		AtomicLong c = counters.get(name);
+		if (c == null) {
+			c = new AtomicLong();
+			AtomicLong x = counters.putIfAbsent(name, c);
+			if (x != null) {
+				c = x;
+			}
+		}
+		return(c);
+	}
+	/**
+	 *	Increment a counter
+	 *	@param name	The name of the counter
+	 */
+	public static void inc(String name) {
+		counter(name).incrementAndGet();
+	}
+	/**
+	 *	Add to a counter
+	 *	@param name	The name of the counter
+	 *	@param amount	The amount to add
+	 */
+	public static void add(String name, long amount) {
+		counter(name).addAndGet(amount);
+	}
+	/**
+	 *	Record an event in a latency histogram
+	 *	@param name	The name of the histogram
+	 *	@param millis	How long the event took in milliseconds
+	 */
+	public static void time(String name, long millis) {
+		inc(name + ".count");
+		add(name + ".ms", millis);
+		int i = 0;
+		while (i < buckets.length - 1 && millis > (1L << i)) {
+			i++;
+		}
+		inc(name + buckets[i]);
+	}
+	/**
+	 *	Get the value of a counter
+	 *	@param name	The name of the counter
+	 *	@return	The current value or 0 if the counter has never been used
+	 */
+	public static long get(String name) {
+		AtomicLong c = counters.get(name);
+		if (c == null) {
+			return(0);
+		}
+		return(c.get());
+	}
+	/**
+	 *	Get all the counters as text, sorted by name
+	 */
+	public static String report() {
+		StringBuffer sb = new StringBuffer();
+		for (String name: new TreeSet<String>(counters.keySet())) {
+			sb.append(name).append(' ').append(counters.get(name).get()).append('\n');
+		}
+		return(sb.toString());
+	}
+}
@@ -24,6 +24,7 @@ import java.io.*;
 import java.util.*;
 import java.security.cert.*;
 import java.net.*;
+import java.nio.file.*;
 import java.text.*;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
@@ -39,9 +40,19 @@ import com.att.research.datarouter.node.eelf.EelfMsgs;
 public class NodeUtils	{
     private static EELFLogger eelflogger = EELFManager.getInstance().getLogger("com.att.research.datarouter.node.NodeUtils");
 	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.NodeUtils");
+	private static final long	SPOOL_BUCKET_MILLIS = 60000L;
+	private static class LogSecond	{
+		private long	second;
+		private String	prefix;
+		public LogSecond(long second, String prefix) {
+			this.second = second;
+			this.prefix = prefix;
+		}
+	}
 	private static SimpleDateFormat	logdate;
+	private static volatile LogSecond	logsecond = new LogSecond(Long.MIN_VALUE, null);
 	static {
-		logdate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		logdate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.");
 		logdate.setTimeZone(TimeZone.getTimeZone("GMT"));
 	}
 	private NodeUtils() {}
@@ -186,15 +197,85 @@ public class NodeUtils	{
 	}
 	/**
 	 *	Format a logging timestamp as yyyy-mm-ddThh:mm:ss.mmmZ
+	 *	<p>
+	 *	The formatted date and time, up to the seconds, is cached, so
+	 *	callers logging within the same second only append the milliseconds
+	 *	and do not contend for the date formatter.
 	 */
 	public static String logts(long when) {
-		return(logts(new Date(when)));
+		long second = Math.floorDiv(when, 1000L);
+		int ms = (int)(when - second * 1000L);
+		LogSecond ls = logsecond;
+		if (ls.second != second) {
+			synchronized (logdate) {
+				ls = new LogSecond(second, logdate.format(new Date(second * 1000L)));
+			}
+			logsecond = ls;
+		}
+		StringBuilder sb = new StringBuilder(24);
+		sb.append(ls.prefix).append((char)('0' + ms / 100)).append((char)('0' + ms / 10 % 10)).append((char)('0' + ms % 10)).append('Z');
+		return(sb.toString());
 	}
 	/**
 	 *	Format a logging timestamp as yyyy-mm-ddThh:mm:ss.mmmZ
 	 */
-	public static synchronized String logts(Date when) {
-		return(logdate.format(when));
+	public static String logts(Date when) {
+		return(logts(when.getTime()));
+	}
+	/**
+	 *	Get the time bucket, within a destination's spool directory, of the
+	 *	files for a publish ID.  Each bucket is a subdirectory holding the
+	 *	files published during one minute, named for the number of minutes
+	 *	since 1970, so that no directory grows too large when deliveries
+	 *	back up.
+	 *	@param pubid	The publish ID
+	 *	@return	The name of the bucket or null if the publish ID is not valid
+	 */
+	public static String getSpoolBucket(String pubid) {
+		int i = pubid.indexOf('.');
+		if (i < 1) {
+			return(null);
+		}
+		try {
+			return(Long.toString(Long.parseLong(pubid.substring(0, i)) / SPOOL_BUCKET_MILLIS));
+		} catch (Exception e) {
+			return(null);
+		}
+	}
+	/**
+	 *	Get the path of the data file for a publish ID in a destination's
+	 *	spool directory.  The meta data and routing files add ".M" and
+	 *	".R" to it.
+	 *	@param spool	The spool directory
+	 *	@param pubid	The publish ID
+	 */
+	public static String getSpoolFile(String spool, String pubid) {
+		String bucket = getSpoolBucket(pubid);
+		if (bucket == null) {
+			return(spool + "/" + pubid);
+		}
+		return(spool + "/" + bucket + "/" + pubid);
+	}
+	/**
+	 *	Link a file into the time bucket of a spool directory, creating
+	 *	the bucket if needed.  A delivery queue removes a bucket once it
+	 *	is empty, so try again if that happens between creating the
+	 *	bucket and linking the file into it.
+	 *	@param link	The path of the new link
+	 *	@param existing	The file to link to
+	 */
+	public static void spoolLink(Path link, Path existing) throws IOException {
+		for (int tries = 1; ; tries++) {
+			Files.createDirectories(link.getParent());
+			try {
+				Files.createLink(link, existing);
+				return;
+			} catch (NoSuchFileException nsfe) {
+				if (tries >= 10) {
+					throw nsfe;
+				}
+			}
+		}
 	}
 	
 	/* Method prints method name, server FQDN and IP Address of the machine in EELF logs
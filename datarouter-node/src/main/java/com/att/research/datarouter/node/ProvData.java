@@ -155,7 +155,16 @@ public class ProvData	{
 					String password = gvas(jdel, "password");
 					boolean monly = jsub.getBoolean("metadataOnly");
 					boolean use100 = jdel.getBoolean("use100");
-					psv.add(new NodeConfig.ProvSubscription(sid, fid, delurl, id, NodeUtils.getAuthHdr(id, password), monly, use100));
+					int maxinflight = jdel.optInt("maxInFlight", 1);
+					if (maxinflight < 1) {
+						maxinflight = 1;
+					}
+					int batchfiles = jdel.optInt("batchFiles", 1);
+					if (batchfiles < 1) {
+						batchfiles = 1;
+					}
+					long batchbytes = jdel.optLong("batchBytes", 1048576L);
+					psv.add(new NodeConfig.ProvSubscription(sid, fid, delurl, id, NodeUtils.getAuthHdr(id, password), monly, use100, maxinflight, batchfiles, batchbytes));
 				}
 			}
 			JSONObject jparams = jcfg.optJSONObject("parameters");
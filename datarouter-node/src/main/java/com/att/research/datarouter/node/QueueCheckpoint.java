@@ -0,0 +1,165 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ *	Checkpoint of the files in a delivery queue.
+ *	<p>
+ *	A checkpoint lists, for each file, its publish ID, spool volume,
+ *	length, number of delivery attempts, and next attempt time, so that
+ *	after a restart a delivery queue can pick up its files without
+ *	listing every time bucket of its spool directories and checking the
+ *	length of every file.  The checkpoint is a binary file, which is
+ *	written to a temporary file and renamed into place, and is read by
+ *	mapping it into memory.  The temporary file is forced to disk before
+ *	the rename, so that a crash can't leave a checkpoint in place whose
+ *	contents never reached the disk.
+ */
+public class QueueCheckpoint	{
+	private static final int	MAGIC = 0x44524350;
+	private static final int	VERSION = 1;
+	/**
+	 *	The length of the magic number, version, time, and count
+	 */
+	private static final int	HEADER = 20;
+	/**
+	 *	The length of a file's entry, if its publish ID were empty
+	 */
+	private static final int	MIN_RECORD = 26;
+	/**
+	 *	The time the checkpoint was taken
+	 */
+	public long	time;
+	/**
+	 *	The number of files in the checkpoint
+	 */
+	public int	count;
+	/**
+	 *	The publish ID of each file
+	 */
+	public String[]	pubids;
+	/**
+	 *	The spool volume of each file
+	 */
+	public int[]	volumes;
+	/**
+	 *	The length of each file
+	 */
+	public long[]	lengths;
+	/**
+	 *	The number of delivery attempts of each file
+	 */
+	public int[]	attempts;
+	/**
+	 *	The next attempt time of each file, or 0
+	 */
+	public long[]	next;
+	/**
+	 *	Create an empty checkpoint for a number of files
+	 */
+	public QueueCheckpoint(long time, int count) {
+		this.time = time;
+		this.count = count;
+		pubids = new String[count];
+		volumes = new int[count];
+		lengths = new long[count];
+		attempts = new int[count];
+		next = new long[count];
+	}
+	/**
+	 *	Write the checkpoint
+	 *	@param file	The checkpoint file
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(time);
+			dos.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				byte[] b = pubids[i].getBytes("UTF-8");
+				dos.writeShort(b.length);
+				dos.write(b);
+				dos.writeInt(volumes[i]);
+				dos.writeLong(lengths[i]);
+				dos.writeInt(attempts[i]);
+				dos.writeLong(next[i]);
+			}
+			dos.flush();
+			fos.getChannel().force(true);
+			dos.close();
+			dos = null;
+		} finally {
+			if (dos != null) {
+				dos.close();
+				tmp.delete();
+			}
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+		}
+	}
+	/**
+	 *	Read a checkpoint
+	 *	@param file	The checkpoint file
+	 *	@return	The checkpoint or null if there is no valid checkpoint
+	 */
+	public static QueueCheckpoint read(File file) {
+		try {
+			FileChannel fc = (new FileInputStream(file)).getChannel();
+			try {
+				MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+				if (mb.getInt() != MAGIC || mb.getInt() != VERSION) {
+					return(null);
+				}
+				long time = mb.getLong();
+				int count = mb.getInt();
+				// don't let a corrupt count size the arrays
+				if (count < 0 || count > (fc.size() - HEADER) / MIN_RECORD) {
+					return(null);
+				}
+				QueueCheckpoint ret = new QueueCheckpoint(time, count);
+				byte[] b = new byte[256];
+				for (int i = 0; i < ret.count; i++) {
+					int len = mb.getShort() & 0xffff;
+					if (len > b.length) {
+						b = new byte[len];
+					}
+					mb.get(b, 0, len);
+					ret.pubids[i] = new String(b, 0, len, "UTF-8");
+					ret.volumes[i] = mb.getInt();
+					ret.lengths[i] = mb.getLong();
+					ret.attempts[i] = mb.getInt();
+					ret.next[i] = mb.getLong();
+				}
+				return(ret);
+			} finally {
+				fc.close();
+			}
+		} catch (Exception e) {
+			// missing, truncated, or otherwise unusable
+			return(null);
+		}
+	}
+}
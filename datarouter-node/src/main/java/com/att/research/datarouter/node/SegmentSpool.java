@@ -0,0 +1,269 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *	Append only spool for small files.
+ *	<p>
+ *	Spooling a file in its own data and meta data files, hard linked into
+ *	the spool directory of each destination, costs several file system
+ *	metadata operations per destination, which dominate the cost of
+ *	spooling small files.  Instead, for feeds whose SPOOL_ENGINE
+ *	provisioning parameter is "segment", files no larger than
+ *	SEGMENT_MAX_FILE_SIZE are appended, meta data followed by data, to
+ *	the current segment file in the "g" subdirectory of the spool volume.
+ *	Each subscription's delivery queue keeps the location of its files
+ *	(see Ref) in a journal in its spool directory.
+ *	<p>
+ *	Each segment counts the delivery queue entries that refer to it.  A
+ *	segment is deleted when the count drops to zero, once the segment is
+ *	full and no more files will be appended to it.  After a restart, the
+ *	counts are rebuilt as the delivery queues read their journals, and
+ *	sweep() then deletes any segment nothing refers to.
+ *	<p>
+ *	Each record in a segment starts with a line containing the publish
+ *	ID, the length of the meta data, and the length of the data,
+ *	separated by tabs, so that the segment can be examined or recovered
+ *	by hand.
+ */
+public class SegmentSpool	{
+	private static final long	SEGMENT_SIZE = 64L * 1024 * 1024;
+	private static ConcurrentHashMap<String, SegmentSpool>	spools = new ConcurrentHashMap<String, SegmentSpool>();
+	/**
+	 *	The location of a file in a segment
+	 */
+	public static class Ref	{
+		private SegmentSpool	spool;
+		private long	segment;
+		private long	offset;
+		private int	metalength;
+		private long	length;
+		private Ref(SegmentSpool spool, long segment, long offset, int metalength, long length) {
+			this.spool = spool;
+			this.segment = segment;
+			this.offset = offset;
+			this.metalength = metalength;
+			this.length = length;
+		}
+		/**
+		 *	Get the segment file
+		 */
+		public File getFile() {
+			return(spool.getFile(segment));
+		}
+		/**
+		 *	Get the offset of the data in the segment file
+		 */
+		public long getDataOffset() {
+			return(offset + metalength);
+		}
+		/**
+		 *	Get the length of the data
+		 */
+		public long getLength() {
+			return(length);
+		}
+		/**
+		 *	Read the meta data
+		 */
+		public String readMeta() throws IOException {
+			return(new String(spool.read(segment, offset, metalength), "UTF-8"));
+		}
+		/**
+		 *	Read the data
+		 */
+		public byte[] readData() throws IOException {
+			return(spool.read(segment, offset + metalength, (int)length));
+		}
+		/**
+		 *	Release this reference to the segment
+		 */
+		public void release() {
+			spool.release(segment);
+		}
+		/**
+		 *	Get the reference in the form saved in delivery queue journals
+		 */
+		public String toString() {
+			return(spool.dir.getPath() + " " + segment + " " + offset + " " + metalength + " " + length);
+		}
+		/**
+		 *	Parse a reference saved by toString() and count it against
+		 *	the segment it refers to
+		 *	@return	The reference or null if it isn't valid
+		 */
+		public static Ref parse(String s) {
+			String[] f = s.split(" ");
+			if (f.length != 5) {
+				return(null);
+			}
+			try {
+				SegmentSpool ss = get(f[0]);
+				Ref ret = new Ref(ss, Long.parseLong(f[1]), Long.parseLong(f[2]), Integer.parseInt(f[3]), Long.parseLong(f[4]));
+				if (!ss.retain(ret.segment, 1)) {
+					return(null);
+				}
+				return(ret);
+			} catch (Exception e) {
+				return(null);
+			}
+		}
+	}
+	private File	dir;
+	private HashMap<Long, Integer>	refs = new HashMap<Long, Integer>();
+	private long	current;
+	private FileChannel	out;
+	private long	size;
+	/**
+	 *	Get the segment spool for a directory, creating it if needed
+	 *	@param dir	The directory for the segment files
+	 */
+	public static SegmentSpool get(String dir) {
+		SegmentSpool ret = spools.get(dir);
+		if (ret == null) {
+			ret = new SegmentSpool(dir);
+			SegmentSpool x = spools.putIfAbsent(dir, ret);
+			if (x != null) {
+				ret = x;
+			}
+		}
+		return(ret);
+	}
+	/**
+	 *	Delete the segments, in all segment spools, that are full and
+	 *	not referred to by any delivery queue
+	 */
+	public static void sweepAll() {
+		for (SegmentSpool ss: spools.values()) {
+			ss.sweep();
+		}
+	}
+	private SegmentSpool(String dir) {
+		this.dir = new File(dir);
+		this.dir.mkdirs();
+		String[] files = this.dir.list();
+		if (files != null) {
+			for (String fn: files) {
+				try {
+					long seg = Long.parseLong(fn);
+					refs.put(seg, 0);
+					if (seg > current) {
+						current = seg;
+					}
+				} catch (Exception e) {
+				}
+			}
+		}
+		current++;
+	}
+	private File getFile(long segment) {
+		return(new File(dir, Long.toString(segment)));
+	}
+	/**
+	 *	Append a file to the current segment
+	 *	@param pubid	The publish ID of the file
+	 *	@param meta	The meta data
+	 *	@param data	The data
+	 *	@param count	The number of delivery queue entries that will refer to the file
+	 *	@return	The location of the file
+	 */
+	public synchronized Ref append(String pubid, byte[] meta, byte[] data, int count) throws IOException {
+		if (out != null && size >= SEGMENT_SIZE) {
+			out.close();
+			out = null;
+			if (refs.get(current) == 0) {
+				refs.remove(current);
+				getFile(current).delete();
+			}
+			current++;
+		}
+		if (out == null) {
+			out = (new FileOutputStream(getFile(current), true)).getChannel();
+			size = out.size();
+			refs.put(current, 0);
+		}
+		byte[] hdr = (pubid + "\t" + meta.length + "\t" + data.length + "\n").getBytes("UTF-8");
+		ByteBuffer[] bufs = new ByteBuffer[] { ByteBuffer.wrap(hdr), ByteBuffer.wrap(meta), ByteBuffer.wrap(data) };
+		long total = hdr.length + meta.length + data.length;
+		long sofar = 0;
+		try {
+			while (sofar < total) {
+				sofar += out.write(bufs);
+			}
+		} catch (IOException ioe) {
+			// don't leave a partial record in the middle of the segment
+			out.close();
+			out = null;
+			current++;
+			throw ioe;
+		}
+		Ref ret = new Ref(this, current, size + hdr.length, meta.length, data.length);
+		size += total;
+		refs.put(current, refs.get(current) + count);
+		return(ret);
+	}
+	private synchronized boolean retain(long segment, int count) {
+		Integer n = refs.get(segment);
+		if (n == null) {
+			return(false);
+		}
+		refs.put(segment, n + count);
+		return(true);
+	}
+	private synchronized void release(long segment) {
+		Integer n = refs.get(segment);
+		if (n == null) {
+			return;
+		}
+		if (n > 1 || segment == current) {
+			refs.put(segment, n - 1);
+			return;
+		}
+		refs.remove(segment);
+		getFile(segment).delete();
+	}
+	private synchronized void sweep() {
+		Iterator<Map.Entry<Long, Integer>> it = refs.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Integer> me = it.next();
+			if (me.getValue() <= 0 && me.getKey() != current) {
+				it.remove();
+				getFile(me.getKey()).delete();
+			}
+		}
+	}
+	private byte[] read(long segment, long offset, int length) throws IOException {
+		byte[] ret = new byte[length];
+		ByteBuffer bb = ByteBuffer.wrap(ret);
+		FileChannel fc = (new FileInputStream(getFile(segment))).getChannel();
+		try {
+			while (bb.hasRemaining()) {
+				if (fc.read(bb, offset + bb.position()) < 0) {
+					throw new EOFException("Unexpected end of segment " + getFile(segment));
+				}
+			}
+		} finally {
+			fc.close();
+		}
+		return(ret);
+	}
+}
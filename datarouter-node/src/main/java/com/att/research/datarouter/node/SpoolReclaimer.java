@@ -0,0 +1,107 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.*;
+
+/**
+ *	Background deletion of spooled files that are done with.
+ *	<p>
+ *	When a file is delivered, expires, or fails permanently, its
+ *	delivery queue removes it from its index, records a tombstone for it
+ *	(see DeliveryQueue), and hands it here, rather than deleting its
+ *	files while holding the queue's lock.  A single thread collects the
+ *	files handed to it, for up to a second or until BATCH_SIZE have
+ *	accumulated, then deletes them in publish ID order, so that files in
+ *	the same time bucket are deleted together, and finally tells each
+ *	queue which of its files are gone, so it can remove empty buckets
+ *	and drop their tombstones.
+ */
+public class SpoolReclaimer	{
+	private static final int	BATCH_SIZE = 1000;
+	private static final long	BATCH_MILLIS = 1000L;
+	private static class Entry implements Comparable<Entry>	{
+		private DeliveryQueue	dq;
+		private DeliveryTask	task;
+		private Entry(DeliveryQueue dq, DeliveryTask task) {
+			this.dq = dq;
+			this.task = task;
+		}
+		public int compareTo(Entry o) {
+			return(task.compareTo(o.task));
+		}
+	}
+	private static Vector<Entry>	pending = new Vector<Entry>();
+	private static Thread	thread;
+	private SpoolReclaimer() {}
+	/**
+	 *	Delete the files of a delivery task in the background
+	 *	@param dq	The delivery queue the task was in
+	 *	@param task	The task
+	 */
+	public static synchronized void reclaim(DeliveryQueue dq, DeliveryTask task) {
+		pending.add(new Entry(dq, task));
+		if (thread == null) {
+			thread = new Thread("Spool Reclaimer") {
+				public void run() {
+					while (true) {
+						reclaimBatch(waitForBatch());
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		if (pending.size() >= BATCH_SIZE) {
+			SpoolReclaimer.class.notify();
+		}
+	}
+	private static synchronized Vector<Entry> waitForBatch() {
+		long deadline = System.currentTimeMillis() + BATCH_MILLIS;
+		long now;
+		while (pending.size() < BATCH_SIZE && (now = System.currentTimeMillis()) < deadline) {
+			try {
+				SpoolReclaimer.class.wait(deadline - now);
+			} catch (Exception e) {
+			}
+		}
+		Vector<Entry> ret = pending;
+		pending = new Vector<Entry>();
+		return(ret);
+	}
+	private static void reclaimBatch(Vector<Entry> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		Collections.sort(batch);
+		LinkedHashMap<DeliveryQueue, Vector<String>> done = new LinkedHashMap<DeliveryQueue, Vector<String>>();
+		for (Entry e: batch) {
+			try {
+				e.task.clean();
+			} catch (Exception ex) {
+			}
+			Vector<String> v = done.get(e.dq);
+			if (v == null) {
+				v = new Vector<String>();
+				done.put(e.dq, v);
+			}
+			v.add(e.task.getPublishId());
+		}
+		for (Map.Entry<DeliveryQueue, Vector<String>> me: done.entrySet()) {
+			me.getKey().reclaimed(me.getValue());
+		}
+	}
+}
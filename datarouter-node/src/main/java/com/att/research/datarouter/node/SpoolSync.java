@@ -0,0 +1,191 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *	Make spooled files durable before a publication is acknowledged.
+ *	<p>
+ *	There are three durability modes.  With NONE, nothing is forced to
+ *	disk.  With FSYNC, each publication forces its own files and spool
+ *	directories to disk.  With GROUP, a publication adds its files and
+ *	directories to the current commit group, and waits for a single
+ *	commit thread to force the whole group to disk.  A group collects
+ *	publications for a short window and while the previous group is
+ *	being committed, so concurrent publications share the cost,
+ *	especially of forcing the spool directories, which most of them
+ *	have in common.
+ *	<p>
+ *	Files that no longer exist when they are forced, because they have
+ *	already been delivered and removed, are ignored.
+ */
+public class SpoolSync	{
+	/**
+	 *	Do not force anything to disk
+	 */
+	public static final int	NONE = 0;
+	/**
+	 *	Force to disk in groups shared by concurrent publications
+	 */
+	public static final int	GROUP = 1;
+	/**
+	 *	Force to disk separately for each publication
+	 */
+	public static final int	FSYNC = 2;
+	private static final String[]	names = { "none", "group", "fsync" };
+	private static class Group	{
+		private LinkedHashSet<String>	files = new LinkedHashSet<String>();
+		private HashSet<String>	dirs = new HashSet<String>();
+		private boolean	done;
+		private IOException	error;
+	}
+	private static Group	current;
+	private static long	window;
+	private static Thread	committer;
+	private SpoolSync() {}
+	/**
+	 *	Get the durability mode with a given name
+	 *	@param name	The name ("none", "group", or "fsync")
+	 *	@param deflt	The mode to use if the name is not recognized
+	 */
+	public static int parseMode(String name, int deflt) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(name)) {
+				return(i);
+			}
+		}
+		return(deflt);
+	}
+	/**
+	 *	Get the name of a durability mode
+	 */
+	public static String getModeName(int mode) {
+		return(names[mode]);
+	}
+	/**
+	 *	Set how long a commit group collects publications before it
+	 *	is committed
+	 *	@param millis	The window in milliseconds
+	 */
+	public static synchronized void setWindow(long millis) {
+		window = millis;
+	}
+	/**
+	 *	Force files and the directories containing their names to disk
+	 *	@param mode	The durability mode
+	 *	@param files	The files whose contents must be durable
+	 *	@param dirs	The directories whose entries must be durable
+	 */
+	public static void sync(int mode, Collection<String> files, Collection<String> dirs) throws IOException {
+		if (mode == FSYNC) {
+			for (String f: files) {
+				force(f);
+			}
+			for (String d: dirs) {
+				force(d);
+			}
+			return;
+		}
+		if (mode != GROUP) {
+			return;
+		}
+		Group g;
+		synchronized (SpoolSync.class) {
+			if (current == null) {
+				current = new Group();
+				if (committer == null) {
+					committer = new Thread() {
+						public void run() {
+							commit();
+						}
+					};
+					committer.setName("Spool Group Commit");
+					committer.setDaemon(true);
+					committer.start();
+				}
+				SpoolSync.class.notifyAll();
+			}
+			g = current;
+			g.files.addAll(files);
+			g.dirs.addAll(dirs);
+			while (!g.done) {
+				try {
+					SpoolSync.class.wait();
+				} catch (InterruptedException ie) {
+				}
+			}
+		}
+		if (g.error != null) {
+			throw g.error;
+		}
+	}
+	private static void commit() {
+		while (true) {
+			Group g;
+			synchronized (SpoolSync.class) {
+				while (current == null) {
+					try {
+						SpoolSync.class.wait();
+					} catch (InterruptedException ie) {
+					}
+				}
+				long end = System.currentTimeMillis() + window;
+				long now;
+				while ((now = System.currentTimeMillis()) < end) {
+					try {
+						SpoolSync.class.wait(end - now);
+					} catch (InterruptedException ie) {
+					}
+				}
+				g = current;
+				current = null;
+			}
+			try {
+				for (String f: g.files) {
+					force(f);
+				}
+				for (String d: g.dirs) {
+					force(d);
+				}
+			} catch (IOException ioe) {
+				g.error = ioe;
+			}
+			NodeStats.inc("spool.commit.groups");
+			NodeStats.add("spool.commit.files", g.files.size());
+			synchronized (SpoolSync.class) {
+				g.done = true;
+				SpoolSync.class.notifyAll();
+			}
+		}
+	}
+	private static void force(String path) throws IOException {
+		FileChannel fc;
+		try {
+			fc = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+		} catch (NoSuchFileException nsfe) {
+			return;
+		}
+		try {
+			fc.force(true);
+		} finally {
+			fc.close();
+		}
+	}
+}
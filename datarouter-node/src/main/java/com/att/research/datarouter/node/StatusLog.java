@@ -17,14 +17,38 @@ package com.att.research.datarouter.node;
 
 import java.util.regex.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.io.*;
 import java.nio.file.*;
 import java.text.*;
 
 /**
  *	Logging for data router delivery events (PUB/DEL/EXP)
+ *	<p>
+ *	Threads logging events do not write to the log file.  Each event
+ *	claims a slot in a fixed size ring buffer with an atomic increment
+ *	rather than a lock, and is then time stamped and put in it.  A
+ *	thread can still be preempted between claiming its slot and reading
+ *	the clock, so the writer never lets the time stamps it writes go
+ *	backwards, keeping the log in time order.  A single writer
+ *	thread takes the events from the ring buffer in order, writes them
+ *	in batches through a buffered stream, and rolls over to a new log
+ *	file when needed.  If the ring buffer fills, logging threads wait
+ *	for the writer to catch up; events are never dropped.  How often the
+ *	writer flushes is set by the EventLogFlushInterval local
+ *	configuration property.
  */
 public class StatusLog	{
+	private static final int	RINGSIZE = 65536;
+	private static class Event	{
+		private long	when;
+		private String	text;
+		public Event(long when, String text) {
+			this.when = when;
+			this.text = text;
+		}
+	}
 	private static StatusLog instance = new StatusLog();
 	private HashSet<String> toship = new HashSet<String>();
 	private SimpleDateFormat	filedate;
@@ -33,9 +57,17 @@ public class StatusLog	{
 	private String	plainfile;
 	private String	curfile;
 	private long	nexttime;
-	private OutputStream	os;
 	private long	intvl;
 	private NodeConfigManager	config = NodeConfigManager.getInstance();
+	private AtomicReferenceArray<Event>	ring = new AtomicReferenceArray<Event>(RINGSIZE);
+	private AtomicLong	head = new AtomicLong();
+	private volatile long	tail;
+	private volatile boolean	idle;
+	private volatile boolean	stopping;
+	private Thread	writer;
+	private OutputStream	os;
+	private String	openfile;
+	private long	lastwhen;
 	{
 		try { filedate = new SimpleDateFormat("-yyyyMMddHHmm"); } catch (Exception e) {}
 	}
@@ -94,46 +126,124 @@ public class StatusLog	{
 		}
 		return(def);
 	}
-	private synchronized void checkRoll(long now) throws IOException {
+	private synchronized String checkRoll(long now) {
 		if (now >= nexttime) {
-			if (os != null) {
-				os.close();
-				os = null;
-			}
 			intvl = parseInterval(config.getEventLogInterval(), 300000);
 			prefix = config.getEventLogPrefix();
 			suffix = config.getEventLogSuffix();
 			nexttime = now - now % intvl + intvl;
 			curfile = prefix + filedate.format(new Date(nexttime - intvl)) + suffix;
 			plainfile = prefix + suffix;
-			notify();
 		}
+		return(curfile);
 	}
 	/**
 	 *	Get the name of the current log file
 	 *	@return	The full path name of the current event log file
 	 */
-	public static synchronized String getCurLogFile() {
-		try {
-			instance.checkRoll(System.currentTimeMillis());
-		} catch (Exception e) {
+	public static String getCurLogFile() {
+		return(instance.checkRoll(System.currentTimeMillis()));
+	}
+	private void log(String s) {
+		long seq = head.getAndIncrement();
+		Event e = new Event(System.currentTimeMillis(), s);
+		while (seq - tail >= RINGSIZE) {
+			LockSupport.parkNanos(100000L);
+		}
+		ring.set((int)(seq % RINGSIZE), e);
+		if (idle) {
+			LockSupport.unpark(writer);
 		}
-		return(instance.curfile);
 	}
-	private synchronized void log(String s) {
+	private Event take() {
+		int i = (int)(tail % RINGSIZE);
+		Event e = ring.get(i);
+		if (e != null) {
+			ring.set(i, null);
+			tail++;
+		}
+		return(e);
+	}
+	private void write(Event e) throws IOException {
+		if (e.when < lastwhen) {
+			e.when = lastwhen;
+		}
+		lastwhen = e.when;
+		String file = checkRoll(e.when);
+		if (!file.equals(openfile)) {
+			if (os != null) {
+				os.close();
+				os = null;
+			}
+			openfile = file;
+			os = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+			String plain;
+			synchronized (this) {
+				plain = plainfile;
+			}
+			(new File(plain)).delete();
+			Files.createLink(Paths.get(plain), Paths.get(file));
+		}
+		os.write((NodeUtils.logts(e.when) + '|' + e.text + '\n').getBytes());
+	}
+	private void flush() {
 		try {
-			long now = System.currentTimeMillis();
-			checkRoll(now);
-			if (os == null) {
-				os = new FileOutputStream(curfile, true);
-				(new File(plainfile)).delete();
-				Files.createLink(Paths.get(plainfile), Paths.get(curfile));
+			if (os != null) {
+				os.flush();
 			}
-			os.write((NodeUtils.logts(new Date(now)) + '|' + s + '\n').getBytes());
-			os.flush();
 		} catch (IOException ioe) {
 		}
 	}
+	private void writeEvents() {
+		long lastflush = System.currentTimeMillis();
+		boolean dirty = false;
+		while (true) {
+			Event e = take();
+			if (e != null) {
+				try {
+					write(e);
+				} catch (IOException ioe) {
+					openfile = null;
+				}
+				dirty = true;
+				long flushintvl = config.getEventLogFlushInterval();
+				if (flushintvl < 0 || (flushintvl > 0 && e.when - lastflush >= flushintvl)) {
+					flush();
+					dirty = false;
+					lastflush = e.when;
+				}
+				continue;
+			}
+			long flushintvl = config.getEventLogFlushInterval();
+			long now = System.currentTimeMillis();
+			if (dirty && (flushintvl <= 0 || now - lastflush >= flushintvl)) {
+				flush();
+				dirty = false;
+				lastflush = now;
+			}
+			if (stopping) {
+				flush();
+				return;
+			}
+			long wait = 1000L;
+			if (dirty) {
+				wait = lastflush + flushintvl - now;
+			}
+			idle = true;
+			if (ring.get((int)(tail % RINGSIZE)) == null) {
+				LockSupport.parkNanos(wait * 1000000L);
+			}
+			idle = false;
+		}
+	}
+	private void shutdown() {
+		stopping = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(5000);
+		} catch (InterruptedException ie) {
+		}
+	}
 	/**
 	 *	Log a received publication attempt.
 	 *	@param pubid	The publish ID assigned by the node
@@ -217,5 +327,18 @@ public class StatusLog	{
 		instance.log("DLX|" + pubid + "|" + feedid + "|" + subid + "|" + clen + "|" + sent);
 	}
 	private StatusLog() {
+		writer = new Thread() {
+			public void run() {
+				writeEvents();
+			}
+		};
+		writer.setName("Event Log Writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				shutdown();
+			}
+		});
 	}
 }
@@ -0,0 +1,117 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.*;
+import org.apache.log4j.Logger;
+
+/**
+ *	Hashed timer wheel for large numbers of short, imprecise timers.
+ *	<p>
+ *	Time is divided into ticks, and each tick maps to one of a fixed number
+ *	of slots.  Scheduling a task adds it to the slot for the first tick
+ *	after the requested time, and once per tick a single thread runs the
+ *	tasks in the current slot that are due.  Tasks further in the future
+ *	than one revolution of the wheel simply stay in their slot until a
+ *	later revolution.  Scheduling is constant time regardless of how many
+ *	tasks are pending, unlike java.util.Timer.  Tasks cannot be cancelled;
+ *	they should check, when run, whether they are still needed.
+ */
+public class TimerWheel	{
+	private static Logger logger = Logger.getLogger("com.att.research.datarouter.node.TimerWheel");
+	private static class Timeout	{
+		private long	when;
+		private Runnable	task;
+		public Timeout(long when, Runnable task) {
+			this.when = when;
+			this.task = task;
+		}
+	}
+	private long	tick;
+	private ArrayList<Timeout>[]	slots;
+	private long	nexttick;
+	/**
+	 *	Create and start a timer wheel
+	 *	@param name	The name of the timer thread
+	 *	@param tick	The length of a tick in milliseconds
+	 *	@param size	The number of slots
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(String name, long tick, int size) {
+		this.tick = tick;
+		slots = new ArrayList[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new ArrayList<Timeout>();
+		}
+		nexttick = System.currentTimeMillis() / tick + 1;
+		Thread t = new Thread() {
+			public void run() {
+				turn();
+			}
+		};
+		t.setName(name);
+		t.setDaemon(true);
+		t.start();
+	}
+	/**
+	 *	Run a task after a given time
+	 *	@param when	The time (milliseconds since 1970) the task should run after
+	 *	@param task	The task to run
+	 */
+	public synchronized void schedule(long when, Runnable task) {
+		long k = Math.max(when / tick + 1, nexttick);
+		slots[(int)(k % slots.length)].add(new Timeout(when, task));
+	}
+	private void turn() {
+		ArrayList<Runnable> due = new ArrayList<Runnable>();
+		while (true) {
+			long start;
+			synchronized (this) {
+				start = nexttick * tick;
+			}
+			long now;
+			while ((now = System.currentTimeMillis()) < start) {
+				try {
+					Thread.sleep(start - now);
+				} catch (Exception e) {
+				}
+			}
+			synchronized (this) {
+				ArrayList<Timeout> slot = slots[(int)(nexttick % slots.length)];
+				int j = 0;
+				for (Timeout to: slot) {
+					if (to.when < start) {
+						due.add(to.task);
+					} else {
+						slot.set(j++, to);
+					}
+				}
+				while (slot.size() > j) {
+					slot.remove(slot.size() - 1);
+				}
+				nexttick++;
+			}
+			for (Runnable r: due) {
+				try {
+					r.run();
+				} catch (Exception e) {
+					logger.error("NODE0520 Unexpected exception in timer task", e);
+				}
+			}
+			due.clear();
+		}
+	}
+}
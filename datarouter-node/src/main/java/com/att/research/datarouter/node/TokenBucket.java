@@ -0,0 +1,94 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *	Lock free rate limiter.
+ *	<p>
+ *	Instead of a count of tokens, a token bucket keeps the time at which
+ *	it will be full again, which is advanced by each request by the time
+ *	it takes to earn the tokens the request takes.  A request is allowed
+ *	if that time is no more than one second of tokens into the future
+ *	afterward, so the bucket holds one second's worth of tokens.  A
+ *	request is also allowed if the bucket is full, so that a request
+ *	larger than the bucket can get through.  Taking tokens is a single
+ *	compare and set, with no locking, and buckets are found in a
+ *	concurrent map by name.
+ */
+public class TokenBucket	{
+	private static final long	BURST = 1000000000L;
+	private static ConcurrentHashMap<String, TokenBucket>	buckets = new ConcurrentHashMap<String, TokenBucket>();
+	private AtomicLong	full = new AtomicLong(System.nanoTime());
+	/**
+	 *	Get the token bucket with a given name, creating it if needed
+	 *	@param name	The name of the bucket
+	 */
+	public static TokenBucket get(String name) {
+		TokenBucket ret = buckets.get(name);
+		if (ret == null) {
+			ret = new TokenBucket();
+			TokenBucket x = buckets.putIfAbsent(name, ret);
+			if (x != null) {
+				ret = x;
+			}
+		}
+		return(ret);
+	}
+	private static long cost(double rate, long amount) {
+		return((long)(amount * 1000000000.0 / rate));
+	}
+	/**
+	 *	Take tokens from the bucket, if there are enough
+	 *	@param rate	The rate (tokens per second) tokens are earned.  If not positive, there is no limit
+	 *	@param amount	The number of tokens to take
+	 *	@return	0 if the tokens were taken, or else how long (in nanoseconds) until they could be
+	 */
+	public long take(double rate, long amount) {
+		if (rate <= 0 || amount <= 0) {
+			return(0);
+		}
+		long cost = cost(rate, amount);
+		while (true) {
+			long now = System.nanoTime();
+			long was = full.get();
+			long base = now;
+			if (was - now > 0) {
+				base = was;
+				long wait = base + cost - now - BURST;
+				if (wait > 0) {
+					return(Math.min(wait, base - now));
+				}
+			}
+			if (full.compareAndSet(was, base + cost)) {
+				return(0);
+			}
+		}
+	}
+	/**
+	 *	Return tokens taken from the bucket that were not used
+	 *	@param rate	The rate passed to take()
+	 *	@param amount	The number of tokens taken
+	 */
+	public void giveBack(double rate, long amount) {
+		if (rate <= 0 || amount <= 0) {
+			return;
+		}
+		full.addAndGet(-cost(rate, amount));
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.sun.net.httpserver.*;
+import junit.framework.TestCase;
+
+/**
+ *	Check the connection pool of the asynchronous delivery engine against
+ *	a local http server.
+ */
+public class AsyncDeliveryTest extends TestCase	{
+	private static final String[]	COUNTERS = { "delivery.pool.hits", "delivery.pool.misses", "delivery.pool.discards", "delivery.pool.evictions", "delivery.http.connections", "delivery.http.requests" };
+	private HttpServer	server;
+	private File	spool;
+	private String	pubid;
+	private DestInfo	di;
+	private Vector<Integer>	statuses = new Vector<Integer>();
+	private Vector<String>	requests = new Vector<String>();
+	private HashMap<String, Long>	before = new HashMap<String, Long>();
+	private CountDownLatch	delay = new CountDownLatch(0);
+	protected void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange x) throws IOException {
+				InputStream is = x.getRequestBody();
+				int n = 0;
+				while (is.read() != -1) {
+					n++;
+				}
+				requests.add(x.getRequestMethod() + " " + x.getRequestURI().getPath() + " " + n);
+				try {
+					delay.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+				}
+				x.sendResponseHeaders(204, -1);
+				x.close();
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.start();
+		spool = Files.createTempDirectory("adtest").toFile();
+		pubid = System.currentTimeMillis() + ".node1.example.com";
+		File data = new File(NodeUtils.getSpoolFile(spool.getPath(), pubid));
+		data.getParentFile().mkdirs();
+		Files.write(data.toPath(), "hello".getBytes());
+		Files.write(new File(data.getPath() + ".M").toPath(), "PUT\tfile\nContent-Type\ttext/plain\n".getBytes());
+		di = new DestInfo("s:1", spool.getPath(), "1", "1", "http://127.0.0.1:" + server.getAddress().getPort() + "/d", "user", "Basic x", false, false, 1);
+		for (String name: COUNTERS) {
+			before.put(name, NodeStats.get(name));
+		}
+	}
+	protected void tearDown() {
+		server.stop(0);
+		delete(spool);
+	}
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File x: files) {
+				delete(x);
+			}
+		}
+		f.delete();
+	}
+	private long count(String name) {
+		return(NodeStats.get(name) - before.get(name));
+	}
+	private DeliveryTaskHelper helper() {
+		return(new DeliveryTaskHelper() {
+			public void reportException(DeliveryTask task, Exception exception) {
+				statuses.add(-1);
+			}
+			public void reportStatus(DeliveryTask task, int status, String xpubid, String location) {
+				statuses.add(status);
+			}
+			public void reportDeliveryExtra(DeliveryTask task, long sent) {
+			}
+			public int getConnectTimeout() {
+				return(5000);
+			}
+			public int getReadTimeout() {
+				return(5000);
+			}
+			public DestInfo getDestInfo() {
+				return(di);
+			}
+			public String getDestURL(String fileid) {
+				return(di.getURL() + "/" + fileid);
+			}
+			public NodeChannel getChannel() {
+				return(null);
+			}
+			public String getFeedId(String subid) {
+				return("1");
+			}
+		});
+	}
+	/**
+	 *	Start delivering the test file
+	 *	@return	A latch released once the outcome has been reported
+	 */
+	private CountDownLatch deliver(AsyncDelivery engine) throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		engine.acquire();
+		new DeliveryTask(helper(), pubid).runAsync(engine, new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		});
+		return(done);
+	}
+	public void testReuse() throws Exception {
+		AsyncDelivery engine = new AsyncDelivery(1, 10, 2, 60000);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(deliver(engine).await(10, TimeUnit.SECONDS));
+		}
+		assertEquals(Arrays.asList(204, 204, 204, 204, 204), statuses);
+		assertEquals(Collections.nCopies(5, "PUT /d/file 5"), requests);
+		assertEquals(1, count("delivery.pool.misses"));
+		assertEquals(4, count("delivery.pool.hits"));
+		assertEquals(1, count("delivery.http.connections"));
+		assertEquals(5, count("delivery.http.requests"));
+	}
+	public void testMaxIdle() throws Exception {
+		// two event loops, but only one idle connection for the destination in all
+		AsyncDelivery engine = new AsyncDelivery(2, 10, 1, 60000);
+		delay = new CountDownLatch(1);
+		CountDownLatch a = deliver(engine);
+		CountDownLatch b = deliver(engine);
+		Thread.sleep(200);
+		delay.countDown();
+		assertTrue(a.await(10, TimeUnit.SECONDS));
+		assertTrue(b.await(10, TimeUnit.SECONDS));
+		assertEquals(2, count("delivery.pool.misses"));
+		assertEquals(1, count("delivery.pool.discards"));
+		assertTrue(deliver(engine).await(10, TimeUnit.SECONDS));
+		assertTrue(deliver(engine).await(10, TimeUnit.SECONDS));
+		// one of these is on the event loop holding the idle connection
+		assertEquals(1, count("delivery.pool.hits"));
+	}
+	public void testEviction() throws Exception {
+		AsyncDelivery engine = new AsyncDelivery(1, 10, 2, 200);
+		assertTrue(deliver(engine).await(10, TimeUnit.SECONDS));
+		long limit = System.currentTimeMillis() + 5000;
+		while (count("delivery.pool.evictions") == 0 && System.currentTimeMillis() < limit) {
+			Thread.sleep(50);
+		}
+		assertEquals(1, count("delivery.pool.evictions"));
+		assertTrue(deliver(engine).await(10, TimeUnit.SECONDS));
+		assertEquals(2, count("delivery.pool.misses"));
+		assertEquals(0, count("delivery.pool.hits"));
+	}
+}
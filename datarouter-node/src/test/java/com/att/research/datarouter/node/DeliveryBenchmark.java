@@ -0,0 +1,213 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.sun.net.httpserver.*;
+
+/**
+ *	Measure the throughput and the heap allocation of delivering a spooled
+ *	file to a local http server, one delivery at a time.
+ *	<p>
+ *	Usage: DeliveryBenchmark [file size in bytes] [deliveries per run]
+ *	<p>
+ *	For comparison, "copy" sends the way DeliveryTask.run() did before it
+ *	stopped allocating a 1 MB array per attempt, and "transferTo" sends
+ *	with FileChannel.transferTo into a channel wrapping the connection's
+ *	output stream.  "thread" is DeliveryTask.run() as it is now, and
+ *	"async" is the AsyncDelivery engine, which transfers the file straight
+ *	to the socket.  The allocation is that of the delivering threads only,
+ *	not of the server, and includes what HttpURLConnection allocates for
+ *	each request.
+ */
+public class DeliveryBenchmark	{
+	private static final String[]	MODES = { "copy", "transferTo", "thread", "async" };
+	private static com.sun.management.ThreadMXBean	tmx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	private static DestInfo	di;
+	private static String	spool;
+	private static String	pubid;
+	private static String	datafile;
+	private static long	length;
+	private static AsyncDelivery	engine;
+	private static DeliveryTaskHelper	dth = new DeliveryTaskHelper() {
+		public void reportException(DeliveryTask task, Exception exception) {
+			throw new RuntimeException(exception);
+		}
+		public void reportStatus(DeliveryTask task, int status, String xpubid, String location) {
+			if (status != 204) {
+				throw new RuntimeException("Unexpected status " + status);
+			}
+		}
+		public void reportDeliveryExtra(DeliveryTask task, long sent) {
+		}
+		public int getConnectTimeout() {
+			return(60000);
+		}
+		public int getReadTimeout() {
+			return(60000);
+		}
+		public DestInfo getDestInfo() {
+			return(di);
+		}
+		public String getDestURL(String fileid) {
+			return(di.getURL() + "/" + fileid);
+		}
+		public NodeChannel getChannel() {
+			return(null);
+		}
+		public String getFeedId(String subid) {
+			return("1");
+		}
+	};
+	public static void main(String[] args) throws Exception {
+		length = (args.length > 0) ? Long.parseLong(args[0]) : 1048576;
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+		// a failed delivery throws, so don't leave the server running
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread t, Throwable e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		});
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			private byte[] buf = new byte[65536];
+			public void handle(HttpExchange x) throws IOException {
+				InputStream is = x.getRequestBody();
+				while (is.read(buf) != -1) {
+				}
+				x.sendResponseHeaders(204, -1);
+				x.close();
+			}
+		});
+		server.start();
+		File dir = Files.createTempDirectory("delbench").toFile();
+		spool = dir.getPath();
+		pubid = System.currentTimeMillis() + ".node1.example.com";
+		datafile = NodeUtils.getSpoolFile(spool, pubid);
+		new File(datafile).getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(datafile, "rw");
+		raf.setLength(length);
+		raf.close();
+		Files.write(new File(datafile + ".M").toPath(), "PUT\tfile\nContent-Type\tapplication/octet-stream\n".getBytes());
+		di = new DestInfo("s:1", spool, "1", "1", "http://127.0.0.1:" + server.getAddress().getPort() + "/d", "user", "Basic x", false, false, 1);
+		engine = new AsyncDelivery(1, 1, 1, 60000);
+		System.out.println("file size " + length + " bytes, " + count + " deliveries per run");
+		System.out.printf("%-12s %12s %12s %18s%n", "mode", "deliveries/s", "MB/s", "alloc bytes/deliv");
+		for (int pass = 0; pass < 2; pass++) {
+			for (String mode: MODES) {
+				// the first pass warms up
+				run(mode, count / 5);
+				if (pass == 1) {
+					long alloc = allocated();
+					long start = System.nanoTime();
+					run(mode, count);
+					long elapsed = System.nanoTime() - start;
+					alloc = allocated() - alloc;
+					double secs = elapsed / 1e9;
+					System.out.printf("%-12s %12.0f %12.1f %18d%n", mode, count / secs, count * (double)length / secs / 1048576, alloc / count);
+				}
+			}
+		}
+		server.stop(0);
+		new File(datafile).delete();
+		new File(datafile + ".M").delete();
+		new File(datafile).getParentFile().delete();
+		dir.delete();
+		System.exit(0);
+	}
+	/**
+	 *	Get the number of bytes allocated so far by the delivering threads
+	 */
+	private static long allocated() {
+		long total = 0;
+		for (ThreadInfo ti: tmx.getThreadInfo(tmx.getAllThreadIds())) {
+			if (ti != null && (ti.getThreadName().equals("main") || ti.getThreadName().startsWith("Async Delivery"))) {
+				total += tmx.getThreadAllocatedBytes(ti.getThreadId());
+			}
+		}
+		return(total);
+	}
+	private static void run(String mode, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			if ("thread".equals(mode)) {
+				new DeliveryTask(dth, pubid).run();
+			} else if ("async".equals(mode)) {
+				final CountDownLatch done = new CountDownLatch(1);
+				engine.acquire();
+				new DeliveryTask(dth, pubid).runAsync(engine, new Runnable() {
+					public void run() {
+						done.countDown();
+					}
+				});
+				done.await();
+			} else {
+				send("copy".equals(mode));
+			}
+		}
+	}
+	/**
+	 *	Send the file the way DeliveryTask.run() used to
+	 *	@param copy	Copy through a 1 MB array allocated for the attempt, rather than use transferTo
+	 */
+	private static void send(boolean copy) throws IOException {
+		HttpURLConnection uc = (HttpURLConnection)new URL(di.getURL() + "/file").openConnection();
+		uc.setRequestMethod("PUT");
+		uc.setFixedLengthStreamingMode(length);
+		uc.setDoOutput(true);
+		OutputStream os = uc.getOutputStream();
+		long sofar = 0;
+		if (copy) {
+			byte[] buf = new byte[1024 * 1024];
+			InputStream is = new FileInputStream(datafile);
+			while (sofar < length) {
+				int i = buf.length;
+				if (sofar + i > length) {
+					i = (int)(length - sofar);
+				}
+				i = is.read(buf, 0, i);
+				if (i <= 0) {
+					throw new IOException("Unexpected end of data file");
+				}
+				sofar += i;
+				os.write(buf, 0, i);
+			}
+			is.close();
+		} else {
+			FileChannel fc = (new FileInputStream(datafile)).getChannel();
+			WritableByteChannel wbc = Channels.newChannel(os);
+			while (sofar < length) {
+				long i = fc.transferTo(sofar, length - sofar, wbc);
+				if (i <= 0) {
+					throw new IOException("Unexpected end of data file");
+				}
+				sofar += i;
+			}
+			fc.close();
+		}
+		os.close();
+		if (uc.getResponseCode() != 204) {
+			throw new IOException("Unexpected status " + uc.getResponseCode());
+		}
+		uc.getInputStream().close();
+	}
+}
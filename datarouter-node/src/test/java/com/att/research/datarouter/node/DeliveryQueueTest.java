@@ -0,0 +1,117 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.nio.file.*;
+import junit.framework.TestCase;
+
+/**
+ *	Check that files found when a delivery queue rescans its spool
+ *	directories can be thrown away to free up disk space.
+ */
+public class DeliveryQueueTest extends TestCase	{
+	private static class Helper implements DeliveryQueueHelper	{
+		public long getInitFailureTimer() { return(10000); }
+		public double getFailureBackoff() { return(2.0); }
+		public long getMaxFailureTimer() { return(3600000); }
+		public int getMaxAttempts() { return(10); }
+		public long getExpirationTimer() { return(86400000); }
+		public int getFairFileLimit() { return(100); }
+		public long getFairTimeLimit() { return(60000); }
+		public int getConnectTimeout() { return(60000); }
+		public int getReadTimeout() { return(60000); }
+		public String getDestURL(DestInfo dest, String fileid) { return(dest.getURL() + "/" + fileid); }
+		public void handleUnreachable(DestInfo dest) {}
+		public boolean handleRedirection(DestInfo dest, String location, String fileid) { return(false); }
+		public boolean isFollowRedirects() { return(false); }
+		public NodeChannel getChannel(DestInfo dest) { return(null); }
+		public String getFeedId(String subid) { return("1"); }
+	}
+	private File	base;
+	private String[]	spools;
+	private long	now;
+	protected void setUp() throws Exception {
+		base = Files.createTempDirectory("dqtest").toFile();
+		spools = new String[] { new File(base, "v0/s/1").getPath(), new File(base, "v1/s/1").getPath() };
+		now = System.currentTimeMillis() - 60000;
+	}
+	protected void tearDown() {
+		delete(base);
+	}
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File x: files) {
+				delete(x);
+			}
+		}
+		f.delete();
+	}
+	private String spool(int volume, long when, int length) throws IOException {
+		String pubid = when + ".node1.example.com";
+		File data = new File(NodeUtils.getSpoolFile(spools[volume], pubid));
+		data.getParentFile().mkdirs();
+		Files.write(data.toPath(), new byte[length]);
+		Files.write(new File(data.getPath() + ".M").toPath(), "PUT\tfile\nContent-Type\ttext/plain\n".getBytes());
+		return(pubid);
+	}
+	private DeliveryQueue queue(EvictionIndex evictions) {
+		DeliveryQueue dq = new DeliveryQueue(new Helper(), new DestInfo("s:1", spools, "1", "1", "http://127.0.0.1:1/d", "user", "Basic x", false, false, 1));
+		dq.setEvictionIndex(evictions);
+		dq.rescan();
+		return(dq);
+	}
+	private void check(DeliveryQueue dq, EvictionIndex evictions, String old0, String old1) {
+		assertEquals(old0, dq.getOldest(0));
+		assertEquals(old1, dq.getOldest(1));
+		assertSame(dq, evictions.choose(0));
+		assertSame(dq, evictions.choose(1));
+		assertEquals(10, dq.getBacklogBytes(0));
+		assertEquals(21, dq.getBacklogBytes(1));
+	}
+	public void testRescanTwoVolumes() throws Exception {
+		String a = spool(0, now, 3);
+		spool(0, now + 10, 7);
+		String b = spool(1, now + 5, 10);
+		spool(1, now + 20, 11);
+		EvictionIndex evictions = new EvictionIndex(2, new EvictionPolicy.OldestFirst());
+		DeliveryQueue dq = queue(evictions);
+		assertEquals(4, dq.getBacklog());
+		check(dq, evictions, a, b);
+	}
+	public void testRescanFromCheckpoint() throws Exception {
+		String a = spool(0, now, 3);
+		spool(0, now + 10, 7);
+		String b = spool(1, now + 5, 10);
+		spool(1, now + 20, 11);
+		EvictionIndex evictions = new EvictionIndex(2, new EvictionPolicy.OldestFirst());
+		DeliveryQueue dq = queue(evictions);
+		dq.checkpoint();
+		dq.setEvictionIndex(null);
+		evictions.remove(dq);
+		// make the buckets look unchanged since the checkpoint
+		for (String spool: spools) {
+			for (File bucket: new File(spool).listFiles()) {
+				bucket.setLastModified(now - 60000);
+			}
+		}
+		evictions = new EvictionIndex(2, new EvictionPolicy.OldestFirst());
+		dq = queue(evictions);
+		assertEquals(4, dq.getBacklog());
+		check(dq, evictions, a, b);
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ *	Measure the cost of spooling one published file for many targets.
+ *	<p>
+ *	Usage: FanoutBenchmark [spool directory] [meta data size in bytes]
+ *	<p>
+ *	For 1, 10, 100 and 1000 targets, "before" rewrites the whole meta
+ *	data file and renames it into each target's spool, the way NodeServlet
+ *	did before the meta data was shared, and "after" writes it once and
+ *	hard links it, with NodeServlet.linkTargets().  Each is run for
+ *	subscriber targets, where only the data and meta data files are
+ *	linked, and for node targets, which also get a routing file (before,
+ *	the routing header was appended to each copy of the meta data).  The
+ *	time is per publication, and does not include syncing the files,
+ *	which SpoolSync does afterwards in either case.
+ */
+public class FanoutBenchmark	{
+	private static final int[]	FANOUTS = { 1, 10, 100, 1000 };
+	private static Method	linkTargets;
+	public static void main(String[] args) throws Exception {
+		File base = (args.length > 0) ? new File(args[0]) : Files.createTempDirectory("fanbench").toFile();
+		int metasize = (args.length > 1) ? Integer.parseInt(args[1]) : 2048;
+		linkTargets = NodeServlet.class.getDeclaredMethod("linkTargets", Vector.class, String.class, int.class, String.class, long.class, Vector.class, Vector.class, Vector.class);
+		linkTargets.setAccessible(true);
+		StringBuilder sb = new StringBuilder("PUT\tfile\nContent-Type\ttext/plain\nX-ATT-DR-META\t{\"k\":\"");
+		while (sb.length() < metasize - 3) {
+			sb.append('x');
+		}
+		String metadata = sb.append("\"}\n").toString();
+		File fdir = new File(base, "f");
+		fdir.mkdirs();
+		System.out.println("meta data " + metadata.length() + " bytes, spool " + base);
+		System.out.printf("%-12s %8s %14s %14s %8s%n", "targets", "fanout", "before us/pub", "after us/pub", "speedup");
+		for (int pass = 0; pass < 2; pass++) {
+			for (boolean nodes: new boolean[] { false, true }) {
+				for (int n: FANOUTS) {
+					Vector<Target> targets = new Vector<Target>();
+					for (int i = 0; i < n; i++) {
+						String spool = new File(base, (nodes ? "n/" : "s/") + i).getPath();
+						new File(spool).mkdirs();
+						targets.add(new Target(new DestInfo((nodes ? "n:node" : "s:") + i, spool, nodes ? null : Integer.toString(i), "1", "http://127.0.0.1/d", "user", "Basic x", false, false, 1), nodes ? "node" + i + "/node" + n : null));
+					}
+					// the first pass warms up
+					int reps = (pass == 0) ? 2 : Math.max(5, 5000 / n);
+					long before = 0;
+					long after = 0;
+					for (int r = 0; r < reps; r++) {
+						before += publish(targets, fdir, metadata, false);
+						after += publish(targets, fdir, metadata, true);
+					}
+					if (pass == 1) {
+						System.out.printf("%-12s %8d %14.1f %14.1f %7.1fx%n", nodes ? "node" : "subscriber", n, before / 1000.0 / reps, after / 1000.0 / reps, (double)before / after);
+					}
+				}
+			}
+		}
+		delete(base);
+	}
+	/**
+	 *	Spool a published file for the targets, then remove it again
+	 *	@param shared	Link a single meta data file, rather than write one per target
+	 *	@return	The time taken to spool the file in nanoseconds
+	 */
+	private static long publish(Vector<Target> targets, File fdir, String metadata, boolean shared) throws Exception {
+		String pubid = System.currentTimeMillis() + ".node1.example.com";
+		String fbase = new File(fdir, pubid).getPath();
+		Files.write(Paths.get(fbase), "hello".getBytes());
+		Vector<String> syncfiles = new Vector<String>();
+		Vector<String> syncdirs = new Vector<String>();
+		Vector<Object> queued = new Vector<Object>();
+		long start = System.nanoTime();
+		if (shared) {
+			Writer mw = new FileWriter(fbase + ".M");
+			try {
+				mw.write(metadata);
+			} finally {
+				mw.close();
+			}
+			linkTargets.invoke(null, targets, pubid, 0, fbase, 5L, syncfiles, syncdirs, queued);
+		} else {
+			File meta = new File(fbase + ".M");
+			Path dpath = Paths.get(fbase);
+			for (Target t: targets) {
+				DestInfo di = t.getDestInfo();
+				String dbase = NodeUtils.getSpoolFile(di.getSpool(), pubid);
+				NodeUtils.spoolLink(Paths.get(dbase), dpath);
+				Writer mw = new FileWriter(meta);
+				mw.write(metadata);
+				if (di.getSubId() == null) {
+					mw.write("X-ATT-DR-ROUTING\t" + t.getRouting() + "\n");
+				}
+				mw.close();
+				meta.renameTo(new File(dbase + ".M"));
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		new File(fbase).delete();
+		new File(fbase + ".M").delete();
+		for (Target t: targets) {
+			String dbase = NodeUtils.getSpoolFile(t.getDestInfo().getSpool(), pubid);
+			new File(dbase).delete();
+			new File(dbase + ".M").delete();
+			new File(dbase + ".R").delete();
+		}
+		return(elapsed);
+	}
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File x: files) {
+				delete(x);
+			}
+		}
+		f.delete();
+	}
+}
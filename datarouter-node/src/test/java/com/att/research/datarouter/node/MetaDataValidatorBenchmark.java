@@ -0,0 +1,80 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.concurrent.*;
+import java.util.regex.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ *	Compare MetaDataValidator with the regular expression NodeServlet used
+ *	to validate the X-ATT-DR-META header before it.
+ *	<p>
+ *	Usage: java -cp (test classpath) org.openjdk.jmh.Main MetaDataValidatorBenchmark
+ *	<p>
+ *	"small" is typical metadata with a few short fields, and "large" is
+ *	close to the 4096 character limit, with escapes in its strings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetaDataValidatorBenchmark	{
+	private static Pattern	MetaDataPattern;
+	static {
+		// the expression NodeServlet used before MetaDataValidator
+		String ws = "\\s*";
+		// assume that \\ and \" have been replaced by X
+		String string = "\"[^\"]*\"";
+		String number = "[+-]?(?:\\.\\d+|(?:0|[1-9]\\d*)(?:\\.\\d*)?)(?:[eE][+-]?\\d+)?";
+		String value = "(?:" + string + "|" + number + "|null|true|false)";
+		String item = string + ws + ":" + ws + value + ws;
+		String object = ws + "\\{" + ws + "(?:" + item + "(?:" + "," + ws + item + ")*)?\\}" + ws;
+		MetaDataPattern = Pattern.compile(object, Pattern.DOTALL);
+	}
+	@Param({ "small", "large" })
+	public String	size;
+	private String	metadata;
+	@Setup
+	public void setup() {
+		if ("small".equals(size)) {
+			metadata = "{\"filename\":\"report.csv\",\"size\":12345,\"compressed\":false,\"source\":null}";
+		} else {
+			StringBuilder sb = new StringBuilder("{");
+			for (int i = 0; sb.length() < 4000; i++) {
+				if (i != 0) {
+					sb.append(',');
+				}
+				sb.append("\"key").append(i).append("\" : \"value \\\"").append(i).append("\\\" \\\\ x\", \"n").append(i).append("\":-1.5e3");
+			}
+			metadata = sb.append('}').toString();
+		}
+		// time accepting valid metadata, not bailing out early
+		if (!expression() || !validator()) {
+			throw new IllegalStateException("Benchmark metadata is not valid");
+		}
+	}
+	@Benchmark
+	public boolean expression() {
+		return(MetaDataPattern.matcher(metadata.replaceAll("\\\\.", "X")).matches());
+	}
+	@Benchmark
+	public boolean validator() {
+		return(MetaDataValidator.check(metadata) == -1);
+	}
+}
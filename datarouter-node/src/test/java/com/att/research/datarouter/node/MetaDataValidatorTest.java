@@ -0,0 +1,243 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.util.*;
+import java.util.regex.*;
+import junit.framework.TestCase;
+
+/**
+ *	Check that MetaDataValidator accepts exactly the metadata that the
+ *	regular expression it replaced in NodeServlet accepted.
+ */
+public class MetaDataValidatorTest extends TestCase	{
+	private static final int	MAX_METADATA = 4096;
+	private static Pattern	MetaDataPattern;
+	static {
+		// the expression NodeServlet used before MetaDataValidator
+		String ws = "\\s*";
+		// assume that \\ and \" have been replaced by X
+		String string = "\"[^\"]*\"";
+		String number = "[+-]?(?:\\.\\d+|(?:0|[1-9]\\d*)(?:\\.\\d*)?)(?:[eE][+-]?\\d+)?";
+		String value = "(?:" + string + "|" + number + "|null|true|false)";
+		String item = string + ws + ":" + ws + value + ws;
+		String object = ws + "\\{" + ws + "(?:" + item + "(?:" + "," + ws + item + ")*)?\\}" + ws;
+		MetaDataPattern = Pattern.compile(object, Pattern.DOTALL);
+	}
+	private static boolean oldCheck(String s) {
+		return(MetaDataPattern.matcher(s.replaceAll("\\\\.", "X")).matches());
+	}
+	private static void same(String s) {
+		boolean expected = oldCheck(s);
+		int bad = MetaDataValidator.check(s);
+		assertEquals("metadata " + s, expected, bad == -1);
+		if (bad != -1) {
+			assertTrue("offset " + bad + " for metadata " + s, bad >= 0 && bad <= s.length());
+		}
+	}
+	private static void valid(String s) {
+		assertTrue("old expression rejects " + s, oldCheck(s));
+		same(s);
+	}
+	/**
+	 *	Check that both reject malformed metadata, and that check() reports
+	 *	the offset of the first character that cannot be part of valid metadata
+	 */
+	private static void invalid(String s, int offset) {
+		assertFalse("old expression accepts " + s, oldCheck(s));
+		assertEquals("offset for metadata " + s, offset, MetaDataValidator.check(s));
+	}
+	public void testValid() {
+		valid("{}");
+		valid(" { } ");
+		valid("\t{\r\n}\n");
+		valid("{\"a\":\"b\"}");
+		valid("{\"a\" : \"b\" , \"c\" : \"d\"}");
+		valid("{\"\":\"\"}");
+		valid("{\"a\":null,\"b\":true,\"c\":false}");
+		valid("{\"a\":0,\"b\":-1,\"c\":12.5,\"d\":1e10,\"e\":-2.5E-3,\"f\":3e+7}");
+		valid("{\"a\":\"{\\\"x\\\":[1,2]}\"}");
+	}
+	public void testEscapes() {
+		valid("{\"a\":\"\\\"\"}");
+		valid("{\"a\":\"\\\\\"}");
+		valid("{\"a\\\"b\":\"c\"}");
+		valid("{\"a\":\"\\u00e9\\n\\t\\/\"}");
+		valid("{\"a\":\"\\q\"}");
+		valid("{\"a\":\"tab\there\"}");
+		valid("{\"a\":\"line\nbreak\"}");
+		invalid("{\"a\":\"\\\"}", 9);
+		invalid("{\"a\":\"b\\\"}", 10);
+		invalid("{\"a\\\":\"b\"}", 7);
+		invalid("{\"a\":\"unterminated}", 19);
+		invalid("{\"a\":\"b\"\"}", 8);
+		same("{\"a\":\"\\\n\"}");
+		same("{\"a\":\"\\\r\"}");
+		same("{\"a\":\"\\\u0085\"}");
+		same("{\"a\":\"\\\u2028\"}");
+		same("{\"a\":\"\\\u2029\"}");
+		same("{\"a\":\"x\\\\\\\"}");
+		same("{\"a\":\"x\\\\\\\\\"}");
+	}
+	public void testNumbers() {
+		valid("{\"a\":+1}");
+		valid("{\"a\":.5}");
+		valid("{\"a\":-.5e3}");
+		valid("{\"a\":1.}");
+		valid("{\"a\":0.}");
+		valid("{\"a\":0.0e0}");
+		invalid("{\"a\":01}", 6);
+		invalid("{\"a\":00}", 6);
+		invalid("{\"a\":.}", 6);
+		invalid("{\"a\":-}", 6);
+		invalid("{\"a\":+}", 6);
+		invalid("{\"a\":1e}", 7);
+		invalid("{\"a\":1e+}", 8);
+		invalid("{\"a\":1.e}", 8);
+		invalid("{\"a\":--1}", 6);
+		invalid("{\"a\":1..2}", 7);
+		invalid("{\"a\":0x10}", 6);
+		invalid("{\"a\":NaN}", 5);
+		invalid("{\"a\":Infinity}", 5);
+		invalid("{\"a\":1 2}", 7);
+	}
+	public void testNesting() {
+		invalid("{\"a\":{}}", 5);
+		invalid("{\"a\":{\"b\":\"c\"}}", 5);
+		invalid("{\"a\":[]}", 5);
+		invalid("{\"a\":[1,2]}", 5);
+		invalid("[]", 0);
+		invalid("[{}]", 0);
+		invalid("{{}}", 1);
+	}
+	public void testStructure() {
+		invalid("", 0);
+		invalid(" ", 1);
+		invalid("{", 1);
+		invalid("}", 0);
+		invalid("{\"a\"}", 4);
+		invalid("{\"a\":}", 5);
+		invalid("{\"a\"\"b\"}", 4);
+		invalid("{a:\"b\"}", 1);
+		invalid("{'a':'b'}", 1);
+		invalid("{\"a\":\"b\",}", 9);
+		invalid("{,\"a\":\"b\"}", 1);
+		invalid("{\"a\":\"b\" \"c\":\"d\"}", 9);
+		invalid("{\"a\":\"b\"", 8);
+		invalid("{\"a\":nul}", 8);
+		invalid("{\"a\":True}", 5);
+		invalid("{\"a\":falsey}", 10);
+		invalid("\"a\"", 0);
+		invalid("null", 0);
+	}
+	public void testTrailingGarbage() {
+		invalid("{}x", 2);
+		invalid("{} {}", 3);
+		invalid("{}}", 2);
+		invalid("{},", 2);
+		invalid("{\"a\":\"b\"}\"", 9);
+		invalid("{\"a\":1}2", 7);
+		invalid("x{}", 0);
+		valid("{} \t\r\n");
+		same("{}\u000b");
+		same("{}\f");
+		same("{}\u00a0");
+		same("{}\u2028");
+	}
+	private static String fill(int length, String tail) {
+		StringBuilder sb = new StringBuilder("{\"a\":\"");
+		while (sb.length() < length - tail.length()) {
+			sb.append('x');
+		}
+		return(sb.append(tail).toString());
+	}
+	public void testLengthLimit() {
+		for (int length = MAX_METADATA - 2; length <= MAX_METADATA + 2; length++) {
+			String ok = fill(length, "\"}");
+			assertEquals(length, ok.length());
+			valid(ok);
+			invalid(fill(length, "\""), length);
+			invalid(fill(length, "\"}x"), length - 1);
+		}
+		StringBuilder sb = new StringBuilder("{\"a\":");
+		while (sb.length() < MAX_METADATA - 1) {
+			sb.append('1');
+		}
+		valid(sb.toString() + "}");
+		invalid(sb.toString() + "x}", sb.length());
+		invalid(sb.toString(), sb.length());
+	}
+	private static final String[]	TOKENS = {
+		"{", "}", "[", "]", ":", ",", " ", "\t", "\n", "\"", "\\", "\\\"", "\\\\",
+		"\"a\"", "\"b c\"", "null", "true", "false", "nul", "0", "1", "9", "01",
+		"-", "+", ".", "e", "E", "1.5", ".5", "1e5", "x", "\u00e9", "\u2028"
+	};
+	private static final String[]	VALUES = {
+		"\"v\"", "\"\\\"\"", "\"\\\\\"", "\"\"", "null", "true", "false", "0", "-1", "+2", ".3", "4.", "5.6e-7", "8E+9"
+	};
+	private static String generate(Random r) {
+		StringBuilder sb = new StringBuilder();
+		if (r.nextInt(4) == 0) {
+			int n = r.nextInt(12);
+			for (int i = 0; i < n; i++) {
+				sb.append(TOKENS[r.nextInt(TOKENS.length)]);
+			}
+			return(sb.toString());
+		}
+		// mostly well formed metadata with a few mutations
+		sb.append(r.nextBoolean() ? "{" : " { ");
+		int n = r.nextInt(5);
+		for (int i = 0; i < n; i++) {
+			if (i != 0) {
+				sb.append(r.nextBoolean() ? "," : " , ");
+			}
+			sb.append("\"k").append(i).append('"').append(r.nextBoolean() ? ":" : " : ").append(VALUES[r.nextInt(VALUES.length)]);
+		}
+		sb.append(r.nextBoolean() ? "}" : "} ");
+		int mutations = r.nextInt(3);
+		for (int i = 0; i < mutations; i++) {
+			int at = r.nextInt(sb.length() + 1);
+			switch (r.nextInt(3)) {
+			case 0:
+				sb.insert(at, TOKENS[r.nextInt(TOKENS.length)]);
+				break;
+			case 1:
+				if (at < sb.length()) {
+					sb.deleteCharAt(at);
+				}
+				break;
+			default:
+				if (at < sb.length()) {
+					sb.setCharAt(at, TOKENS[r.nextInt(TOKENS.length)].charAt(0));
+				}
+				break;
+			}
+		}
+		return(sb.toString());
+	}
+	public void testRandom() {
+		Random r = new Random(20130101L);
+		int accepted = 0;
+		for (int i = 0; i < 200000; i++) {
+			String s = generate(r);
+			same(s);
+			if (MetaDataValidator.check(s) == -1) {
+				accepted++;
+			}
+		}
+		assertTrue("too few valid inputs generated: " + accepted, accepted > 20000);
+	}
+}
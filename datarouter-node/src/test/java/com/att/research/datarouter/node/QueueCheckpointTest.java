@@ -0,0 +1,96 @@
+/*
+ *                        AT&T - PROPRIETARY
+ *          THIS FILE CONTAINS PROPRIETARY INFORMATION OF
+ *        AT&T AND IS NOT TO BE DISCLOSED OR USED EXCEPT IN
+ *             ACCORDANCE WITH APPLICABLE AGREEMENTS.
+ *
+ *          Copyright (c) 2013 AT&T Knowledge Ventures
+ *              Unpublished and Not for Publication
+ *                     All Rights Reserved
+ */
+
+ /*
+  * $Id$
+  */
+
+package com.att.research.datarouter.node;
+
+import java.io.*;
+import java.nio.file.*;
+import junit.framework.TestCase;
+
+/**
+ *	Check that a checkpoint reads back as written, and that a damaged one
+ *	is ignored rather than trusted.
+ */
+public class QueueCheckpointTest extends TestCase	{
+	private File	dir;
+	private File	file;
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("cptest").toFile();
+		file = new File(dir, ".index");
+	}
+	protected void tearDown() {
+		for (File f: dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+	private void write() throws IOException {
+		QueueCheckpoint cp = new QueueCheckpoint(12345L, 2);
+		for (int i = 0; i < 2; i++) {
+			cp.pubids[i] = (1000 + i) + ".node1.example.com";
+			cp.volumes[i] = i;
+			cp.lengths[i] = 100 + i;
+			cp.attempts[i] = i * 3;
+			cp.next[i] = 5000 + i;
+		}
+		cp.write(file);
+	}
+	/**
+	 *	Overwrite the count of files in the checkpoint
+	 */
+	private void setCount(int count) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(16);
+		raf.writeInt(count);
+		raf.close();
+	}
+	public void testRoundTrip() throws Exception {
+		write();
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+		QueueCheckpoint cp = QueueCheckpoint.read(file);
+		assertNotNull(cp);
+		assertEquals(12345L, cp.time);
+		assertEquals(2, cp.count);
+		assertEquals("1001.node1.example.com", cp.pubids[1]);
+		assertEquals(1, cp.volumes[1]);
+		assertEquals(101, cp.lengths[1]);
+		assertEquals(3, cp.attempts[1]);
+		assertEquals(5001, cp.next[1]);
+	}
+	public void testMissing() {
+		assertNull(QueueCheckpoint.read(file));
+	}
+	public void testCorruptCount() throws Exception {
+		write();
+		setCount(Integer.MAX_VALUE);
+		assertNull(QueueCheckpoint.read(file));
+		setCount(-1);
+		assertNull(QueueCheckpoint.read(file));
+		// more entries than the file could possibly hold
+		setCount(3);
+		assertNull(QueueCheckpoint.read(file));
+	}
+	public void testTruncated() throws Exception {
+		write();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 1);
+		raf.close();
+		assertNull(QueueCheckpoint.read(file));
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(10);
+		raf.close();
+		assertNull(QueueCheckpoint.read(file));
+	}
+}
@@ -18,7 +18,9 @@ import org.json.JSONObject;
 
 /**
  * The representation of Subscription delivery information.  This includes the URL to deliver to,
- * login and password, and whether to use the "HTTP 100-continue" feature for this subscription.
+ * login and password, whether to use the "HTTP 100-continue" feature for this subscription,
+ * the maximum number of files that may be in transit to the subscriber at once, and the
+ * maximum number of files, and bytes, that may be delivered to the subscriber in one request.
  * @author Robert Eby
  * @version $Id: SubDelivery.java,v 1.2 2013/06/20 14:11:05 eby Exp $
  */
@@ -27,21 +29,40 @@ public class SubDelivery implements JSONable {
 	private String user;
 	private String password;
 	private boolean use100;
+	private int maxInFlight;
+	private int batchFiles;
+	private long batchBytes;
 
 	public SubDelivery() {
 		this("", "", "", false);
 	}
 	public SubDelivery(String url, String user, String password, boolean use100) {
+		this(url, user, password, use100, 1);
+	}
+	public SubDelivery(String url, String user, String password, boolean use100, int maxInFlight) {
+		this(url, user, password, use100, maxInFlight, 1, 1048576L);
+	}
+	public SubDelivery(String url, String user, String password, boolean use100, int maxInFlight, int batchFiles, long batchBytes) {
 		this.url      = url;
 		this.user     = user;
 		this.password = password;
 		this.use100   = use100;
+		this.maxInFlight = maxInFlight;
+		this.batchFiles = batchFiles;
+		this.batchBytes = batchBytes;
 	}
 	public SubDelivery(ResultSet rs) throws SQLException {
 		this.url      = rs.getString("DELIVERY_URL");
 		this.user     = rs.getString("DELIVERY_USER");
 		this.password = rs.getString("DELIVERY_PASSWORD");
 		this.use100   = rs.getBoolean("DELIVERY_USE100");
+		this.maxInFlight = rs.getInt("DELIVERY_MAX_IN_FLIGHT");
+		if (this.maxInFlight < 1)
+			this.maxInFlight = 1;
+		this.batchFiles = rs.getInt("DELIVERY_BATCH_FILES");
+		if (this.batchFiles < 1)
+			this.batchFiles = 1;
+		this.batchBytes = rs.getLong("DELIVERY_BATCH_BYTES");
 
 	}
 	public String getUrl() {
@@ -69,6 +90,24 @@ public class SubDelivery implements JSONable {
 	public void setUse100(boolean use100) {
 		this.use100 = use100;
 	}
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+	public int getBatchFiles() {
+		return batchFiles;
+	}
+	public void setBatchFiles(int batchFiles) {
+		this.batchFiles = batchFiles;
+	}
+	public long getBatchBytes() {
+		return batchBytes;
+	}
+	public void setBatchBytes(long batchBytes) {
+		this.batchBytes = batchBytes;
+	}
 	@Override
 	public JSONObject asJSONObject() {
 		JSONObject jo = new JSONObject();
@@ -76,6 +115,9 @@ public class SubDelivery implements JSONable {
 		jo.put("user", user);
 		jo.put("password", password);
 		jo.put("use100", use100);
+		jo.put("maxInFlight", maxInFlight);
+		jo.put("batchFiles", batchFiles);
+		jo.put("batchBytes", batchBytes);
 		return jo;
 	}
 	@Override
@@ -91,6 +133,12 @@ public class SubDelivery implements JSONable {
 			return false;
 		if (use100 != os.use100)
 			return false;
+		if (maxInFlight != os.maxInFlight)
+			return false;
+		if (batchFiles != os.batchFiles)
+			return false;
+		if (batchBytes != os.batchBytes)
+			return false;
 		return true;
 	}
 }
@@ -197,6 +197,9 @@ public class Subscription extends Syncable {
 			String user     = jdeli.getString("user");
 			String password = jdeli.getString("password");
 			boolean use100  = jdeli.getBoolean("use100");
+			int maxInFlight = jdeli.optInt("maxInFlight", 1);
+			int batchFiles  = jdeli.optInt("batchFiles", 1);
+			long batchBytes = jdeli.optLong("batchBytes", 1048576L);
 
 			
 			//Data Router Subscriber HTTPS Relaxation feature USERSTORYID:US674047.
@@ -212,7 +215,13 @@ public class Subscription extends Syncable {
 				throw new InvalidObjectException("delivery user field is too long");
 			if (password.length() > 32)
 				throw new InvalidObjectException("delivery password field is too long");
-			this.delivery = new SubDelivery(url, user, password, use100);
+			if (maxInFlight < 1 || maxInFlight > 100)
+				throw new InvalidObjectException("delivery maxInFlight field must be between 1 and 100");
+			if (batchFiles < 1 || batchFiles > 1000)
+				throw new InvalidObjectException("delivery batchFiles field must be between 1 and 1000");
+			if (batchBytes < 1 || batchBytes > 104857600L)
+				throw new InvalidObjectException("delivery batchBytes field must be between 1 and 104857600");
+			this.delivery = new SubDelivery(url, user, password, use100, maxInFlight, batchFiles, batchBytes);
 
 			this.metadataOnly = jo.getBoolean("metadataOnly");
 			this.suspended    = jo.optBoolean("suspend", false);
@@ -337,7 +346,7 @@ public class Subscription extends Syncable {
 				next_subid = subid+1;
 
 			// Create the SUBSCRIPTIONS row
-			String sql = "insert into SUBSCRIPTIONS (SUBID, FEEDID, DELIVERY_URL, DELIVERY_USER, DELIVERY_PASSWORD, DELIVERY_USE100, METADATA_ONLY, SUBSCRIBER, SUSPENDED, GROUPID) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			String sql = "insert into SUBSCRIPTIONS (SUBID, FEEDID, DELIVERY_URL, DELIVERY_USER, DELIVERY_PASSWORD, DELIVERY_USE100, METADATA_ONLY, SUBSCRIBER, SUSPENDED, GROUPID, DELIVERY_MAX_IN_FLIGHT, DELIVERY_BATCH_FILES, DELIVERY_BATCH_BYTES) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 			ps = c.prepareStatement(sql, new String[] { "SUBID" });
 			ps.setInt(1, subid);
 			ps.setInt(2, feedid);
@@ -349,6 +358,9 @@ public class Subscription extends Syncable {
 			ps.setString(8, getSubscriber());
 			ps.setBoolean(9, isSuspended());
 			ps.setInt(10, groupid); //New field is added - Groups feature Rally:US708115 - 1610
+			ps.setInt(11, getDelivery().getMaxInFlight());
+			ps.setInt(12, getDelivery().getBatchFiles());
+			ps.setLong(13, getDelivery().getBatchBytes());
 			ps.execute();
 			ps.close();
 //			ResultSet rs = ps.getGeneratedKeys();
@@ -382,7 +394,7 @@ public class Subscription extends Syncable {
 		boolean rv = true;
 		PreparedStatement ps = null;
 		try {
-			String sql = "update SUBSCRIPTIONS set DELIVERY_URL = ?, DELIVERY_USER = ?, DELIVERY_PASSWORD = ?, DELIVERY_USE100 = ?, METADATA_ONLY = ?, SUSPENDED = ?, GROUPID = ? where SUBID = ?";
+			String sql = "update SUBSCRIPTIONS set DELIVERY_URL = ?, DELIVERY_USER = ?, DELIVERY_PASSWORD = ?, DELIVERY_USE100 = ?, METADATA_ONLY = ?, SUSPENDED = ?, GROUPID = ?, DELIVERY_MAX_IN_FLIGHT = ?, DELIVERY_BATCH_FILES = ?, DELIVERY_BATCH_BYTES = ? where SUBID = ?";
 			ps = c.prepareStatement(sql);
 			ps.setString(1, delivery.getUrl());
 			ps.setString(2, delivery.getUser());
@@ -391,7 +403,10 @@ public class Subscription extends Syncable {
 			ps.setInt(5, isMetadataOnly()?1:0);
 			ps.setInt(6, suspended ? 1 : 0);
 			ps.setInt(7, groupid); //New field is added - Groups feature Rally:US708115 - 1610				
-			ps.setInt(8, subid);
+			ps.setInt(8, delivery.getMaxInFlight());
+			ps.setInt(9, delivery.getBatchFiles());
+			ps.setLong(10, delivery.getBatchBytes());
+			ps.setInt(11, subid);
 			ps.executeUpdate();
 		} catch (SQLException e) {
 			rv = false;
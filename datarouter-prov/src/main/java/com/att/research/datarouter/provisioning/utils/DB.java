@@ -164,6 +164,8 @@ public class DB {
 			&& retroFit9()  //New retroFit call to add CREATED_DATE column Rally:US674199 - 1610
 			&& retroFit10() //New retroFit call to add BUSINESS_DESCRIPTION column Rally:US708102 - 1610
 			&& retroFit11() //New retroFit call for groups feature Rally:US708115 - 1610	
+			&& retroFit12()
+			&& retroFit13()
 			;
 	}
 	/**
@@ -586,6 +588,72 @@ public class DB {
 		return true;		
 	}
 
+	/**
+	 * Retrofit 12 - Add column SUBSCRIPTIONS.DELIVERY_MAX_IN_FLIGHT, the number of files that may be
+	 * delivered to a subscriber concurrently.
+	 * @return true if the retrofit worked, false otherwise
+	 */
+	@SuppressWarnings("resource")
+	private boolean retroFit12() {
+		Connection c = null;
+		try {
+			c = getConnection();
+			DatabaseMetaData md = c.getMetaData();
+			boolean add_col = true;
+			ResultSet rs = md.getColumns("datarouter", "", "SUBSCRIPTIONS", "DELIVERY_MAX_IN_FLIGHT");
+			if (rs != null) {
+				add_col = !rs.next();
+				rs.close();
+				rs = null;
+			}
+			if (add_col) {
+				intlogger.info("PROV9002: Adding DELIVERY_MAX_IN_FLIGHT column to SUBSCRIPTIONS table.");
+				Statement s = c.createStatement();
+				s.execute("ALTER TABLE SUBSCRIPTIONS ADD COLUMN DELIVERY_MAX_IN_FLIGHT INT UNSIGNED NOT NULL DEFAULT 1 AFTER DELIVERY_USE100");
+				s.close();
+			}
+		} catch (SQLException e) {
+			intlogger.fatal("PROV9000: The database credentials are not working: "+e.getMessage());
+			return false;
+		} finally {
+			if (c != null)
+				release(c);
+		}
+		return true;
+	}
+	/**
+	 * Retrofit 13 - Add columns SUBSCRIPTIONS.DELIVERY_BATCH_FILES and SUBSCRIPTIONS.DELIVERY_BATCH_BYTES,
+	 * the maximum number of files, and bytes, that may be delivered to a subscriber in one request.
+	 * @return true if the retrofit worked, false otherwise
+	 */
+	@SuppressWarnings("resource")
+	private boolean retroFit13() {
+		Connection c = null;
+		try {
+			c = getConnection();
+			DatabaseMetaData md = c.getMetaData();
+			boolean add_col = true;
+			ResultSet rs = md.getColumns("datarouter", "", "SUBSCRIPTIONS", "DELIVERY_BATCH_FILES");
+			if (rs != null) {
+				add_col = !rs.next();
+				rs.close();
+				rs = null;
+			}
+			if (add_col) {
+				intlogger.info("PROV9002: Adding DELIVERY_BATCH_FILES and DELIVERY_BATCH_BYTES columns to SUBSCRIPTIONS table.");
+				Statement s = c.createStatement();
+				s.execute("ALTER TABLE SUBSCRIPTIONS ADD COLUMN DELIVERY_BATCH_FILES INT UNSIGNED NOT NULL DEFAULT 1 AFTER DELIVERY_MAX_IN_FLIGHT, ADD COLUMN DELIVERY_BATCH_BYTES BIGINT UNSIGNED NOT NULL DEFAULT 1048576 AFTER DELIVERY_BATCH_FILES");
+				s.close();
+			}
+		} catch (SQLException e) {
+			intlogger.fatal("PROV9000: The database credentials are not working: "+e.getMessage());
+			return false;
+		} finally {
+			if (c != null)
+				release(c);
+		}
+		return true;
+	}
 
 	/**
 	 * Copy the log table <i>table_name</i> to LOG_RECORDS;